@@ -1,6 +1,8 @@
 package org.georchestra.analytics;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
@@ -128,21 +130,6 @@ public abstract class AbstractApplication {
 		response.setStatus(500);
 	}
 
-	/**
-	 * Updates the response ContentType and header to make the browser download the CSV file
-	 *
-	 * @param csv the CSV content as String
-	 * @param filename the filename the CSV will be saved under
-	 * @param response
-	 * @throws Exception
-	 */
-	protected void respondCSV(String csv, final String filename, HttpServletResponse response) throws Exception {
-		response.setContentType("text/csv");
-		response.setContentLength(csv.getBytes().length);
-		response.setHeader("Content-Disposition", "attachment; filename=\""+filename+CSVUtil.CSV_EXT+"\"");
-		response.getWriter().write(csv);
-	}
-
 	/**
 	 * Generic method from all WS. Will call the strategy.process method which refer to the
 	 * WS' model. This model will return result as JSONObject. This object will be returned
@@ -177,33 +164,41 @@ public abstract class AbstractApplication {
 
 	/**
 	 * Generic method from all WS. Will call the strategy.process method which refers to the
-	 * WS' model. This model will return result as JSONObject. This object will then be
-	 * parsed to write a CSV file which will be returned in the response, using response header as
-	 * CSV file.
+	 * WS' model. This model will write the results as CSV rows directly in the response,
+	 * using response header as CSV file. The response is sent by chunks while the rows are
+	 * read from the database.
 	 *
 	 * @param request
 	 * @param response
-	 * @param strategy contain the method to call the model an retrieve results
+	 * @param strategy contain the method to call the model an write results
 	 * @throws Exception
 	 */
-	protected void exportCSV(HttpServletRequest request, HttpServletResponse response, String csvFileName, StrategyController strategy) throws Exception {
+	protected void exportCSV(HttpServletRequest request, HttpServletResponse response, String csvFileName, ExportStrategyController strategy) throws Exception {
 
 		if(!this.getDateParameters(request)) {
 			OutputStream out  = response.getOutputStream();
 			sendSuccessFalse(out, "Invalid parameters");
 		}
 		else {
-			String csv=null;
+			csvFileName = String.valueOf(year) + "-" + String.format("%02d", month) + "-" + csvFileName;
+			response.setContentType("text/csv");
+			response.setHeader("Content-Disposition", "attachment; filename=\""+csvFileName+CSVUtil.CSV_EXT+"\"");
+
+			Writer out = response.getWriter();
 			try {
-				JSONObject object  = strategy.process();
-				csv = CSVUtil.JSONToCSV(object);
-				csvFileName = String.valueOf(year) + "-" + String.format("%02d", month) + "-" + csvFileName;
+				strategy.process(out);
+				out.flush();
 
 			} catch (Exception e) {
-				OutputStream out  = response.getOutputStream();
-				reportError(out, response, e);
+				if (response.isCommitted()) {
+					// part of the file has been sent, the download can only be interrupted
+					logger.error("Caught exception while exporting statistics: ", e);
+					throw e;
+				}
+				response.reset();
+				reportError(null, response, e);
+				out.write("Internal Server Error: unable to handle request.");
 			}
-			respondCSV(csv, csvFileName, response);
 		}
 	}
 
@@ -216,4 +211,14 @@ public abstract class AbstractApplication {
 
 		protected abstract JSONObject process() throws SQLException, JSONException;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Inner Abstract class to pass the call of the specific model to the generic
+	 * exportCSV method.
+	 *
+	 */
+	protected abstract class ExportStrategyController {
+
+		protected abstract void process(Writer out) throws SQLException, JSONException, IOException;
+	}
+}
@@ -1,5 +1,7 @@
 package org.georchestra.analytics;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.SQLException;
 
 import javax.servlet.http.HttpServletRequest;
@@ -63,9 +65,9 @@ public class ExtractorStats extends AbstractApplication {
 	@RequestMapping(method = RequestMethod.GET, value = "/export/extractorlayers")
 	public void exportLayers(HttpServletRequest request, HttpServletResponse response) throws Exception {
 
-		exportCSV(request, response, csvLayers, new StrategyController(){
-			protected JSONObject process() throws SQLException, JSONException {
-				return model.getLayersStats(month, year, 0, Integer.MAX_VALUE, sort, filter);
+		exportCSV(request, response, csvLayers, new ExportStrategyController(){
+			protected void process(Writer out) throws SQLException, JSONException, IOException {
+				model.exportLayersStats(month, year, sort, filter, out);
 			}
 		});	
 	}
@@ -73,9 +75,9 @@ public class ExtractorStats extends AbstractApplication {
 	@RequestMapping(method = RequestMethod.GET, value = "/export/extractorusers")
 	public void exportUsers(HttpServletRequest request, HttpServletResponse response) throws Exception {
 		
-		exportCSV(request, response, csvUsers, new StrategyController(){
-			protected JSONObject process() throws SQLException, JSONException {
-				return model.getUsersStats(month, year, 0, Integer.MAX_VALUE, sort, filter);
+		exportCSV(request, response, csvUsers, new ExportStrategyController(){
+			protected void process(Writer out) throws SQLException, JSONException, IOException {
+				model.exportUsersStats(month, year, sort, filter, out);
 			}
 		});	
 	}
@@ -83,9 +85,9 @@ public class ExtractorStats extends AbstractApplication {
 	@RequestMapping(method = RequestMethod.GET, value = "/export/extractorgroups")
 	public void exportGroups(HttpServletRequest request, HttpServletResponse response) throws Exception {
 		
-		exportCSV(request, response, csvGroups, new StrategyController(){
-			protected JSONObject process() throws SQLException, JSONException {
-				return model.getGroupsStats(month, year, 0, Integer.MAX_VALUE, sort, filter);
+		exportCSV(request, response, csvGroups, new ExportStrategyController(){
+			protected void process(Writer out) throws SQLException, JSONException, IOException {
+				model.exportGroupsStats(month, year, sort, filter, out);
 			}
 		});	
 	}
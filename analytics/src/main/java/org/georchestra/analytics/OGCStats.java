@@ -1,5 +1,7 @@
 package org.georchestra.analytics;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.SQLException;
 
 import javax.servlet.http.HttpServletRequest;
@@ -64,9 +66,9 @@ public class OGCStats extends AbstractApplication {
 	@RequestMapping(method = RequestMethod.GET, value = "/export/ogclayers")
 	public void exportLayers(HttpServletRequest request, HttpServletResponse response) throws Exception {
 		
-		exportCSV(request, response, csvLayers, new StrategyController(){
-			protected JSONObject process() throws SQLException, JSONException {
-				return model.getLayersStats(month, year, 0, Integer.MAX_VALUE, sort, filter);
+		exportCSV(request, response, csvLayers, new ExportStrategyController(){
+			protected void process(Writer out) throws SQLException, JSONException, IOException {
+				model.exportLayersStats(month, year, sort, filter, out);
 			}
 		});	
 	}
@@ -74,9 +76,9 @@ public class OGCStats extends AbstractApplication {
 	@RequestMapping(method = RequestMethod.GET, value = "/export/ogcusers")
 	public void exportUsers(HttpServletRequest request, HttpServletResponse response) throws Exception {
 		
-		exportCSV(request, response, csvUsers, new StrategyController(){
-			protected JSONObject process() throws SQLException, JSONException {
-				return model.getUsersStats(month, year, 0, Integer.MAX_VALUE, sort, filter);
+		exportCSV(request, response, csvUsers, new ExportStrategyController(){
+			protected void process(Writer out) throws SQLException, JSONException, IOException {
+				model.exportUsersStats(month, year, sort, filter, out);
 			}
 		});	
 	}
@@ -84,9 +86,9 @@ public class OGCStats extends AbstractApplication {
 	@RequestMapping(method = RequestMethod.GET, value = "/export/ogcgroups")
 	public void exportGroups(HttpServletRequest request, HttpServletResponse response) throws Exception {
 		
-		exportCSV(request, response, csvGroups, new StrategyController(){
-			protected JSONObject process() throws SQLException, JSONException {
-				return model.getGroupsStats(month, year, 0, Integer.MAX_VALUE, sort, filter);
+		exportCSV(request, response, csvGroups, new ExportStrategyController(){
+			protected void process(Writer out) throws SQLException, JSONException, IOException {
+				model.exportGroupsStats(month, year, sort, filter, out);
 			}
 		});	
 	}
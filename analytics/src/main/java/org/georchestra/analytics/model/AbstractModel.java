@@ -1,12 +1,18 @@
 package org.georchestra.analytics.model;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.georchestra.analytics.util.CSVUtil;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -15,46 +21,143 @@ public class AbstractModel {
 
 	protected PostGresqlConnection postgresqlConnection;
 
+	/**
+	 * Number of rows fetched at once by the exports, which are never loaded
+	 * in memory as a whole
+	 */
+	private static final int EXPORT_FETCH_SIZE = 1000;
+
 	private final String countQ = "SELECT count(*) from (@query@) as res;";
 
+	/**
+	 * All the results of a query, kept to serve the following pages. Only the
+	 * total is kept when there are too many results.
+	 */
+	private static final class CachedResults {
+		final JSONArray results;
+		final int total;
+		final long expiration;
+
+		CachedResults(JSONArray results, int total, long expiration) {
+			this.results = results;
+			this.total = total;
+			this.expiration = expiration;
+		}
+
+		/** number of rows this entry counts for in the cache */
+		int rows() {
+			return results == null ? 1 : Math.max(results.length(), 1);
+		}
+	}
+
+	private int cacheTimeout = 300;
+
+	private int maxCachedRows = 10000;
+
+	private int cacheRows = 50000;
+
+	/** rows of all the entries of the cache */
+	private int cachedRows;
+
+	private final Map<String, CachedResults> cache = new LinkedHashMap<String, CachedResults>(16, 0.75f, true);
+
 	public AbstractModel(PostGresqlConnection pgpool) {
 		postgresqlConnection = pgpool;
 	}
 
 	/**
-	 * Prepares the statement with controller attributes
+	 * @param cacheTimeout seconds the results of a query are kept (default 300)
+	 */
+	public void setCacheTimeout(int cacheTimeout) {
+		this.cacheTimeout = cacheTimeout;
+	}
+
+	/**
+	 * @param maxCachedRows maximum number of results of a query kept, the larger results are
+	 *        read page by page (default 10000, 0 to read them always page by page)
+	 */
+	public void setMaxCachedRows(int maxCachedRows) {
+		this.maxCachedRows = maxCachedRows;
+	}
+
+	/**
+	 * @param cacheRows maximum number of results kept, all the queries together (default 50000)
+	 */
+	public void setCacheRows(int cacheRows) {
+		this.cacheRows = cacheRows;
+	}
+
+	/**
+	 * Prepares the statement selecting all the results of the query with controller
+	 * attributes, the LIMIT and OFFSET keywords are removed.
 	 *
 	 * @return
 	 * @throws SQLException
 	 */
 	protected PreparedStatement prepareStatement(Connection con, final String query,
-			final int month, final int year, final int start, final int limit, final String sort,
+			final int month, final int year, final String sort,
 			List<String> extraFilters) throws SQLException {
 
 		String q = query.replace("@sort@", sort);
+		q = q.replace("LIMIT ? OFFSET ?;", "");
 		PreparedStatement st = con.prepareStatement(q);
 
-		// Extra filters come first (replacing the WHERE clause by WHERE ...)
+		setWhereParameters(st, q, month, year, extraFilters);
+
+		return st;
+	}
+
+	/**
+	 * Sets the parameters of each WHERE clause of the query: the extra filters
+	 * come first (replacing the WHERE clause by WHERE ...), then the beginning
+	 * and the end of the period.
+	 *
+	 * @return index of the next parameter
+	 * @throws SQLException
+	 */
+	private int setWhereParameters(PreparedStatement st, final String query,
+			final int month, final int year, List<String> extraFilters) throws SQLException {
+
 		int curParam = 1;
-		for (String extrafilter : extraFilters) {
-		    st.setString(curParam++, extrafilter);
+		for (int where = query.indexOf("WHERE"); where >= 0; where = query.indexOf("WHERE", where + 1)) {
+
+			for (String extrafilter : extraFilters) {
+			    st.setString(curParam++, extrafilter);
+			}
+
+            if ((month > 0) && (year > 0)) {
+                st.setString(curParam++, String.format("%4d-%02d-01 00:00", year, month));
+                if (month < 12) {
+                    st.setString(curParam++, String.format("%4d-%02d-01 00:00", year, month + 1));
+                } else {
+                    st.setString(curParam++, String.format("%4d-01-01 00:00", year + 1));
+                }
+            } else {
+                // hack-ish, but need to find out a better way to do,
+                // I've until 2032 to rewrite this in a better fashion.
+                st.setString(curParam++, "1970-01-01 00:00");
+                st.setString(curParam++, "2032-01-01 00:00");
+            }
 		}
+		return curParam;
+	}
+
+	/**
+	 * Prepares the statement selecting a page of the results of the query.
+	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	private PreparedStatement preparePageStatement(Connection con, final String query,
+			final int month, final int year, final int start, final int limit, final String sort,
+			List<String> extraFilters) throws SQLException {
 
+		String q = query.replace("@sort@", sort);
+		PreparedStatement st = con.prepareStatement(q);
 
-        if ((month > 0) && (year > 0)) {
-            st.setString(curParam++, String.format("%4d-%02d-01 00:00", year, month));
-            if (month < 12)
-                st.setString(curParam++,
-                        String.format("%4d-%02d-01 00:00", year, month + 1));
-            else
-                st.setString(curParam++, String.format("%4d-01-01 00:00", year + 1));
-        } else {
-            // (hackish, same comment as below)
-            st.setString(curParam++, "1970-01-01 00:00");
-            st.setString(curParam++, "2032-01-01 00:00");
-        }
-        st.setInt(curParam++, limit);
-        st.setInt(curParam++, start);
+		int curParam = setWhereParameters(st, q, month, year, extraFilters);
+		st.setInt(curParam++, limit);
+		st.setInt(curParam++, start);
 
 		return st;
 	}
@@ -62,13 +165,10 @@ public class AbstractModel {
 	/**
 	 * Counts all the results of the given query.
 	 *
-	 * Builds the count query from the filter query, removing LIMIT and OFFSET keywords
-	 * and includes in a count query named "countQ".
-	 *
 	 * @return number of results
 	 * @throws SQLException
 	 */
-	protected int getCount(Connection con, final String query,
+	private int getCount(Connection con, final String query,
 			final int month, final int year, final String sort, List<String> extraFilters) throws SQLException {
 
 		ResultSet rs = null;
@@ -78,38 +178,16 @@ public class AbstractModel {
 		q = q.replace("LIMIT ? OFFSET ?;", "");
 		q = countQ.replace("@query@", q);
 
-
-
 		try {
 			st = con.prepareStatement(q);
-
-	        int curParam = 1;
-	        for (String extrafilter : extraFilters) {
-	                st.setString(curParam++, extrafilter);
-	        }
-
-            if ((month > 0) && (year > 0)) {
-                st.setString(curParam++, String.format("%4d-%02d-01 00:00", year, month));
-                if (month < 12) {
-                    st.setString(curParam++, String.format("%4d-%02d-01 00:00", year, month + 1));
-                } else {
-                    st.setString(curParam++, String.format("%4d-01-01 00:00", year + 1));
-                }
-            } else {
-                // hack-ish, but need to find out a better way to do,
-                // I've until 2032 to rewrite this in a better fashion.
-                st.setString(curParam++, "1970-01-01 00:00");
-                st.setString(curParam++, "2032-01-01 00:00");
-            }
-		    rs = st.executeQuery();
-		    if(rs.next()) {
-		    	count = rs.getInt(1);
-		    }
-		} catch(SQLException e) {
-			throw e;
+			setWhereParameters(st, q, month, year, extraFilters);
+			rs = st.executeQuery();
+			if (rs.next()) {
+				count = rs.getInt(1);
+			}
 		} finally {
-			if (st != null) st.close();
 			if (rs != null) rs.close();
+			if (st != null) st.close();
 		}
 		return count;
 	}
@@ -118,6 +196,11 @@ public class AbstractModel {
 	 * Generic statistics data access. Gets all statistics of a type, filtered by date, ordered and
 	 * sampled (offset, limit). The ResultSet is parsed and all data are inserted in a JSON object
 	 * actually returned.
+	 * <p>
+	 * All the results of the query are kept for a while, unless there are more than
+	 * maxCachedRows: the total and the following pages are then taken from them, without
+	 * querying the database again. The larger results are read page by page.
+	 * </p>
 	 * @param filter
 	 * @return JSON object containing all results
 	 * @throws SQLException
@@ -131,11 +214,87 @@ public class AbstractModel {
 		Connection con = null;
 		PreparedStatement st = null;
 
-		// The current block code corresponds to the deprecated
-		// addFilters() method
-		String q = new String(query);
 		List<String> extraFilters = new ArrayList<String>();
+		String q = addFilters(query, filter, extraFilters);
+
+		String key = month + "|" + year + "|" + sort + "|" + extraFilters + "|" + q;
+		CachedResults cached = getCachedResults(key);
+
+		try {
+			JSONArray results = cached == null ? null : cached.results;
+			if (cached == null && cacheTimeout > 0 && maxCachedRows > 0) {
+				con = postgresqlConnection.getConnection();
+				// one more row than can be kept tells whether the results fit in the cache
+				st = preparePageStatement(con, q, month, year, 0, maxCachedRows + 1, sort, extraFilters);
+				rs = st.executeQuery();
+				results = strategy.process(rs);
+				rs.close();
+				rs = null;
+				st.close();
+				st = null;
+
+				if (results.length() <= maxCachedRows) {
+					putCachedResults(key, results, results.length());
+				} else {
+					results = null;
+				}
+			}
+
+			JSONArray jsarr;
+			int total;
+			if (results != null) {
+				jsarr = new JSONArray();
+				int end = (int) Math.min((long) start + limit, results.length());
+				for (int i = Math.max(start, 0); i < end; i++) {
+					jsarr.put(results.get(i));
+				}
+				total = results.length();
+			} else {
+				if (con == null) {
+					con = postgresqlConnection.getConnection();
+				}
+				if (cached != null) {
+					total = cached.total;
+				} else {
+					total = getCount(con, q, month, year, sort, extraFilters);
+					putCachedResults(key, null, total);
+				}
+				st = preparePageStatement(con, q, month, year, start, limit, sort, extraFilters);
+				rs = st.executeQuery();
+				jsarr = strategy.process(rs);
+			}
+			object.put("success", true);
+			object.put("results", jsarr);
+			object.put("total", total);
+
+			return object;
+
+		} catch (SQLException e) {
+			throw e;
+
+		}  catch (JSONException e) {
+			throw e;
+
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Adds the filters to the WHERE clauses of the query (the deprecated
+	 * addFilters() method), their values are added to extraFilters.
+	 *
+	 * @return the filtered query
+	 * @throws JSONException
+	 */
+	private String addFilters(final String query, String filter, List<String> extraFilters) throws JSONException {
 
+		String q = query;
 		if ((filter != null) && (! "".equals(filter))) {
 
 	        JSONArray arr = new JSONArray(filter);
@@ -157,33 +316,41 @@ public class AbstractModel {
 	        // Case-sensivity of the where
 	        q = q.replace("WHERE", sb.toString());
 		}
-        // end block
+		return q;
+	}
 
+	/**
+	 * Generic statistics export. Writes all statistics of a type, filtered by date and ordered,
+	 * as CSV rows while they are read from the database: neither the ResultSet nor the CSV
+	 * are kept in memory.
+	 *
+	 * @param out where the CSV rows are written
+	 * @throws SQLException
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	public void exportStats(final int month, final int year, final String sort, String filter,
+			final String query, Writer out) throws SQLException, JSONException, IOException {
 
-		try {
-			//String q = addFilters(query, filter);
+		ResultSet rs = null;
+		Connection con = null;
+		PreparedStatement st = null;
 
+		List<String> extraFilters = new ArrayList<String>();
+		String q = addFilters(query, filter, extraFilters);
+
+		try {
 			con = postgresqlConnection.getConnection();
-			int count = getCount(con, q, month, year, sort, extraFilters);
-			st = prepareStatement(con, q, month, year, start, limit, sort, extraFilters);
+			st = prepareStatement(con, q, month, year, sort, extraFilters);
+			// the connections are not in autocommit mode, so the driver uses a cursor
+			st.setFetchSize(EXPORT_FETCH_SIZE);
 			rs = st.executeQuery();
 
-			JSONArray jsarr = strategy.process(rs);
-			object.put("success", true);
-			object.put("results", jsarr);
-			object.put("total", count);
-
-			return object;
-
-		} catch (SQLException e) {
-			throw e;
-
-		}  catch (JSONException e) {
-			throw e;
+			CSVUtil.writeCSV(rs, out);
 
 		} finally {
-			if (st != null) st.close();
 			if (rs != null) rs.close();
+			if (st != null) st.close();
 
 			if (con != null) {
 				con.close();
@@ -191,6 +358,46 @@ public class AbstractModel {
 		}
 	}
 
+	private CachedResults getCachedResults(String key) {
+		synchronized (cache) {
+			CachedResults cached = cache.get(key);
+			if (cached == null) {
+				return null;
+			}
+			if (cached.expiration < System.currentTimeMillis()) {
+				cache.remove(key);
+				cachedRows -= cached.rows();
+				return null;
+			}
+			return cached;
+		}
+	}
+
+	/**
+	 * Keeps the results, or only their total if results is null, and removes the least
+	 * recently used entries beyond cacheRows.
+	 *
+	 * @return the entry, null if the results are not cached
+	 */
+	private CachedResults putCachedResults(String key, JSONArray results, int total) {
+		if (cacheTimeout <= 0) {
+			return null;
+		}
+		CachedResults cached = new CachedResults(results, total, System.currentTimeMillis() + cacheTimeout * 1000L);
+		synchronized (cache) {
+			CachedResults previous = cache.put(key, cached);
+			if (previous != null) {
+				cachedRows -= previous.rows();
+			}
+			cachedRows += cached.rows();
+			for (Iterator<CachedResults> it = cache.values().iterator(); cachedRows > cacheRows && it.hasNext();) {
+				cachedRows -= it.next().rows();
+				it.remove();
+			}
+		}
+		return cached;
+	}
+
 	protected abstract class StrategyModel {
 
 		protected abstract JSONArray process(ResultSet rs) throws SQLException, JSONException;
@@ -1,5 +1,7 @@
 package org.georchestra.analytics.model;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
@@ -112,4 +114,19 @@ public class GeonetworkStatsModel extends AbstractModel  {
 			}
 		});
 	}
+
+	public void exportFilesStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectFilesQ, out);
+	}
+
+	public void exportUsersStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectUsersQ, out);
+	}
+
+	public void exportGroupsStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectGroupsQ, out);
+	}
 }
@@ -1,29 +1,88 @@
 package org.georchestra.analytics.model;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 public class OGCStatsModel extends AbstractModel  {
 
+	private static final Log LOGGER = LogFactory.getLog(OGCStatsModel.class.getPackage().getName());
+
+	/** SQLSTATE of a missing table */
+	private static final String UNDEFINED_TABLE = "42P01";
+
+	/**
+	 * false once a query failed because the rollup tables are missing (database
+	 * not upgraded), the raw log is read until analytics is restarted
+	 */
+	private volatile boolean rollupTables = true;
+
 	public OGCStatsModel(PostGresqlConnection pgpool) {
 		super(pgpool);
 	}
 
-	private final String selectLayersQ = "SELECT "
+	/**
+	 * The monthly counts rolled up by {@link OGCStatsRollup} and the raw log of
+	 * the days not rolled up yet, restricted to the period: the WHERE clause is
+	 * repeated in both parts of the union so that both are filtered.
+	 */
+	private static String fromLog(String columns) {
+		return "FROM ( "
+	        + "    SELECT "
+	        + "        " + columns
+	        + "        , count "
+	        + "    FROM "
+	        + "        ogcstatistics.ogc_services_log_monthly "
+	        + "    WHERE "
+	        + "        month >= ?::timestamp "
+	        + "    AND "
+	        + "        month < ?::timestamp "
+	        + "    UNION ALL "
+	        + "    SELECT "
+	        + "        " + columns
+	        + "        , 1 "
+	        + "    FROM "
+	        + "        ogcstatistics.ogc_services_log "
+	        + "    WHERE "
+	        + "        date >= ?::timestamp "
+	        + "    AND "
+	        + "        date < ?::timestamp "
+	        + "    AND "
+	        + "        date >= (SELECT rolled_until FROM ogcstatistics.ogc_services_log_rollup) "
+	        + ") AS log ";
+	}
+
+	/**
+	 * The raw log restricted to the period, read when the rollup tables are missing.
+	 */
+	private static String fromRawLog(String columns) {
+		return "FROM ( "
+	        + "    SELECT "
+	        + "        " + columns
+	        + "        , 1 AS count "
+	        + "    FROM "
+	        + "        ogcstatistics.ogc_services_log "
+	        + "    WHERE "
+	        + "        date >= ?::timestamp "
+	        + "    AND "
+	        + "        date < ?::timestamp "
+	        + ") AS log ";
+	}
+
+	private static String selectLayersQ(String from) {
+		return "SELECT "
 	        + "    service"
 	        + "    , layer"
 	        + "    , request"
-	        + "    , COUNT(*) AS count "
-	        + "FROM "
-	        + "    ogcstatistics.ogc_services_log "
-	        + "WHERE "
-	        + "    date >= ?::timestamp "
-	        + "AND "
-	        + "    date < ?::timestamp "
+	        + "    , SUM(count) AS count "
+	        + from
 	        + "GROUP BY "
 	        + "    layer"
 	        + "    , service"
@@ -31,40 +90,93 @@ public class OGCStatsModel extends AbstractModel  {
 	        + "ORDER BY "
 	        + "    @sort@ "
 	        + "LIMIT ? OFFSET ?;";
+	}
 
-	private final String selectUsersQ = "SELECT "
+	private static String selectUsersQ(String from) {
+		return "SELECT "
 	        + "    user_name "
-	        + "    , COUNT(*) AS count "
-	        + "FROM "
-	        + "    ogcstatistics.ogc_services_log "
-	        +"WHERE "
-	        + "    date >= ?::timestamp "
-	        + "AND "
-	        + "    date < ?::timestamp "
+	        + "    , SUM(count) AS count "
+	        + from
 	        + "GROUP BY "
 	        + "    user_name "
 	        + "ORDER BY "
 	        + "    @sort@ "
 	        + "LIMIT ? OFFSET ?;";
+	}
 
-	private final String selectGroupsQ = "SELECT "
+	private static String selectGroupsQ(String from) {
+		return "SELECT "
 	        + "    org"
-	        + "    , COUNT(*) AS count "
-	        + "FROM "
-	        + "    ogcstatistics.ogc_services_log "
-	        + "WHERE "
-	        + "    date >= ?::timestamp "
-	        + "AND "
-	        + "    date < ?::timestamp "
+	        + "    , SUM(count) AS count "
+	        + from
 	        + "GROUP BY "
 	        + "    org "
 	        + "ORDER BY "
 	        + "    @sort@ "
 	        + "LIMIT ? OFFSET ?;";
+	}
+
+	private final String selectLayersQ = selectLayersQ(fromLog("service, layer, request"));
+	private final String selectRawLayersQ = selectLayersQ(fromRawLog("service, layer, request"));
+
+	private final String selectUsersQ = selectUsersQ(fromLog("user_name"));
+	private final String selectRawUsersQ = selectUsersQ(fromRawLog("user_name"));
+
+	private final String selectGroupsQ = selectGroupsQ(fromLog("org"));
+	private final String selectRawGroupsQ = selectGroupsQ(fromRawLog("org"));
+
+	/**
+	 * @return true if the query failed because the rollup tables are missing, the
+	 *         following queries read the raw log
+	 */
+	private boolean rollupTablesMissing(SQLException e) {
+		if (!UNDEFINED_TABLE.equals(e.getSQLState())) {
+			return false;
+		}
+		if (rollupTables) {
+			rollupTables = false;
+			LOGGER.warn("The OGC statistics are computed from the raw log, create the tables "
+					+ "ogcstatistics.ogc_services_log_monthly and ogcstatistics.ogc_services_log_rollup "
+					+ "(see the release notes) and restart analytics: " + e.getMessage());
+		}
+		return true;
+	}
+
+	private JSONObject getStats(final int month, final int year, final int start, final int limit, final String sort,
+			final String filter, final String query, final String rawQuery, StrategyModel strategy) throws SQLException, JSONException {
+
+		if (rollupTables) {
+			try {
+				return getStats(month, year, start, limit, sort, filter, query, strategy);
+			} catch (SQLException e) {
+				if (!rollupTablesMissing(e)) {
+					throw e;
+				}
+			}
+		}
+		return getStats(month, year, start, limit, sort, filter, rawQuery, strategy);
+	}
+
+	private void exportStats(final int month, final int year, final String sort, final String filter,
+			final String query, final String rawQuery, Writer out) throws SQLException, JSONException, IOException {
+
+		if (rollupTables) {
+			try {
+				// nothing is written before the query is executed
+				exportStats(month, year, sort, filter, query, out);
+				return;
+			} catch (SQLException e) {
+				if (!rollupTablesMissing(e)) {
+					throw e;
+				}
+			}
+		}
+		exportStats(month, year, sort, filter, rawQuery, out);
+	}
 
 	public JSONObject getLayersStats(final int month, final int year, final int start, final int limit, final String sort, final String filter) throws SQLException, JSONException {
 
-		return getStats(month, year, start, limit, sort, filter, selectLayersQ, new StrategyModel() {
+		return getStats(month, year, start, limit, sort, filter, selectLayersQ, selectRawLayersQ, new StrategyModel() {
 
 			protected JSONArray process(ResultSet rs) throws SQLException, JSONException {
 				JSONArray jsarr = new JSONArray();
@@ -83,7 +195,7 @@ public class OGCStatsModel extends AbstractModel  {
 
 	public JSONObject getUsersStats(final int month, final int year, final int start, final int limit, final String sort, final String filter) throws SQLException, JSONException {
 
-		return getStats(month, year, start, limit, sort, filter, selectUsersQ, new StrategyModel() {
+		return getStats(month, year, start, limit, sort, filter, selectUsersQ, selectRawUsersQ, new StrategyModel() {
 			protected JSONArray process(ResultSet rs) throws SQLException, JSONException {
 				JSONArray jsarr = new JSONArray();
 				while (rs.next()) {
@@ -99,7 +211,7 @@ public class OGCStatsModel extends AbstractModel  {
 
 	public JSONObject getGroupsStats(final int month, final int year, final int start, final int limit, final String sort, final String filter) throws SQLException, JSONException {
 
-		return getStats(month, year, start, limit, sort, filter, selectGroupsQ, new StrategyModel() {
+		return getStats(month, year, start, limit, sort, filter, selectGroupsQ, selectRawGroupsQ, new StrategyModel() {
 			protected JSONArray process(ResultSet rs) throws SQLException, JSONException {
 				JSONArray jsarr = new JSONArray();
 				while (rs.next()) {
@@ -112,4 +224,19 @@ public class OGCStatsModel extends AbstractModel  {
 			}
 		});
 	}
+
+	public void exportLayersStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectLayersQ, selectRawLayersQ, out);
+	}
+
+	public void exportUsersStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectUsersQ, selectRawUsersQ, out);
+	}
+
+	public void exportGroupsStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectGroupsQ, selectRawGroupsQ, out);
+	}
 }
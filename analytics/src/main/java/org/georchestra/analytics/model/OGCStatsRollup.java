@@ -0,0 +1,189 @@
+package org.georchestra.analytics.model;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Maintains the monthly counts of the OGC services log
+ * (ogcstatistics.ogc_services_log_monthly), so that the statistics are not
+ * computed from the raw log at each request.
+ * <p>
+ * Only complete days are rolled up: the day up to which the log has been rolled
+ * up is kept in ogcstatistics.ogc_services_log_rollup and {@link OGCStatsModel}
+ * adds the raw rows logged since then. Each run recomputes the months from the
+ * last rolled up day to yesterday, the first run builds the whole history.
+ * </p>
+ */
+public class OGCStatsRollup {
+
+	private static final Log LOGGER = LogFactory.getLog(OGCStatsRollup.class.getPackage().getName());
+
+	private final String selectRolledUntilQ = "SELECT "
+	        + "    rolled_until "
+	        + "    , current_date AS today "
+	        + "FROM "
+	        + "    ogcstatistics.ogc_services_log_rollup "
+	        + "FOR UPDATE;";
+
+	private final String deleteMonthsQ = "DELETE FROM "
+	        + "    ogcstatistics.ogc_services_log_monthly "
+	        + "WHERE "
+	        + "    month >= date_trunc('month', ?::date);";
+
+	private final String insertMonthsQ = "INSERT INTO "
+	        + "    ogcstatistics.ogc_services_log_monthly (month, user_name, org, service, layer, request, count) "
+	        + "SELECT "
+	        + "    date_trunc('month', date)::date "
+	        + "    , user_name "
+	        + "    , org "
+	        + "    , service "
+	        + "    , layer "
+	        + "    , request "
+	        + "    , COUNT(*) "
+	        + "FROM "
+	        + "    ogcstatistics.ogc_services_log "
+	        + "WHERE "
+	        + "    date >= date_trunc('month', ?::date) "
+	        + "AND "
+	        + "    date < ?::date "
+	        + "GROUP BY "
+	        + "    1, 2, 3, 4, 5, 6;";
+
+	private final String updateRolledUntilQ = "UPDATE "
+	        + "    ogcstatistics.ogc_services_log_rollup "
+	        + "SET "
+	        + "    rolled_until = ?;";
+
+	private final PostGresqlConnection postgresqlConnection;
+
+	private int interval = 60;
+
+	private ScheduledExecutorService scheduler;
+
+	public OGCStatsRollup(PostGresqlConnection pgpool) {
+		postgresqlConnection = pgpool;
+	}
+
+	/**
+	 * @param interval minutes between two rollups (default 60)
+	 */
+	public void setInterval(int interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Starts rolling up the log in background, the first rollup is done at once.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ogc-statistics-rollup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					rollup();
+				} catch (SQLException e) {
+					if ("42P01".equals(e.getSQLState())) {
+						// database not upgraded, OGCStatsModel reads the raw log
+						LOGGER.warn("Unable to roll up the OGC services log, the rollup tables are missing: " + e.getMessage());
+					} else {
+						LOGGER.error("Unable to roll up the OGC services log", e);
+					}
+				}
+			}
+		}, 0, interval, TimeUnit.MINUTES);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Rolls up the days completed since the last rollup.
+	 *
+	 * @return true if the monthly counts have been updated
+	 * @throws SQLException
+	 */
+	public boolean rollup() throws SQLException {
+
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			con = postgresqlConnection.getConnection();
+			con.setAutoCommit(false);
+
+			// locks the rollup state, concurrent rollups wait for this one
+			st = con.prepareStatement(selectRolledUntilQ);
+			rs = st.executeQuery();
+			if (!rs.next()) {
+				LOGGER.warn("ogcstatistics.ogc_services_log_rollup is empty, the OGC services log is not rolled up");
+				con.rollback();
+				return false;
+			}
+			Date rolledUntil = rs.getDate("rolled_until");
+			Date today = rs.getDate("today");
+			rs.close();
+			st.close();
+			if (!rolledUntil.before(today)) {
+				con.rollback();
+				return false;
+			}
+
+			st = con.prepareStatement(deleteMonthsQ);
+			st.setDate(1, rolledUntil);
+			st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement(insertMonthsQ);
+			st.setDate(1, rolledUntil);
+			st.setDate(2, today);
+			int rows = st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement(updateRolledUntilQ);
+			st.setDate(1, today);
+			st.executeUpdate();
+
+			con.commit();
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("OGC services log rolled up from " + rolledUntil + " to " + today + ": " + rows + " monthly counts");
+			}
+			return true;
+
+		} catch (SQLException e) {
+			if (con != null) {
+				con.rollback();
+			}
+			throw e;
+
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+}
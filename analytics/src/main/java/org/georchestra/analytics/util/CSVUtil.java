@@ -1,5 +1,9 @@
 package org.georchestra.analytics.util;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Iterator;
 
 import org.json.JSONArray;
@@ -44,5 +48,27 @@ public class CSVUtil {
     	}
     	return sBuilder.toString();
     }
-}
 
+    /**
+     * Writes each row of the ResultSet as a CSV line, the values being in the
+     * order of the columns.
+     * 
+     * @param rs
+     * @param out
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static final void writeCSV(ResultSet rs, Writer out) throws SQLException, IOException {
+    	final int columns = rs.getMetaData().getColumnCount();
+    	while (rs.next()) {
+    		for (int i = 1; i <= columns; i++) {
+    			String value = rs.getString(i);
+    			if (value != null) {
+    				out.write(value);
+    			}
+    			out.write(CSV_SEP);
+    		}
+    		out.write("\r\n");
+    	}
+    }
+}
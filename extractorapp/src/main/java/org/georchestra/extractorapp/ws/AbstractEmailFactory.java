@@ -6,9 +6,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 import org.georchestra.extractorapp.ws.extractor.ExpiredArchiveDaemon;
@@ -36,9 +40,34 @@ public abstract class AbstractEmailFactory {
         // this is the default constructor for use by spring
     }
 
-	public abstract Email createEmail(HttpServletRequest request,
+	public Email createEmail(HttpServletRequest request,
+			final String[] recipients, final String url) throws IOException {
+		return createEmail(request.getSession().getServletContext(), securityHeaders(request), recipients, url);
+	}
+
+	/**
+	 * Creates the email of an extraction without its http request, when the
+	 * extraction is restored after a restart.
+	 *
+	 * @param headers the security headers (sec-*) of the request, see {@link #securityHeaders(HttpServletRequest)}
+	 */
+	public abstract Email createEmail(ServletContext servletContext, Map<String, String> headers,
 			final String[] recipients, final String url) throws IOException;
 
+	/**
+	 * @return the headers added to the request by the security proxy, with lower case names
+	 */
+	public static Map<String, String> securityHeaders(HttpServletRequest request) {
+		Map<String, String> headers = new HashMap<String, String>();
+		for (Enumeration<?> names = request.getHeaderNames(); names.hasMoreElements();) {
+			String name = ((String) names.nextElement()).toLowerCase(Locale.ENGLISH);
+			if (name.startsWith("sec-")) {
+				headers.put(name, request.getHeader(name));
+			}
+		}
+		return headers;
+	}
+
 	// -------------- Not public API -------------- //
     /**
      * Signals that the values for this object are set and may not
@@ -81,7 +110,11 @@ public abstract class AbstractEmailFactory {
     }
 
     protected String readFile(HttpServletRequest request, final String path) throws IOException {
-    	String realPath = request.getSession().getServletContext().getRealPath(path);
+    	return readFile(request.getSession().getServletContext(), path);
+    }
+
+    protected String readFile(ServletContext servletContext, final String path) throws IOException {
+    	String realPath = servletContext.getRealPath(path);
     	BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(realPath), "UTF-8") );
         StringBuilder builder = new StringBuilder();
         try {
@@ -44,6 +44,16 @@ public abstract class Email {
             final String from, final String bodyEncoding,
             final String subjectEncoding, final String[] languages) {
 
+        this(recipients, emailSubject, smtpHost, smtpPort, emailHtml, replyTo,
+                from, bodyEncoding, subjectEncoding, languages);
+    }
+
+    public Email(String[] recipients,
+            final String emailSubject, final String smtpHost,
+            final int smtpPort, final String emailHtml, final String replyTo,
+            final String from, final String bodyEncoding,
+            final String subjectEncoding, final String[] languages) {
+
         this.recipients = recipients;
         this.subject = emailSubject;
         this.smtpHost = smtpHost;
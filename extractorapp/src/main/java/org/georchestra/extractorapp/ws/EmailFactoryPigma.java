@@ -3,10 +3,11 @@ package org.georchestra.extractorapp.ws;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
-import javax.servlet.http.HttpServletRequest;
+import javax.servlet.ServletContext;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -17,15 +18,15 @@ public class EmailFactoryPigma extends AbstractEmailFactory {
             .getPackage().getName());
 	
 	@Override
-	public Email createEmail(HttpServletRequest request, final String[] recipients,
-			final String url) throws IOException {
+	public Email createEmail(ServletContext servletContext, Map<String, String> headers,
+			final String[] recipients, final String url) throws IOException {
 		
 		final long expiry = this.expireDeamon.getExpiry();
-		final String msgAck = readFile(request, emailAckTemplateFile);
-		final String msgDone = readFile(request, emailTemplateFile);
-		final String conv = request.getHeader("sec-convention");
+		final String msgAck = readFile(servletContext, emailAckTemplateFile);
+		final String msgDone = readFile(servletContext, emailTemplateFile);
+		final String conv = headers.get("sec-convention");
 		
-		return new Email(request, recipients, emailSubject,
+		return new Email(recipients, emailSubject,
 				this.smtpHost,
 				this.smtpPort,
 				this.emailHtml,
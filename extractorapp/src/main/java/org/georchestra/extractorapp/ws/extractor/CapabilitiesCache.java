@@ -0,0 +1,166 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of the OGC documents (GetCapabilities, DescribeCoverage) shared by all
+ * the extractions, so that a basket of layers from the same server downloads
+ * them once.
+ * <p>
+ * A document is identified by its url and by the user it is requested for
+ * (the capabilities of a secured server depend on the impersonated user and
+ * roles). The documents expire after {@link #setTimeToLive(long)} and the
+ * least recently used ones are dropped beyond {@link #setMaxEntries(int)}.
+ * The same document requested by several threads is downloaded once.
+ * </p>
+ */
+public class CapabilitiesCache {
+
+    private static final Log LOG = LogFactory.getLog(CapabilitiesCache.class.getPackage().getName());
+
+    private static final CapabilitiesCache SHARED = new CapabilitiesCache();
+
+    /**
+     * Downloads a document when it is not in the cache.
+     */
+    public interface Loader {
+        String load() throws IOException;
+    }
+
+    /**
+     * A cached document, with the index of the names of its layers.
+     */
+    public static final class Document {
+        private static final Pattern PREFIX = Pattern.compile("\\w*:");
+
+        private final String content;
+        private final ConcurrentMap<String, Set<String>> names = new ConcurrentHashMap<String, Set<String>>();
+
+        Document(String content) {
+            this.content = content;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        /**
+         * @param element the element of the layers: FeatureType (WFS), Layer (WMS)
+         * @param name the layer name, with or without its namespace prefix
+         *
+         * @return true if the document contains a layer with the name
+         */
+        public boolean containsLayer(String element, String name) {
+            Set<String> index = names.get(element);
+            if (index == null) {
+                index = indexNames(element);
+                names.putIfAbsent(element, index);
+            }
+            return index.contains(name.trim());
+        }
+
+        private Set<String> indexNames(String element) {
+            Pattern regex = Pattern.compile("(?m)<" + Pattern.quote(element) + "[^>]*>(?:\\\\n|\\s)*<Name>\\s*([^<\\s]*)\\s*</Name>");
+            Set<String> index = new HashSet<String>();
+            for (Matcher matcher = regex.matcher(content); matcher.find();) {
+                String name = matcher.group(1);
+                index.add(name);
+                // the layers may be requested without their namespace prefix
+                Matcher prefix = PREFIX.matcher(name);
+                if (prefix.lookingAt()) {
+                    index.add(name.substring(prefix.end()));
+                }
+            }
+            return Collections.unmodifiableSet(index);
+        }
+    }
+
+    private static final class Entry {
+        private Document document;
+        private long loadTime;
+
+        synchronized Document get(Loader loader, long timeToLive) throws IOException {
+            long now = System.currentTimeMillis();
+            if (document == null || now - loadTime > timeToLive) {
+                // a failed download is not cached, the next request tries again
+                document = new Document(loader.load());
+                loadTime = now;
+            }
+            return document;
+        }
+    }
+
+    private volatile long timeToLive = 10 * 60 * 1000;
+    private int maxEntries = 200;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    /**
+     * @return the cache used by the extractors
+     */
+    public static CapabilitiesCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param timeToLive time in milliseconds a document is kept before being downloaded again (default 10 minutes)
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param maxEntries maximum number of documents kept (default 200)
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param url the url of the document
+     * @param username the user the document is requested for, null if it is anonymous
+     * @param roles the roles of the user, null if it is anonymous
+     * @param loader downloads the document if it is not cached or expired
+     */
+    public Document get(String url, String username, String roles, Loader loader) throws IOException {
+        String key = url + '\n' + username + '\n' + roles;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Getting " + url + " from the capabilities cache");
+        }
+        return entry.get(loader, timeToLive);
+    }
+
+    /**
+     * Drops all the documents
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,199 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The zip archive of an extraction, filled as the layers are extracted.
+ * <p>
+ * The files of each layer are appended as soon as the layer is extracted, so
+ * they are read once and not copied in the extraction bundle before being
+ * zipped. The archive is written in a ".part" file renamed when it is complete,
+ * so that an unfinished archive is never downloaded. The files which are
+ * already compressed (images, archives) are stored, the others are deflated
+ * with the configured level. The archives larger than 4GB or with more than
+ * 65535 entries are written in the zip64 format by the JRE (version 7 or more).
+ * </p>
+ */
+public class ExtractionArchive {
+
+    private static final Log LOG = LogFactory.getLog(ExtractionArchive.class.getPackage().getName());
+
+    /** extensions of the files which are stored without compression by default */
+    public static final Set<String> DEFAULT_STORED_EXTENSIONS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList("jpg", "jpeg", "png", "gif", "jp2", "ecw", "zip", "gz", "kmz")));
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File archive;
+    private final File partFile;
+    private final String rootName;
+    private final Set<String> storedExtensions;
+    private final ZipOutputStream zip;
+    private final Set<String> entries = new HashSet<String>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * @param archive the zip file to create
+     * @param rootName the directory containing all the entries in the archive
+     * @param compressionLevel the deflate level, from 0 (no compression) to 9 ({@link Deflater#DEFAULT_COMPRESSION} for the default)
+     * @param storedExtensions the extensions (lower case, without dot) of the files stored without compression
+     */
+    public ExtractionArchive(File archive, String rootName, int compressionLevel, Set<String> storedExtensions)
+            throws IOException {
+        this.archive = archive;
+        this.partFile = new File(archive.getPath() + ".part");
+        this.rootName = rootName;
+        this.storedExtensions = storedExtensions;
+        if (!archive.getParentFile().exists()) {
+            archive.getParentFile().mkdirs();
+        }
+        this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), BUFFER_SIZE));
+        this.zip.setLevel(compressionLevel);
+    }
+
+    /**
+     * @return the archive file, complete once {@link #close()} has returned
+     */
+    public File getFile() {
+        return archive;
+    }
+
+    /**
+     * Appends the files of the directory (recursively) to the archive, with
+     * their path relative to the directory.
+     * <p>
+     * The entries of a zip file cannot be removed: if it fails once a file has
+     * been appended, an {@link IncompleteContentException} is thrown and the
+     * directory must not be appended again, its files would be skipped as
+     * duplicates.
+     * </p>
+     */
+    public synchronized void addContent(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list the files of " + directory);
+        }
+        int archived = entries.size();
+        try {
+            for (File file : files) {
+                add(file, file.getName());
+            }
+        } catch (IOException e) {
+            if (entries.size() > archived) {
+                throw new IncompleteContentException(directory, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a file to the archive at the root directory.
+     */
+    public synchronized void addFile(File file) throws IOException {
+        add(file, file.getName());
+    }
+
+    private void add(File file, String path) throws IOException {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                add(child, path + '/' + child.getName());
+            }
+            return;
+        }
+        String name = rootName + '/' + path;
+        if (!entries.add(name)) {
+            LOG.warn("Two layers contain the file " + name + ", the second one is not archived");
+            return;
+        }
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(file.lastModified());
+        if (isStored(file)) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCompressedSize(file.length());
+            entry.setCrc(crc(file));
+        }
+        zip.putNextEntry(entry);
+        InputStream in = new FileInputStream(file);
+        try {
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                zip.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        zip.closeEntry();
+    }
+
+    private boolean isStored(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * The stored entries need their CRC before their content.
+     */
+    private long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Completes the archive and makes it available.
+     *
+     * @return the archive file
+     */
+    public synchronized File close() throws IOException {
+        if (entries.isEmpty()) {
+            // a zip file needs at least one entry
+            zip.putNextEntry(new ZipEntry(rootName + '/'));
+            zip.closeEntry();
+        }
+        zip.close();
+        if (archive.exists()) {
+            archive.delete();
+        }
+        if (!partFile.renameTo(archive)) {
+            throw new IOException("Unable to rename " + partFile + " to " + archive);
+        }
+        return archive;
+    }
+
+    /**
+     * Closes and deletes the incomplete archive.
+     */
+    public synchronized void abort() {
+        try {
+            zip.close();
+        } catch (IOException e) {
+            LOG.debug("Unable to close the incomplete archive " + partFile, e);
+        }
+        partFile.delete();
+    }
+}
@@ -6,11 +6,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.servlet.ServletContext;
@@ -28,6 +30,7 @@ import org.georchestra.extractorapp.ws.extractor.task.ExecutionMetadata;
 import org.georchestra.extractorapp.ws.extractor.task.ExecutionPriority;
 import org.georchestra.extractorapp.ws.extractor.task.ExtractionManager;
 import org.georchestra.extractorapp.ws.extractor.task.ExtractionTask;
+import org.georchestra.extractorapp.ws.extractor.task.TaskJournal;
 import org.json.JSONObject;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -81,6 +84,43 @@ public class ExtractorController implements ServletContextAware {
 				throw new AssertionError("extractorapp does not have access to "+storageFile+" and cannot create it");
 			}
 		}
+		if (extractionManager.getJournal() != null) {
+			restoreTasks(extractionManager.getJournal());
+		}
+	}
+
+	/**
+	 * Submits again the tasks which were not finished when extractorapp stopped.
+	 * The tasks interrupted while running are started from the beginning.
+	 */
+	private void restoreTasks(TaskJournal journal) {
+		List<TaskJournal.Entry> entries;
+		try {
+			entries = journal.load();
+		} catch (IOException e) {
+			LOG.error("Unable to read the extraction task journal, the previous tasks are not restored", e);
+			return;
+		}
+		for (TaskJournal.Entry entry : entries) {
+			try {
+				String postData = entry.getRequest();
+				Map<String, String> headers = entry.getHeaders();
+				List<ExtractorLayerRequest> requests = Collections.unmodifiableList(ExtractorLayerRequest.parseJson(postData));
+				String url = resultsUrl(entry.getUuid());
+				Email email = emailFactory.createEmail(servletContext, headers, requests.get(0)._emails, url);
+
+				RequestConfiguration requestConfig = new RequestConfiguration(
+						requests, UUID.fromString(entry.getUuid()), email,
+						servletContext, false, headers.get("sec-username"), headers.get("sec-roles"), adminCredentials,
+						secureHost, extractionFolderPrefix, maxCoverageExtractionSize, remoteReproject,
+						useCommandLineGDAL, postData);
+				extractionManager.restore(new ExtractionTask(requestConfig, entry.getRequestTime()), entry);
+				LOG.info("Extraction request restored, request uuid = " + entry.getUuid());
+			} catch (Exception e) {
+				LOG.error("Unable to restore the extraction request " + entry.getUuid(), e);
+				journal.finished(entry.getUuid());
+			}
+		}
 	}
 
 	@RequestMapping(value = RESULTS_MAPPING, method = RequestMethod.GET)
@@ -259,23 +299,13 @@ public class ExtractorController implements ServletContextAware {
 
 		if (checkFormAcceptance.isFormAccepted(sessionId,request.getHeader("sec-username"), postData)) {
 			UUID requestUuid = UUID.randomUUID();
-
-			URL urlObj = new URL(servletUrl);
-			if (urlObj.getPort() == urlObj.getDefaultPort()) {
-				urlObj = new URL(urlObj.getProtocol(), urlObj.getHost(), urlObj.getFile());
-			}
-			StringBuilder url = new StringBuilder(urlObj.toString());
-			url.append(RESULTS_MAPPING);
-			url.append("?");
-			url.append(UUID_PARAM);
-			url.append("=");
-			url.append(requestUuid);
+			String url = resultsUrl(requestUuid.toString());
 
 			List<ExtractorLayerRequest> requests = Collections.unmodifiableList(ExtractorLayerRequest.parseJson(postData));
 			if (requests.size() > 0) {
 
 				String[] recipients = requests.get(0)._emails;
-				Email email = emailFactory.createEmail(request, recipients, url.toString());
+				Email email = emailFactory.createEmail(request, recipients, url);
 
 				String username = request.getHeader("sec-username");
 				String roles = request.getHeader("sec-roles");
@@ -296,11 +326,11 @@ public class ExtractorController implements ServletContextAware {
 				if (testing) {
 					extractor.run();
 				} else {
-					extractionManager.submit(extractor);
+					extractionManager.submit(extractor, AbstractEmailFactory.securityHeaders(request));
 				}
 
 				reponseData = replace(readFile(responseTemplateFile),
-						url.toString(), recipients);
+						url, recipients);
 
 				response.setCharacterEncoding(responseCharset);
 				response.setContentType(reponseMimeType);
@@ -320,6 +350,23 @@ public class ExtractorController implements ServletContextAware {
 		}
 	}
 
+	/**
+	 * @return the url where the result of the extraction can be downloaded
+	 */
+	private String resultsUrl(String uuid) throws MalformedURLException {
+		URL urlObj = new URL(servletUrl);
+		if (urlObj.getPort() == urlObj.getDefaultPort()) {
+			urlObj = new URL(urlObj.getProtocol(), urlObj.getHost(), urlObj.getFile());
+		}
+		StringBuilder url = new StringBuilder(urlObj.toString());
+		url.append(RESULTS_MAPPING);
+		url.append("?");
+		url.append(UUID_PARAM);
+		url.append("=");
+		url.append(uuid);
+		return url.toString();
+	}
+
 	// ----------------- JavaBean methods ----------------- //
 
 
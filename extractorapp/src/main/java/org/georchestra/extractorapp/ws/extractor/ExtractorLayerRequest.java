@@ -12,10 +12,14 @@ import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Encapsulates all the parameters of an extractor request for one layer
@@ -95,6 +99,42 @@ public class ExtractorLayerRequest {
         }
     }
 
+    /**
+     * Identifies the extracted files: the requests of the same data (server,
+     * layer, bbox, projection, format and resolution) have the same key,
+     * whoever requests them.
+     *
+     * @return a SHA-1 digest of the normalised parameters, in hexadecimal
+     */
+    public String cacheKey() {
+        int port = _url.getPort() == _url.getDefaultPort() ? -1 : _url.getPort();
+        StringBuilder key = new StringBuilder();
+        key.append(_owsType).append('\n');
+        key.append(_url.getProtocol().toLowerCase(Locale.ENGLISH)).append("://")
+            .append(_url.getHost().toLowerCase(Locale.ENGLISH)).append(':').append(port)
+            .append(_url.getFile()).append('\n');
+        key.append(_namespace).append(':').append(_layerName).append('\n');
+        key.append(CRS.toSRS(_bbox.getCoordinateReferenceSystem())).append(' ')
+            .append(_bbox.getMinX()).append(',').append(_bbox.getMinY()).append(',')
+            .append(_bbox.getMaxX()).append(',').append(_bbox.getMaxY()).append('\n');
+        key.append(_epsg.toUpperCase(Locale.ENGLISH)).append('\n');
+        key.append(_format.toLowerCase(Locale.ENGLISH)).append('\n');
+        key.append(_resolution).append('\n');
+        key.append(_isoMetadataURL);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Create the directory to extract this layer to
      */
@@ -0,0 +1,19 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The content of a directory could not be appended to the
+ * {@link ExtractionArchive} as a whole: a part of it may already be in the
+ * archive, so it must not be appended again.
+ */
+public class IncompleteContentException extends IOException {
+
+	private static final long serialVersionUID = 6155184573425731209L;
+
+	public IncompleteContentException(File directory, IOException cause) {
+		super("The content of " + directory + " is partially archived: " + cause.getMessage());
+		initCause(cause);
+	}
+}
@@ -0,0 +1,430 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.util.NullProgressListener;
+import org.opengis.feature.FeatureVisitor;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.util.ProgressListener;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * The features of a WFS layer in a bbox, read by tiles so that a large layer
+ * is not requested in a single GetFeature.
+ * <p>
+ * A tile is requested with MAXFEATURES set to the page size plus one: if the
+ * server returns more than the page size, the tile is split in four and its
+ * quarters are requested instead. The tiles thus adapt to the density of the
+ * layer and each response holds at most a page. A tile whose request fails is
+ * requested again, the tiles already read are not.
+ * </p>
+ * <p>
+ * Splitting does not reduce the features covering a whole tile, its quarters
+ * return them again: a tile whose page is made for the most part of such
+ * features is read without limit. So are the remaining tiles once MAX_TILES
+ * tiles have been read, whatever the layer.
+ * </p>
+ * <p>
+ * A feature intersecting several tiles is kept only in the tile containing its
+ * reference point, a point of its geometry in the bbox (see
+ * {@link #referencePoint(Geometry)}), so that no id has to be remembered. The
+ * tiles are thus read in the layer projection and the kept features are
+ * reprojected afterwards.
+ * </p>
+ * <p>
+ * The features are fetched while they are iterated: {@link #getBounds()} reads
+ * the whole layer, {@link #size()} asks the server for the number of features
+ * if it can, and {@link #accepts(FeatureVisitor, ProgressListener)} does not
+ * count the features before visiting them.
+ * </p>
+ */
+class TiledFeatureCollection extends AbstractFeatureCollection {
+
+    private static final Log LOG = LogFactory.getLog(TiledFeatureCollection.class.getPackage().getName());
+
+    /** a tile is not split more than this number of times */
+    private static final int MAX_DEPTH = 12;
+
+    /** the tiles are not split any more once this number of tiles have been read */
+    static final int MAX_TILES = 4096;
+
+    private final SimpleFeatureSource source;
+    private final Query query;
+    private final String geometryName;
+    private final ReferencedEnvelope bbox;
+    private final Geometry bboxGeometry;
+    private final String epsgCode;
+    /** from the layer projection to the output projection, null if the features are not reprojected */
+    private final MathTransform transform;
+    private final int pageSize;
+    private final int attempts;
+
+    /**
+     * @param source the WFS layer
+     * @param query the properties and the output projection of the features, its filter is replaced by the tiles
+     * @param bbox the extracted area, in the layer projection
+     * @param epsgCode the code of the bbox projection, sent with the tiles
+     * @param pageSize maximum number of features requested at once
+     * @param attempts number of times the request of a tile is sent before failing
+     */
+    TiledFeatureCollection(SimpleFeatureSource source, Query query, ReferencedEnvelope bbox, String epsgCode,
+            int pageSize, int attempts) throws IOException {
+        super(schema(source.getSchema(), query));
+        this.source = source;
+        this.query = query;
+        this.geometryName = source.getSchema().getGeometryDescriptor().getLocalName();
+        this.bbox = bbox;
+        this.bboxGeometry = new GeometryFactory().toGeometry(bbox);
+        this.epsgCode = epsgCode;
+        this.pageSize = pageSize;
+        this.attempts = attempts;
+        this.transform = transform(source.getSchema().getCoordinateReferenceSystem(),
+                query.getCoordinateSystemReproject());
+    }
+
+    private static MathTransform transform(CoordinateReferenceSystem sourceCRS, CoordinateReferenceSystem targetCRS)
+            throws IOException {
+        if (sourceCRS == null || targetCRS == null || CRS.equalsIgnoreMetadata(sourceCRS, targetCRS)) {
+            return null;
+        }
+        try {
+            return CRS.findMathTransform(sourceCRS, targetCRS, true);
+        } catch (FactoryException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static SimpleFeatureType schema(SimpleFeatureType sourceSchema, Query query) throws IOException {
+        try {
+            return DataUtilities.createSubType(sourceSchema, query.getPropertyNames(),
+                    query.getCoordinateSystemReproject());
+        } catch (SchemaException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    protected Iterator<SimpleFeature> openIterator() {
+        return new TileIterator();
+    }
+
+    protected void closeIterator(Iterator<SimpleFeature> close) {
+        if (close instanceof TileIterator) {
+            ((TileIterator) close).close();
+        }
+    }
+
+    /**
+     * Visits the features as they are read, the default implementation would
+     * count them first and thus read the whole layer twice.
+     */
+    @Override
+    public void accepts(FeatureVisitor visitor, ProgressListener progress) throws IOException {
+        if (progress == null) {
+            progress = new NullProgressListener();
+        }
+        TileIterator it = new TileIterator();
+        try {
+            progress.started();
+            while (!progress.isCanceled() && it.hasNext()) {
+                SimpleFeature feature = it.next();
+                try {
+                    visitor.visit(feature);
+                } catch (Exception e) {
+                    progress.exceptionOccurred(e);
+                    throw new IOException("Problem visiting " + source.getName().getLocalPart() + " visiting "
+                            + feature.getID() + ": " + e, e);
+                }
+            }
+        } finally {
+            progress.complete();
+            it.close();
+        }
+    }
+
+    /**
+     * @return the number of features in the bbox given by the server, counted
+     *         by reading the whole layer if the server does not give it
+     */
+    @Override
+    public int size() {
+        try {
+            int count = source.getCount(query);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to count the features of " + source.getName().getLocalPart() + ", they are read", e);
+        }
+        TileIterator it = new TileIterator();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds() {
+        ReferencedEnvelope bounds = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+        TileIterator it = new TileIterator();
+        while (it.hasNext()) {
+            bounds.include(it.next().getBounds());
+        }
+        return bounds;
+    }
+
+    private static final class Tile {
+        final ReferencedEnvelope envelope;
+        final int depth;
+
+        Tile(ReferencedEnvelope envelope, int depth) {
+            this.envelope = envelope;
+            this.depth = depth;
+        }
+    }
+
+    private final class TileIterator implements Iterator<SimpleFeature>, Closeable {
+        /** the tiles to read, the next one first */
+        private final LinkedList<Tile> tiles = new LinkedList<Tile>();
+        /** the tile of the current page */
+        private Tile tile;
+        private Iterator<SimpleFeature> page = Collections.<SimpleFeature> emptyList().iterator();
+        private SimpleFeature next;
+        /** number of tiles requested */
+        private int tilesRead;
+
+        TileIterator() {
+            tiles.add(new Tile(bbox, 0));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (page.hasNext()) {
+                    SimpleFeature feature = page.next();
+                    if (isInTile(feature, tile)) {
+                        next = reproject(feature);
+                    }
+                } else if (tiles.isEmpty()) {
+                    return false;
+                } else {
+                    tile = tiles.removeFirst();
+                    page = readTile(tile).iterator();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature feature = next;
+            next = null;
+            return feature;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            tiles.clear();
+            page = Collections.<SimpleFeature> emptyList().iterator();
+        }
+
+        /**
+         * @return the features of the tile, empty if the tile has been split
+         */
+        private List<SimpleFeature> readTile(Tile tile) {
+            boolean limited = tile.depth < MAX_DEPTH && tilesRead < MAX_TILES;
+            tilesRead++;
+            List<SimpleFeature> features = fetch(tile, limited);
+            if (limited && features.size() > pageSize) {
+                if (coveringFeatures(features, tile) * 2 >= features.size()) {
+                    // the quarters would return these features again, the tiles would be split forever
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("More than " + pageSize + " features in " + tile.envelope
+                                + ", mostly covering it: the tile is read without limit");
+                    }
+                    tilesRead++;
+                    return fetch(tile, false);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("More than " + pageSize + " features in " + tile.envelope + ", the tile is split");
+                }
+                split(tile);
+                return Collections.emptyList();
+            }
+            return features;
+        }
+
+        /**
+         * @return the number of features whose envelope contains the tile
+         */
+        private int coveringFeatures(List<SimpleFeature> features, Tile tile) {
+            int covering = 0;
+            for (SimpleFeature feature : features) {
+                Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                if (geometry != null && geometry.getEnvelopeInternal().contains(tile.envelope)) {
+                    covering++;
+                }
+            }
+            return covering;
+        }
+
+        private void split(Tile tile) {
+            ReferencedEnvelope e = tile.envelope;
+            double midX = e.getMinX() + e.getWidth() / 2;
+            double midY = e.getMinY() + e.getHeight() / 2;
+            int depth = tile.depth + 1;
+            // inserted in reverse order, to be read before the remaining tiles
+            tiles.addFirst(new Tile(new ReferencedEnvelope(midX, e.getMaxX(), midY, e.getMaxY(), e.getCoordinateReferenceSystem()), depth));
+            tiles.addFirst(new Tile(new ReferencedEnvelope(e.getMinX(), midX, midY, e.getMaxY(), e.getCoordinateReferenceSystem()), depth));
+            tiles.addFirst(new Tile(new ReferencedEnvelope(midX, e.getMaxX(), e.getMinY(), midY, e.getCoordinateReferenceSystem()), depth));
+            tiles.addFirst(new Tile(new ReferencedEnvelope(e.getMinX(), midX, e.getMinY(), midY, e.getCoordinateReferenceSystem()), depth));
+        }
+
+        /**
+         * Requests the features of the tile, again if the request fails.
+         *
+         * @param limited true to request one feature more than a page, false to request all the features
+         */
+        private List<SimpleFeature> fetch(Tile tile, boolean limited) {
+            Query tileQuery = new Query(query);
+            tileQuery.setFilter(WfsExtractor.intersects(geometryName, tile.envelope, epsgCode));
+            // read in the projection of the tiles, see reproject()
+            tileQuery.setCoordinateSystemReproject(null);
+            if (limited) {
+                tileQuery.setMaxFeatures(pageSize + 1);
+            }
+            for (int attempt = 1;; attempt++) {
+                try {
+                    return read(tileQuery);
+                } catch (Exception e) {
+                    if (attempt >= attempts) {
+                        throw new RuntimeException("Unable to read the features of " + source.getName().getLocalPart()
+                                + " in " + tile.envelope, e);
+                    }
+                    LOG.warn("Attempt " + attempt + " to read the features of " + source.getName().getLocalPart()
+                            + " in " + tile.envelope + " failed, trying again", e);
+                }
+            }
+        }
+
+        private List<SimpleFeature> read(Query tileQuery) throws IOException {
+            List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+            SimpleFeatureIterator it = source.getFeatures(tileQuery).features();
+            try {
+                while (it.hasNext()) {
+                    features.add(it.next());
+                }
+            } finally {
+                it.close();
+            }
+            return features;
+        }
+    }
+
+    /**
+     * @return true if the reference point of the feature is in the tile: the
+     *         feature is kept in this tile only
+     */
+    private boolean isInTile(SimpleFeature feature, Tile tile) {
+        Geometry geometry = (Geometry) feature.getDefaultGeometry();
+        if (geometry == null || geometry.isEmpty()) {
+            // returned by every tile, kept in the first one
+            return contains(tile.envelope, bbox.getMinX(), bbox.getMinY());
+        }
+        Envelope envelope = geometry.getEnvelopeInternal();
+        if (contains(tile.envelope, envelope.getMinX(), envelope.getMinY())
+                && contains(tile.envelope, envelope.getMaxX(), envelope.getMaxY())) {
+            // in this tile only
+            return true;
+        }
+        Coordinate point = referencePoint(geometry);
+        // kept (maybe twice) rather than lost if it has no reference point
+        return point == null || contains(tile.envelope, point.x, point.y);
+    }
+
+    /**
+     * A point of the geometry in the bbox, which does not depend on the tiles:
+     * the tile containing it intersects the geometry, thus returns the feature.
+     *
+     * @return the first vertex of the geometry in the bbox, or a point of its
+     *         intersection with the bbox, null if it cannot be computed
+     */
+    private Coordinate referencePoint(Geometry geometry) {
+        for (Coordinate vertex : geometry.getCoordinates()) {
+            if (bbox.contains(vertex.x, vertex.y)) {
+                return vertex;
+            }
+        }
+        // the geometry crosses the bbox without a vertex in it
+        try {
+            Geometry inBBox = geometry.intersection(bboxGeometry);
+            return inBBox.isEmpty() ? null : inBBox.getCoordinate();
+        } catch (RuntimeException e) {
+            LOG.debug("Unable to intersect an invalid geometry with " + bbox, e);
+            return null;
+        }
+    }
+
+    /**
+     * The tiles do not overlap: they contain their lower edges, and their upper
+     * edges only on the edges of the bbox.
+     */
+    private boolean contains(ReferencedEnvelope tile, double x, double y) {
+        return x >= tile.getMinX() && (x < tile.getMaxX() || (x == tile.getMaxX() && x >= bbox.getMaxX()))
+                && y >= tile.getMinY() && (y < tile.getMaxY() || (y == tile.getMaxY() && y >= bbox.getMaxY()));
+    }
+
+    private SimpleFeature reproject(SimpleFeature feature) {
+        if (transform == null) {
+            return feature;
+        }
+        Object[] values = feature.getAttributes().toArray();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] instanceof Geometry) {
+                try {
+                    values[i] = JTS.transform((Geometry) values[i], transform);
+                } catch (Exception e) {
+                    throw new RuntimeException("Unable to reproject the feature " + feature.getID(), e);
+                }
+            }
+        }
+        return SimpleFeatureBuilder.build(getSchema(), values, feature.getID());
+    }
+}
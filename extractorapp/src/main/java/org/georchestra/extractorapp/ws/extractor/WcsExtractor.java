@@ -5,7 +5,6 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpHost;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.georchestra.extractorapp.ws.extractor.wcs.WcsCoverageReader;
 import org.georchestra.extractorapp.ws.extractor.wcs.WcsFormat;
@@ -20,7 +19,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.regex.Pattern;
 
 
 /**
@@ -50,9 +48,10 @@ public class WcsExtractor {
         HttpClientContext localContext = HttpClientContext.create();
         final HttpHost httpHost = new HttpHost(capabilitiesURL.getHost(), capabilitiesURL.getPort(), capabilitiesURL.getProtocol());
         HttpGet get = new HttpGet(capabilitiesURL.toExternalForm());
-        if (username != null && (secureHost.equalsIgnoreCase(request._url.getHost())
+        boolean impersonate = username != null && (secureHost.equalsIgnoreCase(request._url.getHost())
             || "127.0.0.1".equalsIgnoreCase(request._url.getHost())
-            || "localhost".equalsIgnoreCase(request._url.getHost()))) {
+            || "localhost".equalsIgnoreCase(request._url.getHost()));
+        if (impersonate) {
             LOG.debug(getClass().getSimpleName() + ".checkPermission - Secured Server: adding username header and role headers to " +
                       "request for checkPermission");
 
@@ -68,15 +67,14 @@ public class WcsExtractor {
             LOG.debug(getClass().getSimpleName() + "checkPermission - Non Secured Server");
         }
 
-        final CloseableHttpClient httpclient = httpClientBuilder.build();
-        String capabilities = FileUtils.asString(httpclient.execute(httpHost, get, localContext).getEntity().getContent());
+        CapabilitiesCache.Document capabilities = WfsExtractor.capabilities(httpClientBuilder.build(), httpHost, get,
+                localContext, impersonate ? username : null, impersonate ? roles : null);
 
-        Pattern regex = Pattern.compile("(?m)<Layer[^>]*>(\\\\n|\\s)*<Name>\\s*(\\w*:)?" + Pattern.quote(request._layerName) + "\\s*</Name>");
-        boolean permitted = regex.matcher(capabilities).find();
+        boolean permitted = capabilities.containsLayer("Layer", request._layerName);
 
         if (!permitted) {
             throw new SecurityException("User does not have sufficient privileges to access the Layer: " + request._layerName + ". " +
-                                        "\n\nCapabilties:  " + capabilities);
+                                        "\n\nCapabilties:  " + capabilities.getContent());
         }
     }
 	
@@ -8,11 +8,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
@@ -28,6 +29,7 @@ import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.wfs.WFSDataStoreFactory;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.GeoTools;
@@ -105,10 +107,17 @@ public class WfsExtractor {
         }
     }
 
+    /** maximum number of features requested at once by default */
+    public static final int DEFAULT_PAGE_SIZE = 10000;
+
+    /** number of times the request of a page is sent before the extraction fails */
+    private static final int PAGE_ATTEMPTS = 3;
+
     private final File          _basedir;
     private final String _adminUsername;
     private final String _adminPassword;
     private final String _secureHost;
+    private int _pageSize = DEFAULT_PAGE_SIZE;
 
     /**
      *
@@ -134,6 +143,14 @@ public class WfsExtractor {
         this._secureHost = secureHost;
     }
 
+    /**
+     * @param pageSize maximum number of features requested at once, the bbox is divided in tiles
+     *        holding at most this number of features. 0 to request all the features at once.
+     */
+    public void setPageSize (int pageSize) {
+        this._pageSize = pageSize;
+    }
+
     public void checkPermission(ExtractorLayerRequest request, String secureHost, String username, String roles) throws IOException {
         URL capabilitiesURL = request.capabilitiesURL("WFS", "1.0.0");
 
@@ -143,9 +160,10 @@ public class WfsExtractor {
         final HttpHost httpHost = new HttpHost(capabilitiesURL.getHost(), capabilitiesURL.getPort(), capabilitiesURL.getProtocol());
 
     	HttpGet get = new HttpGet(capabilitiesURL.toExternalForm());
-        if(username != null && (secureHost.equalsIgnoreCase(request._url.getHost())
+        boolean impersonate = username != null && (secureHost.equalsIgnoreCase(request._url.getHost())
                 || "127.0.0.1".equalsIgnoreCase(request._url.getHost())
-                || "localhost".equalsIgnoreCase(request._url.getHost()))) {
+                || "localhost".equalsIgnoreCase(request._url.getHost()));
+        if(impersonate) {
         	LOG.debug("WfsExtractor.checkPermission - Secured Server: adding username header and role headers to request for checkPermission");
 
             addImpersonateUserHeaders(username, roles, get);
@@ -155,16 +173,40 @@ public class WfsExtractor {
         	LOG.debug("WfsExtractor.checkPermission - Non Secured Server");
         }
 
-        final CloseableHttpClient httpclient = httpClientBuilder.build();
-        String capabilities = FileUtils.asString(httpclient.execute(httpHost, get, localContext).getEntity().getContent());
-        Pattern regex = Pattern.compile("(?m)<FeatureType[^>]*>(\\\\n|\\s)*<Name>\\s*(\\w*:)?"+Pattern.quote(request._layerName)+"\\s*</Name>");
-        boolean permitted = regex.matcher(capabilities).find();
+        CapabilitiesCache.Document capabilities = capabilities(httpClientBuilder.build(), httpHost, get, localContext,
+                impersonate ? username : null, impersonate ? roles : null);
+        boolean permitted = capabilities.containsLayer("FeatureType", request._layerName);
 
         if(!permitted) {
-            throw new SecurityException("User does not have sufficient privileges to access the Layer: "+request._layerName+". \n\nCapabilties:  "+capabilities);
+            throw new SecurityException("User does not have sufficient privileges to access the Layer: "+request._layerName+". \n\nCapabilties:  "+capabilities.getContent());
         }
     }
 
+    /**
+     * Downloads the capabilities document, unless the same user got it recently (see {@link CapabilitiesCache})
+     *
+     * @param username the impersonated user, null if the request is anonymous
+     * @param roles the roles of the impersonated user
+     */
+    static CapabilitiesCache.Document capabilities(final CloseableHttpClient httpclient, final HttpHost httpHost, final HttpGet get,
+            final HttpClientContext localContext, String username, String roles) throws IOException {
+        return CapabilitiesCache.shared().get(get.getURI().toString(), username, roles, new CapabilitiesCache.Loader() {
+            @Override
+            public String load() throws IOException {
+                HttpResponse response = httpclient.execute(httpHost, get, localContext);
+                int status = response.getStatusLine().getStatusCode();
+                String content = FileUtils.asString(response.getEntity().getContent());
+                // the errors are not cached
+                if (status == HttpStatus.SC_UNAUTHORIZED || status == HttpStatus.SC_FORBIDDEN) {
+                    throw new SecurityException("User does not have sufficient privileges to access " + get.getURI() + ": " + content);
+                } else if (status >= 400) {
+                    throw new IOException("Unable to get " + get.getURI() + " (status " + status + "): " + content);
+                }
+                return content;
+            }
+        });
+    }
+
     public static void addImpersonateUserHeaders(String username, String roles, HttpGet get) {
         get.addHeader("imp-username", username);
         if(roles != null) get.addHeader("imp-roles", roles);
@@ -220,7 +262,15 @@ public class WfsExtractor {
         DataStore sourceDs = DataStoreFinder.getDataStore(params);
         SimpleFeatureType sourceSchema = sourceDs.getSchema (request.getWFSName());
         Query query = createQuery(request, sourceSchema);
-		SimpleFeatureCollection features = sourceDs.getFeatureSource(request.getWFSName()).getFeatures(query);
+        SimpleFeatureSource source = sourceDs.getFeatureSource(request.getWFSName());
+        SimpleFeatureCollection features;
+        if (_pageSize > 0) {
+            // large layers are read by tiles rather than in a single response
+            ReferencedEnvelope bbox = sourceBBox(request, sourceSchema);
+            features = new TiledFeatureCollection(source, query, bbox, epsgCode(bbox), _pageSize, PAGE_ATTEMPTS);
+        } else {
+            features = source.getFeatures(query);
+        }
 
         ProgressListener progressListener = new NullProgressListener () {
             @Override
@@ -234,7 +284,10 @@ public class WfsExtractor {
 
         FeatureWriterStrategy featuresWriter;
         BBoxWriter bboxWriter;
-        LOG.debug("Number of features returned : " + features.size());
+        if (LOG.isDebugEnabled() && _pageSize <= 0) {
+            // the tiled collections would have to read the whole layer to count it
+            LOG.debug("Number of features returned : " + features.size());
+        }
         if ("shp".equalsIgnoreCase(request._format)) {
             featuresWriter = new ShpFeatureWriter(progressListener, sourceSchema, basedir, features);
         	bboxWriter = new BBoxWriter(request._bbox, basedir, OGRFeatureWriter.FileFormat.shp, request._projection, progressListener );
@@ -265,21 +318,8 @@ public class WfsExtractor {
         switch (request._owsType) {
         case WFS:
 
-            // bbox may not be in the same projection as the data so it sometimes necessary to reproject the request BBOX
-            ReferencedEnvelope bbox = request._bbox;
-            if (schema.getCoordinateReferenceSystem () != null) {
-                bbox = request._bbox.transform (schema.getCoordinateReferenceSystem (), true, 10);
-            }
-
-            FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2 (GeoTools.getDefaultHints ());
-            String propertyName = schema.getGeometryDescriptor ().getLocalName ();
-            PropertyName geomProperty = filterFactory.property (propertyName);
-            Geometry bboxGeom = new GeometryFactory ().toGeometry (bbox);
-            String epsgCode = "EPSG:"+CRS.lookupEpsgCode(bbox.getCoordinateReferenceSystem(),false);
-            bboxGeom.setUserData(epsgCode);
-
-            Literal geometry = filterFactory.literal (bboxGeom);
-            Intersects filter = filterFactory.intersects (geomProperty, geometry);
+            ReferencedEnvelope bbox = sourceBBox(request, schema);
+            Intersects filter = intersects(schema.getGeometryDescriptor ().getLocalName (), bbox, epsgCode(bbox));
 
             List<String> properties = new ArrayList<String> ();
             for (PropertyDescriptor desc : schema.getDescriptors ()) {
@@ -302,4 +342,33 @@ public class WfsExtractor {
             return null;
         }
     }
+
+    /**
+     * bbox may not be in the same projection as the data so it sometimes necessary to reproject the request BBOX
+     */
+    private static ReferencedEnvelope sourceBBox (ExtractorLayerRequest request, FeatureType schema)
+            throws TransformException, FactoryException {
+        ReferencedEnvelope bbox = request._bbox;
+        if (schema.getCoordinateReferenceSystem () != null) {
+            bbox = request._bbox.transform (schema.getCoordinateReferenceSystem (), true, 10);
+        }
+        return bbox;
+    }
+
+    private static String epsgCode (ReferencedEnvelope bbox) throws FactoryException {
+        return "EPSG:"+CRS.lookupEpsgCode(bbox.getCoordinateReferenceSystem(),false);
+    }
+
+    /**
+     * @return the filter selecting the features whose geometry intersects the bbox
+     */
+    static Intersects intersects (String propertyName, ReferencedEnvelope bbox, String epsgCode) {
+        FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2 (GeoTools.getDefaultHints ());
+        PropertyName geomProperty = filterFactory.property (propertyName);
+        Geometry bboxGeom = new GeometryFactory ().toGeometry (bbox);
+        bboxGeom.setUserData(epsgCode);
+
+        Literal geometry = filterFactory.literal (bboxGeom);
+        return filterFactory.intersects (geomProperty, geometry);
+    }
 }
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -14,8 +15,8 @@ import org.geotools.data.DataStore;
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.FeatureStore;
 import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.feature.AttributeTypeBuilder;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.opengis.feature.Feature;
@@ -39,19 +40,45 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
  * the same file.  So in this example the two attributes will be modified so the featuretype will have 'attribute' and
  * 'ATTRIBUTE2' as attributes instead.
  * 
+ * The features are buffered by geometry type and added to the datastores by
+ * batches of {@link #DEFAULT_BATCH_SIZE} features, the remaining features are
+ * added by {@link #close()}. The transaction is committed before it holds more
+ * than {@link #MAX_TRANSACTION_FEATURES} features.
+ * 
  * @author jeichar
  */
 public class WriteFeatures implements FeatureVisitor {
 
-    private static final int                                                    MAX_TRANSACTION_FEATURES = 200000;
+    static final int                                                            MAX_TRANSACTION_FEATURES = 200000;
+    static final int                                                            DEFAULT_BATCH_SIZE = 1000;
     private final SimpleFeatureType                                             _type;
-    private final Map<GeomType, FeatureStore<SimpleFeatureType, SimpleFeature>> _dsFiles;
+    private final Map<GeomType, Batch>                                          _dsFiles;
     private final File                                                          _baseDir;
     private final ArrayList<File>                                               _files          = new ArrayList<File>();
     private final Map<String, String>                                           _attNameMapping = new HashMap<String, String>();
     private final DatastoreFactory                                              _dsFactory;
     private final Transaction                                                   _transaction;
     private int                                                                 _featuresInTransaction = 0;
+    private final int                                                           _batchSize;
+    private final int                                                           _maxTransactionFeatures;
+    private Class<?>                                                            _lastGeomClass;
+    private Batch                                                               _lastBatch;
+
+    /**
+     * The features of a geometry type waiting to be added to their datastore.
+     * The feature builder is reused for all the features.
+     */
+    private static final class Batch {
+        final FeatureStore<SimpleFeatureType, SimpleFeature> store;
+        final SimpleFeatureBuilder                         builder;
+        final List<SimpleFeature>                          features;
+
+        Batch (FeatureStore<SimpleFeatureType, SimpleFeature> store, int batchSize) {
+            this.store = store;
+            this.builder = new SimpleFeatureBuilder (store.getSchema ());
+            this.features = new ArrayList<SimpleFeature> (batchSize);
+        }
+    }
 
     /**
      * @param type the featuretype definition of the layer being read from (source layer)
@@ -60,7 +87,18 @@ public class WriteFeatures implements FeatureVisitor {
      */
     public WriteFeatures (SimpleFeatureType type, File baseDir, 
             CoordinateReferenceSystem outputProjection, DatastoreFactory dsFactory) {
+        this (type, baseDir, outputProjection, dsFactory, DEFAULT_BATCH_SIZE, MAX_TRANSACTION_FEATURES);
+    }
+
+    /**
+     * @param batchSize number of features added at once to a datastore
+     * @param maxTransactionFeatures number of features added before the transaction is committed
+     */
+    WriteFeatures (SimpleFeatureType type, File baseDir, CoordinateReferenceSystem outputProjection,
+            DatastoreFactory dsFactory, int batchSize, int maxTransactionFeatures) {
         _dsFactory = dsFactory;
+        _batchSize = batchSize;
+        _maxTransactionFeatures = maxTransactionFeatures;
         _transaction = new DefaultTransaction();
         SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder ();
         builder.setName (type.getName ());
@@ -71,7 +109,7 @@ public class WriteFeatures implements FeatureVisitor {
         addNonGeomAttributes(type, builder, usedAttNames, dsFactory);
         
         _type = builder.buildFeatureType ();
-        _dsFiles = new HashMap<GeomType, FeatureStore<SimpleFeatureType, SimpleFeature>>();
+        _dsFiles = new HashMap<GeomType, Batch>();
         _baseDir = baseDir;
     }
 
@@ -124,25 +162,35 @@ public class WriteFeatures implements FeatureVisitor {
             SimpleFeature simpleFeature = (SimpleFeature)feature;
             Object defaultGeometry = simpleFeature.getDefaultGeometry ();
 
-            GeomType geomType = WfsExtractor.GeomType.lookup (defaultGeometry.getClass ());
-            
-            FeatureStore<SimpleFeatureType, SimpleFeature> dsFile = getDatastore (geomType, simpleFeature.getFeatureType ().getTypeName ());
-
-            SimpleFeature copy = copyFeature (simpleFeature, dsFile.getSchema ());
-
-            DefaultFeatureCollection collection = new DefaultFeatureCollection(null, null);
+            // the features of a layer have usually the same geometry class
+            Batch batch;
+            if (defaultGeometry.getClass () == _lastGeomClass) {
+                batch = _lastBatch;
+            } else {
+                GeomType geomType = WfsExtractor.GeomType.lookup (defaultGeometry.getClass ());
+                batch = getBatch (geomType, simpleFeature.getFeatureType ().getTypeName ());
+                _lastGeomClass = defaultGeometry.getClass ();
+                _lastBatch = batch;
+            }
 
-            collection.add(copy);
-            
-            dsFile.addFeatures (collection);
+            batch.features.add (copyFeature (simpleFeature, batch.builder));
+            if (batch.features.size () >= _batchSize) {
+                flush (batch);
+            }
         } catch (IOException e) {
             throw new RuntimeException (e);
         }
     }
     
     public void close() throws IOException {
-        _transaction.commit();
-        _transaction.close();
+        try {
+            for (Batch batch : _dsFiles.values ()) {
+                flush (batch);
+            }
+            _transaction.commit();
+        } finally {
+            _transaction.close();
+        }
     }
     
     /**
@@ -158,26 +206,38 @@ public class WriteFeatures implements FeatureVisitor {
     /* -------------------  Private Methods  -------------------------------*/
     
     /* -------------------  Support methods for visit  -------------------------------*/
-    private SimpleFeature copyFeature (SimpleFeature simpleFeature, SimpleFeatureType baseType) throws IOException {
-        if(_featuresInTransaction>MAX_TRANSACTION_FEATURES){
-            _featuresInTransaction = 0;
-            _transaction.commit();
-        }
-        _featuresInTransaction  += 1;
+    private SimpleFeature copyFeature (SimpleFeature simpleFeature, SimpleFeatureBuilder builder) {
         String id = simpleFeature.getIdentifier ().getID ();
-        SimpleFeatureBuilder builder = new SimpleFeatureBuilder (baseType);
         Set<Entry<String, String>> entries = _attNameMapping.entrySet ();
         for (Entry<String, String> entry : entries) {
             Object value = simpleFeature.getAttribute (entry.getKey ());
             builder.set (entry.getValue (),value);
         }
+        // buildFeature resets the builder for the next feature
         SimpleFeature copy = builder.buildFeature (id);
         return copy;
     }
 
-    private FeatureStore<SimpleFeatureType, SimpleFeature> getDatastore (GeomType geomType, String baseName) throws IOException {
-        FeatureStore<SimpleFeatureType, SimpleFeature> fs = _dsFiles.get (geomType);
-        if (fs == null) {
+    /**
+     * Adds the buffered features to the datastore, committing the transaction
+     * when it holds too many features.
+     */
+    private void flush (Batch batch) throws IOException {
+        if (batch.features.isEmpty ()) {
+            return;
+        }
+        if (_featuresInTransaction + batch.features.size () > _maxTransactionFeatures) {
+            _featuresInTransaction = 0;
+            _transaction.commit();
+        }
+        _featuresInTransaction += batch.features.size ();
+        batch.store.addFeatures (new ListFeatureCollection (batch.store.getSchema (), batch.features));
+        batch.features.clear ();
+    }
+
+    private Batch getBatch (GeomType geomType, String baseName) throws IOException {
+        Batch batch = _dsFiles.get (geomType);
+        if (batch == null) {
             String newName = _type.getTypeName();
             newName = FileUtils.toSafeFileName(baseName + "_" + geomType);
             File file = new File(_baseDir, newName + "." + _dsFactory.extension());
@@ -188,12 +248,13 @@ public class WriteFeatures implements FeatureVisitor {
             SimpleFeatureType updatedFeatureType = updateFeatureTypeGeom (newName, geomType);
 
             DataStore ds = _dsFactory.create(file, updatedFeatureType);
-            fs = (FeatureStore<SimpleFeatureType, SimpleFeature>) ds.getFeatureSource(newName);
+            FeatureStore<SimpleFeatureType, SimpleFeature> fs = (FeatureStore<SimpleFeatureType, SimpleFeature>) ds.getFeatureSource(newName);
             fs.setTransaction(_transaction);
-            _dsFiles.put (geomType, fs);
+            batch = new Batch (fs, _batchSize);
+            _dsFiles.put (geomType, batch);
             _files.add (file);
         }
-        return fs;
+        return batch;
     }
 
     private SimpleFeatureType updateFeatureTypeGeom (String newName, GeomType geomType) {
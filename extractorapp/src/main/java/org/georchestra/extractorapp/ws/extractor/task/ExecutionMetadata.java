@@ -2,7 +2,6 @@ package org.georchestra.extractorapp.ws.extractor.task;
 
 import java.util.Date;
 import java.util.UUID;
-import java.util.concurrent.Future;
 
 public class ExecutionMetadata {
 
@@ -19,8 +18,6 @@ public class ExecutionMetadata {
 	private final String requests;
     private final String uuid;
 
-    private Future<?> future = new PlaceholderFuture();
-
 
 	public ExecutionMetadata(UUID requestUuid, String userName, Date date,  String requests) {
         this.uuid = requestUuid.toString();
@@ -37,7 +34,6 @@ public class ExecutionMetadata {
         this.requestTime = toCopy.requestTime;
         this.requestor = toCopy.requestor;
         this.priority = toCopy.priority;
-        this.future = toCopy.future;
         this.uuid = toCopy.uuid;
         this.requests = toCopy.requests;
     }
@@ -106,14 +102,6 @@ public class ExecutionMetadata {
     public synchronized void setPriority(ExecutionPriority priority) {
         this.priority = priority;
     }
-    public
-    synchronized void setFuture(Future<?> future) {
-        this.future = future;
-    }
-
-    public synchronized Future<?> getFuture() {
-        return this.future;
-    }
 
     public synchronized boolean isCompleted() {
         return ExecutionState.COMPLETED == state;
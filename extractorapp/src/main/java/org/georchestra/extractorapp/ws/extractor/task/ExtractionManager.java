@@ -1,50 +1,73 @@
 package org.georchestra.extractorapp.ws.extractor.task;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Queue;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.ExtractionArchive;
+import org.georchestra.extractorapp.ws.extractor.WfsExtractor;
 
 
+/**
+ * Schedules the extraction tasks.
+ * <p>
+ * The tasks are indexed by uuid and the waiting tasks are kept sorted by
+ * priority (then by submission order) in a tree, so that finding, pausing,
+ * cancelling or re-prioritising a task costs O(log n) whatever the length of
+ * the queue. The executor does not hold the tasks: it runs a
+ * {@link NextTaskRunner} per waiting task, which takes the first waiting task
+ * when a thread is available. Thus a change of priority only moves the task in
+ * the tree, the executor queue is never searched nor purged.
+ * </p>
+ */
 public class ExtractionManager {
-	
+
     private static final Log LOG = LogFactory.getLog(ExtractionManager.class.getPackage().getName());
-    
-    private PriorityThreadPoolExecutor executor;
+
+    private ThreadPoolExecutor executor;
     private int maxExtractions;
     private int minThreads;
+    private int maxParallelLayers = 1;
+    private int maxRequestsPerHost = 0;
+    private HostLimiter hostLimiter;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Set<String> storedExtensions = ExtractionArchive.DEFAULT_STORED_EXTENSIONS;
+    private int wfsPageSize = WfsExtractor.DEFAULT_PAGE_SIZE;
+    private LayerCache layerCache;
+
+    /** all the tasks (waiting, running, paused, completed or cancelled) until they expire, by uuid */
+    private final Map<String, ExtractionTask> tasks = new LinkedHashMap<String, ExtractionTask>();
+
+    /** the waiting tasks, in execution order (see {@link ExtractionTask#compareTo(ExtractionTask)}) */
+    private final NavigableSet<ExtractionTask> waitingTasks = new TreeSet<ExtractionTask>();
+
+    /** gives the submission order of the waiting tasks with the same priority */
+    private long nextSequence;
+
+    /** number of {@link NextTaskRunner} submitted to the executor and not started yet */
+    private int pendingRunners;
+
+    /** records the unfinished tasks, null if they are not restored after a restart */
+    private TaskJournal journal;
 
-    // ThreadPoolExecutor API says that the internal queue should not be
-    // accessed except for debugging so this
-    // queue is here so that the non-running tasks can be accessed
-    
-    /** maintains the tasks ready to execute */
-    /** comparison by priorities */
-
-    private final static int INITIAL_CAPACITY = 20;
-    private Queue<ExtractionTask> readyTaskQueue = new PriorityBlockingQueue<ExtractionTask>(INITIAL_CAPACITY); 
-    
-    private Collection<ExtractionTask> cancelledTaskQueue = new PriorityBlockingQueue<ExtractionTask>();
-    
-    /** maintains the paused tasks. They can be selected by the user in random way */
-    private Map<String, ExtractionTask> pausedTasks = Collections.synchronizedMap(new HashMap<String, ExtractionTask>());
-    
     public synchronized void init() {
-        BlockingQueue<Runnable> workQueue = new PriorityBlockingQueue<Runnable>();
         ThreadFactory threadFactory = new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -55,8 +78,30 @@ public class ExtractionManager {
                 return thread;
             }
         };
-        executor = new PriorityThreadPoolExecutor(minThreads, maxExtractions, 5,
-                TimeUnit.SECONDS, workQueue, threadFactory);
+        executor = new ThreadPoolExecutor(minThreads, maxExtractions, 5,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        // a task can always extract one layer, only its extra layers are limited
+        hostLimiter = maxRequestsPerHost > 0 && maxParallelLayers > 1 ? new HostLimiter(maxRequestsPerHost) : null;
+    }
+
+    public synchronized void destroy() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Sets the journal where the tasks are recorded until they are finished.
+     */
+    public void setJournal(TaskJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the journal of the unfinished tasks, null if there is none
+     */
+    public TaskJournal getJournal() {
+        return journal;
     }
 
     public void setMaxExtractions(int maxExtractions) {
@@ -67,143 +112,240 @@ public class ExtractionManager {
         this.minThreads = minThreads;
     }
 
+    /**
+     * @param maxParallelLayers maximum number of layers of a task extracted at the same time (default 1)
+     */
+    public void setMaxParallelLayers(int maxParallelLayers) {
+        this.maxParallelLayers = maxParallelLayers;
+    }
+
+    /**
+     * @param maxRequestsPerHost maximum number of layers extracted at the same time from the
+     *        same server by all the tasks, on top of the first layer of each task, which is
+     *        never limited (default 0, no limit)
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    /**
+     * @param compressionLevel deflate level of the archives, from 0 (no compression) to 9 (default 6)
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param storedExtensions extensions of the files archived without compression because they
+     *        are already compressed (jpg, png, zip... by default)
+     */
+    public void setStoredExtensions(Set<String> storedExtensions) {
+        Set<String> extensions = new HashSet<String>();
+        for (String extension : storedExtensions) {
+            extensions.add(extension.toLowerCase(Locale.ENGLISH));
+        }
+        this.storedExtensions = extensions;
+    }
+
+    /**
+     * @param wfsPageSize maximum number of features requested at once from a WFS, the larger
+     *        layers are read by tiles (default 10000, 0 to read a layer in a single request)
+     */
+    public void setWfsPageSize(int wfsPageSize) {
+        this.wfsPageSize = wfsPageSize;
+    }
+
+    /**
+     * @param layerCache the cache of the extracted layers, so that a layer requested again is not
+     *        downloaded again (no cache by default)
+     */
+    public void setLayerCache(LayerCache layerCache) {
+        this.layerCache = layerCache;
+    }
+
+    /**
+     * Runs the first waiting task. There is at least one runner per waiting
+     * task, the runners left by the paused or cancelled tasks run nothing.
+     */
+    private final class NextTaskRunner implements Runnable {
+        @Override
+        public void run() {
+            ExtractionTask task = takeNextTask();
+            if (task == null) {
+                return;
+            }
+            try {
+                task.setParallelism(maxParallelLayers, hostLimiter);
+                task.setArchiveOptions(compressionLevel, storedExtensions);
+                task.setWfsPageSize(wfsPageSize);
+                task.setLayerCache(layerCache);
+                task.run();
+            } finally {
+                if (task.executionMetadata.isCompleted()) {
+                    journalFinished(task);
+                }
+            }
+        }
+    }
+
+    private synchronized ExtractionTask takeNextTask() {
+        pendingRunners--;
+        return waitingTasks.pollFirst();
+    }
+
+    /**
+     * Submits a new task and records it in the journal, so that it is submitted
+     * again if the server restarts before it is finished.
+     *
+     * @param extractor
+     * @param headers the security headers of the request, needed to restore the task
+     */
+	public synchronized void submit(ExtractionTask extractor, Map<String, String> headers) {
+
+		if (this.journal != null) {
+			this.journal.submitted(extractor.executionMetadata, extractor.executionMetadata.getSpec(), headers);
+		}
+		submit(extractor);
+	}
+
+	/**
+	 * Submits a task read from the journal, in the state and with the priority it had.
+	 *
+	 * @param extractor
+	 * @param entry
+	 */
+	public synchronized void restore(ExtractionTask extractor, TaskJournal.Entry entry) {
+
+		extractor.executionMetadata.setPriority(entry.getPriority());
+		if (entry.getState() == ExecutionState.PAUSED) {
+			extractor.executionMetadata.setPaused();
+			this.tasks.put(entry.getUuid(), extractor);
+		} else {
+			submit(extractor);
+		}
+	}
+
     /**
      * Submits the task taking into account the task priorities.
-     * 
+     *
      * @param newTask
-     * @throws Exception 
+     * @throws Exception
      */
 	public synchronized void submit(ExtractionTask extractor) {
 
-		// creates the waiting task queue ordered by priority task
-		this.readyTaskQueue.offer(extractor);
+		this.tasks.put(extractor.executionMetadata.getUuid(), extractor);
+		schedule(extractor);
+	}
 
-		Future<?> future = executor.submit(extractor);
-		extractor.executionMetadata.setFuture(future);
+	/**
+	 * Inserts the waiting task in the queue and makes sure a runner will take it.
+	 */
+	private void schedule(ExtractionTask task) {
+		enqueue(task);
+		if (this.pendingRunners < this.waitingTasks.size()) {
+			this.pendingRunners++;
+			this.executor.execute(new NextTaskRunner());
+		}
 	}
 
+	/**
+	 * Inserts the task after the waiting tasks with the same priority.
+	 */
+	private void enqueue(ExtractionTask task) {
+		task.sequence = this.nextSequence++;
+		this.waitingTasks.add(task);
+	}
 
     /**
      * Updates the priority if the task is in waiting status.
-     * 
-     * @param id	identification of required id		
+     *
+     * @param id	identification of required id
      * @param newPriority
      */
     public synchronized void updatePriority(final String id, final ExecutionPriority newPriority) {
-    	
-        // search in the waiting tasks and updates the priority of the task
-        ExtractionTask foundTask = null;
-		for (ExtractionTask task : this.readyTaskQueue) {
-			if(task.executionMetadata.getState().equals(ExecutionState.WAITING) ){
-				Future<?> future = task.executionMetadata.getFuture();
-				if(!future.isCancelled() && !future.isDone()){					
-		            if (task.equalId(id)) {
-		            	foundTask = task;
-		            	break;
-		            }
-				}
-			}
+
+        ExtractionTask foundTask = this.tasks.get(id);
+        if (foundTask == null) {
+            return;
         }
-		if(foundTask != null){
-            // sets the new priority and reinsert the task
-//			this.readyTaskQueue.remove(foundTask);
-//
-//			foundTask.executionMetadata.setPriority(newPriority);
-//			
-//			this.readyTaskQueue.offer(foundTask);
-			
-// XXX the commented lines where replaced by de following, looks like the ClassCastException was solved. Requires more test.
-// the following code throws a ClassCastException: java.util.concurrent.FutureTask cannot be cast to java.lang.Comparable			
-			foundTask.executionMetadata.setPriority(newPriority);
-			ExtractionTask taskCloned = new ExtractionTask(foundTask);
-		
-			foundTask.executionMetadata.getFuture().cancel(true);
-			this.executor.remove(foundTask);
-			this.executor.purge();
-			this.readyTaskQueue.remove(foundTask);
-			
-			submit(taskCloned);
-			
-			
+        if (this.waitingTasks.remove(foundTask)) {
+            // the priority is part of the ordering, it is changed out of the queue
+            foundTask.executionMetadata.setPriority(newPriority);
+            enqueue(foundTask);
+        } else if (foundTask.executionMetadata.isPaused()) {
+            foundTask.executionMetadata.setPriority(newPriority);
         } else {
-        	// searches if the task is in the paused queue
-        	ExtractionTask pausedTask = this.pausedTasks.get(id);
-        	if(pausedTask != null){
-            	pausedTask.executionMetadata.setPriority(newPriority);
-        	}
+            return;
+        }
+        if (this.journal != null) {
+            this.journal.priorityChanged(id, newPriority);
         }
     }
 
-    
-
 	/**
-     * Will set priorities of all tasks to MEDIUM and re-add all waiting tasks back to the queue in the order of the uuids in newOrder.  
-     * If a uuid is not the newOrder it will be deleted from the queue. 
-     * 
+     * Will set priorities of all tasks to MEDIUM and re-add all waiting tasks back to the queue in the order of the uuids in newOrder.
+     * If a uuid is not the newOrder it will be deleted from the queue.
+     *
      * @param newOrder a list of the task's uuids
      */
     public synchronized void updateAllPriorities(final List<String> newOrder) {
-        executor.purge();
-        Collection<ExtractionTask> newWaitingTasks = new TreeSet<ExtractionTask>(new Comparator<ExtractionTask>(){
 
+        final Map<String, Integer> positions = new HashMap<String, Integer>(newOrder.size() * 2);
+        for (int i = 0; i < newOrder.size(); i++) {
+            positions.put(newOrder.get(i), i);
+        }
+        List<ExtractionTask> newWaitingTasks = new ArrayList<ExtractionTask>(this.waitingTasks.size());
+        for (ExtractionTask task : this.waitingTasks) {
+            if (positions.containsKey(task.executionMetadata.getUuid())) {
+                newWaitingTasks.add(task);
+            } else {
+                task.executionMetadata.cancel();
+                journalFinished(task);
+            }
+        }
+        this.waitingTasks.clear();
+        Collections.sort(newWaitingTasks, new Comparator<ExtractionTask>() {
             @Override
             public int compare(ExtractionTask task1, ExtractionTask task2) {
-                return newOrder.indexOf(task1.executionMetadata.getUuid()) - newOrder.indexOf(task2.executionMetadata.getUuid());
+                return positions.get(task1.executionMetadata.getUuid()) - positions.get(task2.executionMetadata.getUuid());
             }
-            
         });
-        for (ExtractionTask task : this.readyTaskQueue) {
-            if(task.executionMetadata.isWaiting()) {
-                readyTaskQueue.remove(task);
-                if(newOrder.contains(task.executionMetadata.getUuid())) {
-                    newWaitingTasks.add(task);
-                } else {
-                    task.executionMetadata.cancel();
-                    cancelledTaskQueue.add(task);
-                }
-            }
-        }
-        
+        // the runners of the tasks are still pending, the tasks are only queued again
         for (ExtractionTask task : newWaitingTasks) {
             task.executionMetadata.setPriority(ExecutionPriority.MEDIUM);
-            submit(task);
+            if (this.journal != null) {
+                this.journal.priorityChanged(task.executionMetadata.getUuid(), ExecutionPriority.MEDIUM);
+            }
+            enqueue(task);
         }
     }
-    
+
     /**
      * Remove the task if it has got the waiting status
      * @param uuid
      */
     public synchronized void removeTask(String uuid) {
-    	
-        for (ExtractionTask task : this.readyTaskQueue) {
-        	if(task.executionMetadata.getPriority().equals(ExecutionState.WAITING) ){
-                if (task.equalId(uuid)) {
-                    task.executionMetadata.cancel();
-                    this.executor.remove(task);
-                    // move from ready to canceled list
-                    readyTaskQueue.remove(task);
-                    this.cancelledTaskQueue.add(task);
-                    break;
-                }
-        	}
+
+        ExtractionTask task = this.tasks.get(uuid);
+        if (task != null && this.waitingTasks.remove(task)) {
+            task.executionMetadata.cancel();
+            journalFinished(task);
         }
     }
 
     /**
-     * Gets a deep copy of task queue metadata. The metadata objects are only copies 
+     * Gets a deep copy of task queue metadata. The metadata objects are only copies
      * (defensive copy) so no changes will be reflected on the actual tasks
      */
     public synchronized List<ExecutionMetadata> getTaskQueue() {
-        List<ExecutionMetadata> queue = new ArrayList<ExecutionMetadata>();
-        for (ExtractionTask task : this.readyTaskQueue) {
-            queue.add(new ExecutionMetadata(task.executionMetadata));
-        }
-        for (ExtractionTask task : this.pausedTasks.values()) {
+        List<ExecutionMetadata> queue = new ArrayList<ExecutionMetadata>(this.tasks.size());
+        for (ExtractionTask task : this.waitingTasks) {
             queue.add(new ExecutionMetadata(task.executionMetadata));
         }
-        for (ExtractionTask task : this.cancelledTaskQueue) {
-            queue.add(new ExecutionMetadata(task.executionMetadata));
+        for (ExtractionTask task : this.tasks.values()) {
+            if (!this.waitingTasks.contains(task)) {
+                queue.add(new ExecutionMetadata(task.executionMetadata));
+            }
         }
         return queue;
     }
@@ -211,47 +353,27 @@ public class ExtractionManager {
     /**
      * Search the task with the indeed uuid in the ready and paused tasks.
      * The search is done between the waiting, paused tasks
-     * 
+     *
      * @param uuid	identifier of task to find
      * @return the {@link ExtractionTask} it exists, null in other case.
      */
     public synchronized ExtractionTask findTask(final String uuid) {
-    	
-    	List<ExtractionTask> tasks = queryRunableTask();
-        for (ExtractionTask task: tasks) {
-            if (task.equalId(uuid)) {
-            	return task;
-            }
+
+        ExtractionTask task = this.tasks.get(uuid);
+        if (task != null && (this.waitingTasks.contains(task) || task.executionMetadata.isPaused())) {
+            return task;
         }
-        return this.pausedTasks.get(uuid);
+        return null;
     }
-    
-    /**
-     * @return Returns the waiting, paused tasks. That is all runnable tasks.
-     */
-    private List<ExtractionTask> queryRunableTask(){
-    	
-        List<ExtractionTask> queue = new LinkedList<ExtractionTask>();
-        for (ExtractionTask task : this.readyTaskQueue) {
-        	ExecutionState st = task.executionMetadata.getState();
-        	if(st.equals(ExecutionState.WAITING)){
-                queue.add(task);
-        	}
-        }
-        for (ExtractionTask pausedTask : this.pausedTasks.values()) {
-            queue.add(pausedTask);
-        }
-        return queue;
 
-    }
     /**
      * Changes the task's status
-     * 
+     *
      * @param id	Task's identifier
      * @param newStatus the new status
      */
 	public synchronized void  updateStatus(final String id, final ExecutionState newStatus) {
-		
+
 		switch (newStatus) {
 		case COMPLETED:
 		case RUNNING:
@@ -275,113 +397,64 @@ public class ExtractionManager {
 	 * @param id task's identifier
 	 */
     private void cancelTask(final String id) {
-    	
-    	ExtractionTask foundTask = findTask(id);
 
-		if(foundTask == null){
-			return;
-		}
-		
-		if (foundTask.executionMetadata.isWaiting() ){
-
-		    this.readyTaskQueue.remove(foundTask);
-		    this.cancelledTaskQueue.add(foundTask);
-		    cancelProcess(foundTask);
-			
-		} else if( foundTask.executionMetadata.isPaused() ) {
-
-        	this.pausedTasks.remove(id);
-        	this.cancelledTaskQueue.add(foundTask);
-			cancelProcess(foundTask);
-		}
+        ExtractionTask foundTask = this.tasks.get(id);
+        if (foundTask == null) {
+            return;
+        }
+        if (this.waitingTasks.remove(foundTask) || foundTask.executionMetadata.isPaused()) {
+            foundTask.executionMetadata.cancel();
+            journalFinished(foundTask);
+        }
 	}
-    
-    /**
-     * Cancel the process 
-     * @param task
-     */
-    private synchronized boolean cancelProcess(final ExtractionTask task) {
-    	
-    	task.executionMetadata.cancel();
-    	boolean wasCanceled = task.executionMetadata.getFuture().cancel(true);
-    	this.executor.remove(task); // purge cancelled task
-    	return wasCanceled;
-    }
-    
-    
+
 	/**
-     * Moves the task to the paused queue if it is in waiting status.
+     * Moves the task to the paused tasks if it is in waiting status.
      * @param id task's identifier
      */
-    private synchronized void pauseTask(final String id){
-
-    	ExtractionTask foundTask = null;
-        for (ExtractionTask task: this.readyTaskQueue) {
-        	if(task.executionMetadata.getState().equals(ExecutionState.WAITING)){
-        		if(!task.executionMetadata.getFuture().isCancelled() && !task.executionMetadata.getFuture().isDone()){
-                    if (task.equalId(id)) {
-                    	foundTask = task;
-                    	break;
-                    }
-        		}
-        	}
+    private void pauseTask(final String id){
+
+        ExtractionTask foundTask = this.tasks.get(id);
+        if (foundTask == null || !this.waitingTasks.remove(foundTask)) {
+            return;
         }
-		if(foundTask == null){
-			return;
-		}
-		// moves the found task to the paused task queue
-//		foundTask.executionMetadata.getFuture().cancel(true);
-//		this.executor.remove(foundTask);
-//        this.readyTaskQueue.remove(foundTask);
-//        
-//        foundTask.executionMetadata.setPaused();
-//        this.pausedTasks.put(id, foundTask);
-//        
-//XXX Replaced by the following sentences:        
         foundTask.executionMetadata.setPaused();
-		ExtractionTask taskCloned = new ExtractionTask(foundTask);
-	
-		foundTask.executionMetadata.getFuture().cancel(true);
-		this.executor.remove(foundTask);
-		this.executor.purge();
-		this.readyTaskQueue.remove(foundTask);
-		
-        this.pausedTasks.put(id, taskCloned);
-        
+        if (this.journal != null) {
+            this.journal.stateChanged(id, ExecutionState.PAUSED);
+        }
     }
-    
+
     /**
-     * Moves a paused task to the ready task queue
+     * Moves a paused task to the waiting tasks
      * @param id
      */
-    private synchronized void resumeTask(final String id){
-
-    	ExtractionTask foundTask = this.pausedTasks.get(id);
-    	if( foundTask != null){
-    		this.pausedTasks.remove(id);
-    		foundTask.executionMetadata.setWaiting();
-    		
-    		submit(foundTask);
-    	}
+    private void resumeTask(final String id){
+
+        ExtractionTask foundTask = this.tasks.get(id);
+        if (foundTask == null || !foundTask.executionMetadata.isPaused()) {
+            return;
+        }
+        foundTask.executionMetadata.setWaiting();
+        if (this.journal != null) {
+            this.journal.stateChanged(id, ExecutionState.WAITING);
+        }
+        schedule(foundTask);
     }
-	
-    public synchronized void cleanExpiredTasks(long expiry) {
-        ArrayList<ExtractionTask> toRemove = new ArrayList<ExtractionTask>();
-        for (ExtractionTask task : readyTaskQueue) {
-            ExecutionMetadata metadata = task.executionMetadata;
-            if (metadata.isCompleted() && (metadata.getStateChangeTime().getTime() + expiry) > System.currentTimeMillis()) {
-                toRemove.add(task);
-            }
+
+    private void journalFinished(ExtractionTask task) {
+        if (this.journal != null) {
+            this.journal.finished(task.executionMetadata.getUuid());
         }
-        readyTaskQueue.removeAll(toRemove);
-        toRemove.clear();
-        for (ExtractionTask task : cancelledTaskQueue) {
-            ExecutionMetadata metadata = task.executionMetadata;
-            if ((metadata.getStateChangeTime().getTime() + expiry) > System.currentTimeMillis()) {
-                toRemove.add(task);
+    }
+
+    public synchronized void cleanExpiredTasks(long expiry) {
+        for (Iterator<ExtractionTask> it = this.tasks.values().iterator(); it.hasNext();) {
+            ExecutionMetadata metadata = it.next().executionMetadata;
+            boolean finished = metadata.isCompleted() || metadata.getState() == ExecutionState.CANCELLED;
+            if (finished && (metadata.getStateChangeTime().getTime() + expiry) > System.currentTimeMillis()) {
+                it.remove();
             }
         }
-        cancelledTaskQueue.removeAll(toRemove);
     }
 
 
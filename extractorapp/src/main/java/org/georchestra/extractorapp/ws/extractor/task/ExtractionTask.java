@@ -6,12 +6,24 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.ExtractorException;
+import org.georchestra.extractorapp.ws.extractor.ExtractionArchive;
 import org.georchestra.extractorapp.ws.extractor.ExtractorController;
 import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
 import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.georchestra.extractorapp.ws.extractor.IncompleteContentException;
 import org.georchestra.extractorapp.ws.extractor.OversizedCoverageRequestException;
 import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
 import org.georchestra.extractorapp.ws.extractor.WcsExtractor;
@@ -38,21 +50,89 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 	private RequestConfiguration requestConfig;
 
+	/** order of the task among the waiting tasks of the same priority, set by the {@link ExtractionManager} */
+	long sequence;
+
+	/** outcome of the extraction of a layer */
+	private enum LayerOutcome {
+		SUCCESS, FAILURE, OVERSIZED
+	}
+
+	/** maximum number of layers of this task extracted at the same time */
+	private int maxParallelLayers = 1;
+
+	/** limits the extra layers extracted from the same host, null if there is no limit */
+	private HostLimiter hostLimiter;
+
+	/** number of layers of this task being extracted from a server */
+	private final AtomicInteger extractingLayers = new AtomicInteger();
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private Set<String> storedExtensions = ExtractionArchive.DEFAULT_STORED_EXTENSIONS;
+
+	private int wfsPageSize = WfsExtractor.DEFAULT_PAGE_SIZE;
+
+	/** the layers extracted by the previous tasks, null if they are not cached */
+	private LayerCache layerCache;
+
 	public ExtractionTask(RequestConfiguration requestConfig)
 			throws NoSuchAuthorityCodeException, MalformedURLException, JSONException, FactoryException {
+		this(requestConfig, new Date());
+	}
+
+	/**
+	 * @param requestTime when the extraction was requested, earlier than now if the task is restored
+	 */
+	public ExtractionTask(RequestConfiguration requestConfig, Date requestTime) {
 		this.requestConfig = requestConfig;
 		this.executionMetadata = new ExecutionMetadata(
 				this.requestConfig.requestUuid,
 				this.requestConfig.username,
-				new Date(),
+				requestTime,
 				this.requestConfig.strRequest);
 	}
 	public ExtractionTask(ExtractionTask toCopy) {
 
 		this.requestConfig = toCopy.requestConfig;
 		this.executionMetadata = toCopy.executionMetadata;
+		this.sequence = toCopy.sequence;
+	}
+
+
+	/**
+	 * Allows the layers of the task to be extracted in parallel.
+	 *
+	 * @param maxParallelLayers maximum number of layers extracted at the same time
+	 * @param hostLimiter limits the layers extracted from the same host on top of the first
+	 *        layer of the task, null for no limit
+	 */
+	void setParallelism(int maxParallelLayers, HostLimiter hostLimiter) {
+		this.maxParallelLayers = maxParallelLayers;
+		this.hostLimiter = hostLimiter;
 	}
 
+	/**
+	 * @param compressionLevel the deflate level of the archive
+	 * @param storedExtensions the extensions of the files archived without compression
+	 */
+	void setArchiveOptions(int compressionLevel, Set<String> storedExtensions) {
+		this.compressionLevel = compressionLevel;
+		this.storedExtensions = storedExtensions;
+	}
+
+	/**
+	 * @param wfsPageSize maximum number of features requested at once from a WFS, 0 for no limit
+	 */
+	void setWfsPageSize(int wfsPageSize) {
+		this.wfsPageSize = wfsPageSize;
+	}
+
+	/**
+	 * @param layerCache the cache the layers are archived from if they have been extracted before, null for no cache
+	 */
+	void setLayerCache(LayerCache layerCache) {
+		this.layerCache = layerCache;
+	}
 
 	@Override
 	public void run() {
@@ -69,87 +149,45 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 			final File failureFile = new File(tmpExtractionBundle,
 					"failures.html");
+			final ExtractionArchive archive;
+			try {
+				archive = createArchive(tmpExtractionBundle);
+			} catch (IOException e) {
+				throw new ExtractorException(e);
+			}
 			final List<String> successes = new ArrayList<String>();
 			final List<String> failures = new ArrayList<String>();
 			final List<String> oversized = new ArrayList<String>();
-			for (ExtractorLayerRequest request : requestConfig.requests) {
-
-				int tries = 0;
-				while (tries < EXTRACTION_ATTEMPTS) {
-
-					tries++;
-					String name = String.format("%s__%s",
-							request._url.getHost(), request._layerName);
-					File layerTmpDir = mkDirTmpExtractionBundle(tmpDir, name);
-					LOG.info("Attempt " + tries + " for extracting layer: "
-							+ request._url + " -- " + request._layerName);
-
-					try {
-						// extracts the layer in the temporal directory
-						File newDir;
-						switch (request._owsType) {
-						case WCS:
-							newDir = extractWcsLayer(request, layerTmpDir);
-							break;
-						case WFS:
-							newDir = extractWfsLayer(request, layerTmpDir);
-							break;
-						default:
-							throw new IllegalArgumentException(request._owsType
-									+ " not supported");
-						}
-						// extracts the metadata into the temporal directory
-						if(request._isoMetadataURL != null && !"".equals(request._isoMetadataURL) ){
-							extractMetadata(request, newDir);
-						}
-
-						for (File from : layerTmpDir.listFiles()) {
-							File to = new File(tmpExtractionBundle,
-									from.getName());
-							FileUtils.moveFile(from, to);
-						}
-						FileUtils.delete(layerTmpDir);
-						LOG.info("Finished extracting layer: " + request._url
-								+ " -- " + request._layerName);
-						tries = EXTRACTION_ATTEMPTS + 1;
-						successes.add(name);
-					} catch (OversizedCoverageRequestException e) {
-						tries = EXTRACTION_ATTEMPTS + 1; // don't re-try
-						oversized.add(name);
-						handleExtractionException(request, e, failureFile);
-					} catch (SecurityException e) {
-						tries = EXTRACTION_ATTEMPTS + 1; // don't re-try
-
-						try {
-							FileUtils.delete(layerTmpDir);
-						} catch (Throwable t) { /* ignore */
-						}
-
-						failures.add(name);
-						handleExtractionException(request, e, failureFile);
-					} catch (Throwable e) {
-						try {
-							FileUtils.delete(layerTmpDir);
-						} catch (Throwable t) { /* ignore */
-						}
-
-						if (tries >= EXTRACTION_ATTEMPTS) {
-							failures.add(name);
-							handleExtractionException(request, e, failureFile);
-						}
-					}
+			List<LayerOutcome> outcomes;
+			try {
+				outcomes = extractLayers(tmpDir, archive, failureFile);
+			} catch (RuntimeException e) {
+				archive.abort();
+				throw e;
+			}
+			for (int i = 0; i < outcomes.size(); i++) {
+				String name = layerName(requestConfig.requests.get(i));
+				switch (outcomes.get(i)) {
+				case SUCCESS:
+					successes.add(name);
+					break;
+				case OVERSIZED:
+					oversized.add(name);
+					break;
+				default:
+					failures.add(name);
 				}
 			}
 
 			closeFailuresFile(failureFile);
 
-			File archive = archiveExtraction(tmpExtractionBundle);
-			long fileSize = archive.length();
+			File archiveFile = closeArchive(archive, failureFile);
+			long fileSize = archiveFile.length();
 			long end = System.currentTimeMillis();
 
 			String msg = String
 					.format("Finished extraction into directory: %s achive is: %s (size : %s bytes) \nExtraction took %s",
-							tmpExtractionBundle, archive, fileSize, time(start, end));
+							tmpExtractionBundle, archiveFile, fileSize, time(start, end));
 			LOG.info(msg);
 
 			if (!requestConfig.testing) {
@@ -169,6 +207,230 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 		}
 	}
 
+	/**
+	 * Extracts the layers, several at the same time if the task is allowed
+	 * more than one thread.
+	 *
+	 * @return the outcome of each layer, in the order of the requests
+	 */
+	private List<LayerOutcome> extractLayers(final File tmpDir, final ExtractionArchive archive, final File failureFile) {
+
+		final List<ExtractorLayerRequest> requests = requestConfig.requests;
+		List<LayerOutcome> outcomes = new ArrayList<LayerOutcome>(requests.size());
+		int threads = Math.min(maxParallelLayers, requests.size());
+		if (threads <= 1) {
+			for (int i = 0; i < requests.size(); i++) {
+				outcomes.add(extractLayer(requests.get(i), i, tmpDir, archive, failureFile));
+			}
+			return outcomes;
+		}
+
+		// the threads are created by this thread, they inherit the request configuration
+		ExecutorService layerExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Extractorapp-layer-" + requestConfig.requestUuid + "-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<LayerOutcome>> futures = new ArrayList<Future<LayerOutcome>>(requests.size());
+			for (int i = 0; i < requests.size(); i++) {
+				final ExtractorLayerRequest request = requests.get(i);
+				final int index = i;
+				futures.add(layerExecutor.submit(new Callable<LayerOutcome>() {
+					@Override
+					public LayerOutcome call() {
+						requestConfig.setThreadLocal();
+						return extractLayer(request, index, tmpDir, archive, failureFile);
+					}
+				}));
+			}
+			for (Future<LayerOutcome> future : futures) {
+				try {
+					outcomes.add(future.get());
+				} catch (ExecutionException e) {
+					LOG.error("Unable to extract a layer", e.getCause());
+					outcomes.add(LayerOutcome.FAILURE);
+				}
+			}
+			return outcomes;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Extraction " + requestConfig.requestUuid + " interrupted", e);
+		} finally {
+			layerExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Extracts a layer and appends it to the archive, trying again if the server fails.
+	 *
+	 * @param index position of the layer in the request, distinguishes the temporary directories of the layers
+	 */
+	private LayerOutcome extractLayer(ExtractorLayerRequest request, int index, File tmpDir, ExtractionArchive archive,
+			File failureFile) {
+
+		String host = request._url.getHost();
+		boolean extracting = false;
+		boolean permit = false;
+		try {
+			String name = layerName(request);
+			String cacheKey = layerCache == null ? null : request.cacheKey();
+			int tries = 0;
+			while (tries < EXTRACTION_ATTEMPTS) {
+
+				tries++;
+				File layerTmpDir = mkDirTmpExtractionBundle(tmpDir, index + "_" + name);
+				LOG.info("Attempt " + tries + " for extracting layer: "
+						+ request._url + " -- " + request._layerName);
+
+				try {
+					if (cacheKey != null && archiveCachedLayer(request, cacheKey, archive)) {
+						FileUtils.delete(layerTmpDir);
+						LOG.info("Layer archived from the cache: " + request._url
+								+ " -- " + request._layerName);
+						return LayerOutcome.SUCCESS;
+					}
+					// a layer archived from the cache does not take a slot of the host
+					if (!extracting) {
+						extracting = true;
+						permit = startExtraction(host);
+					}
+
+					// extracts the layer in the temporal directory
+					File newDir;
+					switch (request._owsType) {
+					case WCS:
+						newDir = extractWcsLayer(request, layerTmpDir);
+						break;
+					case WFS:
+						newDir = extractWfsLayer(request, layerTmpDir);
+						break;
+					default:
+						throw new IllegalArgumentException(request._owsType
+								+ " not supported");
+					}
+					// extracts the metadata into the temporal directory
+					if(request._isoMetadataURL != null && !"".equals(request._isoMetadataURL) ){
+						extractMetadata(request, newDir);
+					}
+
+					archive.addContent(layerTmpDir);
+					if (cacheKey != null) {
+						layerCache.put(cacheKey, layerTmpDir);
+					}
+					FileUtils.delete(layerTmpDir);
+					LOG.info("Finished extracting layer: " + request._url
+							+ " -- " + request._layerName);
+					return LayerOutcome.SUCCESS;
+				} catch (OversizedCoverageRequestException e) {
+					// don't re-try
+					handleExtractionException(request, e, failureFile);
+					return LayerOutcome.OVERSIZED;
+				} catch (SecurityException e) {
+					// don't re-try
+					try {
+						FileUtils.delete(layerTmpDir);
+					} catch (Throwable t) { /* ignore */
+					}
+
+					handleExtractionException(request, e, failureFile);
+					return LayerOutcome.FAILURE;
+				} catch (IncompleteContentException e) {
+					// don't re-try, a part of the layer is in the archive
+					try {
+						FileUtils.delete(layerTmpDir);
+					} catch (Throwable t) { /* ignore */
+					}
+
+					handleExtractionException(request, e, failureFile);
+					return LayerOutcome.FAILURE;
+				} catch (Throwable e) {
+					try {
+						FileUtils.delete(layerTmpDir);
+					} catch (Throwable t) { /* ignore */
+					}
+
+					if (tries >= EXTRACTION_ATTEMPTS) {
+						handleExtractionException(request, e, failureFile);
+					}
+				}
+			}
+			return LayerOutcome.FAILURE;
+		} finally {
+			if (extracting) {
+				endExtraction(host, permit);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the host limiter if another layer of the task is being extracted:
+	 * the task always extracts a layer, only its extra layers are limited.
+	 *
+	 * @return true if a permit of the host limiter was taken
+	 */
+	private boolean startExtraction(String host) {
+		if (extractingLayers.getAndIncrement() == 0 || hostLimiter == null) {
+			return false;
+		}
+		hostLimiter.acquire(host);
+		return true;
+	}
+
+	private void endExtraction(String host, boolean permit) {
+		if (permit) {
+			hostLimiter.release(host);
+		}
+		extractingLayers.decrementAndGet();
+	}
+
+	/**
+	 * Archives the layer from the cache if it has been extracted before,
+	 * once the user is checked to be allowed to get it.
+	 *
+	 * @return false if the layer is not cached
+	 */
+	private boolean archiveCachedLayer(ExtractorLayerRequest request, String cacheKey, ExtractionArchive archive)
+			throws IOException {
+		File cached = layerCache.acquire(cacheKey);
+		if (cached == null) {
+			return false;
+		}
+		try {
+			switch (request._owsType) {
+			case WCS:
+				new WcsExtractor(cached, requestConfig).checkPermission(request, requestConfig.secureHost,
+						requestConfig.username, requestConfig.roles);
+				break;
+			case WFS:
+				new WfsExtractor(cached, requestConfig.adminCredentials.getUserName(),
+						requestConfig.adminCredentials.getPassword(), requestConfig.secureHost).checkPermission(
+						request, requestConfig.secureHost, requestConfig.username, requestConfig.roles);
+				break;
+			default:
+				throw new IllegalArgumentException(request._owsType + " not supported");
+			}
+			if (request._isoMetadataURL != null && !"".equals(request._isoMetadataURL)) {
+				new CSWExtractor(cached, requestConfig.adminCredentials.getUserName(),
+						requestConfig.adminCredentials.getPassword(), request._isoMetadataURL.getHost())
+						.checkPermission(request, requestConfig.username, requestConfig.roles);
+			}
+			archive.addContent(cached);
+			return true;
+		} finally {
+			layerCache.release(cacheKey);
+		}
+	}
+
+	private static String layerName(ExtractorLayerRequest request) {
+		return String.format("%s__%s", request._url.getHost(), request._layerName);
+	}
+
 	private String time(long start, long end) {
 		long seconds = (end - start) / 1000;
 		if (seconds > 60) {
@@ -203,24 +465,38 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 	/**
 	 * Protected to allow unit test to override
 	 *
-	 * @return
+	 * @return the archive where the layers are appended as they are extracted
 	 */
-	protected File archiveExtraction(File tmpExtractionBundle) {
+	protected ExtractionArchive createArchive(File tmpExtractionBundle) throws IOException {
 		String filename = requestConfig.requestUuid.toString()
 				+ ExtractorController.EXTRACTION_ZIP_EXT;
-		File storageFile = FileUtils.storageFile(filename);
-		if (!storageFile.getParentFile().exists()) {
-			storageFile.getParentFile().mkdirs();
-		}
+		return new ExtractionArchive(FileUtils.storageFile(filename), tmpExtractionBundle.getName(),
+				compressionLevel, storedExtensions);
+	}
+
+	/**
+	 * Appends the failures report, if any, and completes the archive.
+	 *
+	 * @return the archive file
+	 */
+	private File closeArchive(ExtractionArchive archive, File failureFile) {
 		try {
-			FileUtils.archiveToZip(tmpExtractionBundle, storageFile);
-		} catch (IOException e1) {
-			handleException(e1);
+			if (failureFile.exists()) {
+				archive.addFile(failureFile);
+			}
+			return archive.close();
+		} catch (IOException e) {
+			archive.abort();
+			handleException(e);
+			return archive.getFile();
 		}
-		return storageFile;
 	}
 
-	private void handleExtractionException(ExtractorLayerRequest request,
+	/**
+	 * Writes the failure in the failures file, synchronized as the layers
+	 * may be extracted in parallel
+	 */
+	private synchronized void handleExtractionException(ExtractorLayerRequest request,
 			Throwable e, File failureFile) {
 		if (!failureFile.getParentFile().exists()) {
 			throw new AssertionError(
@@ -387,6 +663,7 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 				requestConfig.adminCredentials.getUserName(),
 				requestConfig.adminCredentials.getPassword(),
 				requestConfig.secureHost);
+		extractor.setPageSize(wfsPageSize);
 
 		extractor.checkPermission(request, requestConfig.secureHost, requestConfig.username, requestConfig.roles);
 
@@ -419,11 +696,13 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 	@Override
 	public int compareTo(ExtractionTask other) {
 
-		return other.executionMetadata.getPriority().compareTo(
+		// the highest priority first, then the first queued task
+		int cmp = other.executionMetadata.getPriority().compareTo(
 				this.executionMetadata.getPriority());
-// Replaced because this code order from low to high
-//		return executionMetadata.getPriority().compareTo(
-//				other.executionMetadata.getPriority());
+		if (cmp != 0) {
+			return cmp;
+		}
+		return this.sequence < other.sequence ? -1 : (this.sequence == other.sequence ? 0 : 1);
 	}
 
 	public boolean equalId(String uuid) {
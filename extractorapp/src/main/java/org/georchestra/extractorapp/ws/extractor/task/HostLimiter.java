@@ -0,0 +1,49 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of extra layers extracted at the same time from the same host,
+ * all the extraction tasks together, so that extracting a basket in parallel
+ * does not overload one server.
+ */
+class HostLimiter {
+
+    private final int maxPerHost;
+    private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * @param maxPerHost maximum number of layers extracted at the same time from a host
+     */
+    HostLimiter(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Waits until a layer can be extracted from the host
+     */
+    void acquire(String host) {
+        semaphore(host).acquireUninterruptibly();
+    }
+
+    void release(String host) {
+        semaphore(host).release();
+    }
+
+    private Semaphore semaphore(String host) {
+        // the hosts are the OGC servers of the catalog, the map stays small
+        String key = host.toLowerCase(Locale.ENGLISH);
+        Semaphore semaphore = permits.get(key);
+        if (semaphore == null) {
+            Semaphore created = new Semaphore(maxPerHost, true);
+            semaphore = permits.putIfAbsent(key, created);
+            if (semaphore == null) {
+                semaphore = created;
+            }
+        }
+        return semaphore;
+    }
+}
@@ -0,0 +1,216 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.FileUtils;
+
+/**
+ * Cache of the extracted layers, shared by the extraction tasks: a layer
+ * requested again with the same parameters (see
+ * {@link org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest#cacheKey()})
+ * is archived from the cache instead of being downloaded from the server.
+ * <p>
+ * Each layer is a directory named by its key in the cache directory. The
+ * layers expire after {@link #setTimeToLive(long)}, since the data of the
+ * server may change, and the least recently used layers are deleted when the
+ * cache grows beyond {@link #setMaxSize(long)}. A layer being archived is
+ * not deleted until it is released.
+ * </p>
+ */
+public class LayerCache {
+
+    private static final Log LOG = LogFactory.getLog(LayerCache.class.getPackage().getName());
+
+    private static final String DEFAULT_DIRECTORY_NAME = "layer-cache";
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final class Entry {
+        final long size;
+        final long created;
+        int readers;
+
+        Entry(long size, long created) {
+            this.size = size;
+            this.created = created;
+        }
+    }
+
+    private File directory;
+    private long maxSize = 2L * 1024 * 1024 * 1024;
+    private long timeToLive = 24L * 60 * 60 * 1000;
+
+    /** the cached layers by key, the least recently used first */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size;
+    private boolean loaded;
+    private int nextPart;
+
+    /**
+     * Sets the cache directory, by default layer-cache in the extractor storage directory
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param maxSize size in bytes of the cached layers beyond which the least recently used are deleted (default 2GB)
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param timeToLive time in milliseconds a layer is served from the cache (default 24 hours)
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    private File getDirectory() {
+        if (directory == null) {
+            directory = FileUtils.storageFile(DEFAULT_DIRECTORY_NAME);
+        }
+        return directory;
+    }
+
+    /**
+     * Indexes the layers cached before a restart, the oldest first.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File dir = getDirectory();
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOG.error("Unable to create the layer cache directory " + dir);
+            return;
+        }
+        File[] layers = dir.listFiles();
+        Arrays.sort(layers, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return f1.lastModified() < f2.lastModified() ? -1 : (f1.lastModified() == f2.lastModified() ? 0 : 1);
+            }
+        });
+        for (File layer : layers) {
+            if (layer.getName().endsWith(PART_SUFFIX) || !layer.isDirectory()) {
+                // interrupted while being stored
+                FileUtils.delete(layer);
+            } else {
+                Entry entry = new Entry(sizeOf(layer), layer.lastModified());
+                entries.put(layer.getName(), entry);
+                size += entry.size;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Gets a cached layer, which must be released once it is archived.
+     *
+     * @return the directory of the layer, null if it is not cached or expired
+     */
+    public synchronized File acquire(String key) {
+        load();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.created > timeToLive) {
+            if (entry.readers == 0) {
+                remove(key);
+            }
+            return null;
+        }
+        entry.readers++;
+        return new File(getDirectory(), key);
+    }
+
+    public synchronized void release(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.readers > 0) {
+            entry.readers--;
+        }
+    }
+
+    /**
+     * Stores a layer in the cache. The content of the directory is moved,
+     * errors are logged since the layer can still be archived.
+     */
+    public void put(String key, File layerDirectory) {
+        File part;
+        synchronized (this) {
+            load();
+            part = new File(getDirectory(), key + "-" + (nextPart++) + PART_SUFFIX);
+        }
+        try {
+            // moved outside of the lock, it may be a copy if the directories are on different disks
+            FileUtils.moveFile(layerDirectory, part);
+            long partSize = sizeOf(part);
+            synchronized (this) {
+                Entry previous = entries.get(key);
+                if (previous != null && previous.readers > 0) {
+                    // being archived, the new one is not cached
+                    FileUtils.delete(part);
+                    return;
+                }
+                File target = new File(getDirectory(), key);
+                if (previous != null) {
+                    remove(key);
+                }
+                if (!part.renameTo(target)) {
+                    throw new IOException("Unable to rename " + part + " to " + target);
+                }
+                entries.put(key, new Entry(partSize, System.currentTimeMillis()));
+                size += partSize;
+                evict();
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to cache the layer " + key, e);
+            FileUtils.delete(part);
+        }
+    }
+
+    /**
+     * Deletes the least recently used layers until the cache fits in its maximum size.
+     */
+    private void evict() {
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); size > maxSize && it.hasNext();) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue().readers == 0) {
+                it.remove();
+                size -= eldest.getValue().size;
+                FileUtils.delete(new File(getDirectory(), eldest.getKey()));
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+            FileUtils.delete(new File(getDirectory(), key));
+        }
+    }
+
+    private static long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long total = 0;
+        for (File child : file.listFiles()) {
+            total += sizeOf(child);
+        }
+        return total;
+    }
+}
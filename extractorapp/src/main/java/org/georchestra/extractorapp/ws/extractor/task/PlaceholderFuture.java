@@ -1,35 +0,0 @@
-package org.georchestra.extractorapp.ws.extractor.task;
-
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-
-final class PlaceholderFuture implements Future<Object> {
-    @Override
-    public boolean cancel(boolean mayInterruptIfRunning) {
-        return false;
-    }
-
-    @Override
-    public Object get() throws InterruptedException, ExecutionException {
-        return null;
-    }
-
-    @Override
-    public Object get(long timeout, TimeUnit unit)
-            throws InterruptedException, ExecutionException,
-            TimeoutException {
-        return null;
-    }
-
-    @Override
-    public boolean isCancelled() {
-        return false;
-    }
-
-    @Override
-    public boolean isDone() {
-        return false;
-    }
-}
\ No newline at end of file
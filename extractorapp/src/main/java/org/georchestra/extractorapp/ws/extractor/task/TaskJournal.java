@@ -0,0 +1,336 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Append only journal of the extraction tasks which are not finished, so that
+ * the waiting and paused tasks are submitted again when extractorapp restarts.
+ * <p>
+ * Each line is a JSON object recording an event: a task is submitted, its
+ * priority or state changes, it is finished (completed or cancelled). The
+ * journal is replayed and rewritten with the unfinished tasks only when it is
+ * loaded, and when the finished tasks make most of its lines, so that its size
+ * (and the time to load it) stays proportional to the number of queued tasks.
+ * </p>
+ * <p>
+ * Only the security headers needed to build the task again are recorded (see
+ * {@link #RECORDED_HEADERS}), the others are not written on disk.
+ * </p>
+ */
+public class TaskJournal {
+
+    private static final Log LOG = LogFactory.getLog(TaskJournal.class.getPackage().getName());
+
+    private static final String DEFAULT_FILE_NAME = "extraction-tasks.journal";
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String OP_SUBMIT = "submit";
+    private static final String OP_PRIORITY = "priority";
+    private static final String OP_STATE = "state";
+    private static final String OP_FINISH = "finish";
+
+    /** the journal is rewritten when it has this number of lines more than the unfinished tasks */
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    /**
+     * the headers read by the email factories and the request configuration of a
+     * restored task
+     */
+    static final Set<String> RECORDED_HEADERS = Collections.unmodifiableSet(new TreeSet<String>(Arrays.asList(
+            "sec-username", "sec-roles", "sec-convention")));
+
+    /**
+     * A task recorded in the journal: what is needed to build the task again.
+     */
+    public static final class Entry {
+        private final String uuid;
+        private final String request;
+        private final Map<String, String> headers;
+        private final Date requestTime;
+        private ExecutionPriority priority;
+        private ExecutionState state;
+
+        private Entry(String uuid, String request, Map<String, String> headers, Date requestTime,
+                ExecutionPriority priority, ExecutionState state) {
+            this.uuid = uuid;
+            this.request = request;
+            this.headers = headers;
+            this.requestTime = requestTime;
+            this.priority = priority;
+            this.state = state;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        /** @return the original request in json syntax */
+        public String getRequest() {
+            return request;
+        }
+
+        /** @return the security headers of the original http request listed in {@link TaskJournal#RECORDED_HEADERS} */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public Date getRequestTime() {
+            return requestTime;
+        }
+
+        public ExecutionPriority getPriority() {
+            return priority;
+        }
+
+        /** @return {@link ExecutionState#WAITING} or {@link ExecutionState#PAUSED} */
+        public ExecutionState getState() {
+            return state;
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("op", OP_SUBMIT);
+            json.put("uuid", uuid);
+            json.put("request", request);
+            json.put("headers", headers);
+            json.put("time", requestTime.getTime());
+            json.put("priority", priority.name());
+            json.put("state", state.name());
+            return json;
+        }
+    }
+
+    private File file;
+    private Writer writer;
+    private int lines;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Sets the journal file, by default extraction-tasks.journal in the extractor storage directory
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    private File getFile() {
+        if (file == null) {
+            file = FileUtils.storageFile(DEFAULT_FILE_NAME);
+        }
+        return file;
+    }
+
+    /**
+     * Reads the journal and rewrites it with the unfinished tasks.
+     *
+     * @return the unfinished tasks, in submission order
+     */
+    public synchronized List<Entry> load() throws IOException {
+        entries.clear();
+        File journal = getFile();
+        if (journal.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), ENCODING));
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.length() > 0) {
+                        replay(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        compact();
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+    }
+
+    private void replay(String line) {
+        try {
+            JSONObject json = new JSONObject(line);
+            String op = json.getString("op");
+            String uuid = json.getString("uuid");
+            if (OP_SUBMIT.equals(op)) {
+                Map<String, String> headers = new HashMap<String, String>();
+                JSONObject jsonHeaders = json.optJSONObject("headers");
+                if (jsonHeaders != null) {
+                    for (Iterator<?> keys = jsonHeaders.keys(); keys.hasNext();) {
+                        String key = (String) keys.next();
+                        // the journals of previous versions recorded all the headers
+                        if (RECORDED_HEADERS.contains(key)) {
+                            headers.put(key, jsonHeaders.getString(key));
+                        }
+                    }
+                }
+                entries.put(uuid, new Entry(uuid, json.getString("request"), headers,
+                        new Date(json.getLong("time")),
+                        ExecutionPriority.valueOf(json.getString("priority")),
+                        ExecutionState.valueOf(json.getString("state"))));
+            } else if (OP_FINISH.equals(op)) {
+                entries.remove(uuid);
+            } else {
+                Entry entry = entries.get(uuid);
+                if (entry == null) {
+                    return;
+                }
+                if (OP_PRIORITY.equals(op)) {
+                    entry.priority = ExecutionPriority.valueOf(json.getString("priority"));
+                } else if (OP_STATE.equals(op)) {
+                    entry.state = ExecutionState.valueOf(json.getString("state"));
+                }
+            }
+        } catch (Exception e) {
+            // the last line may be truncated if the server stopped while writing it
+            LOG.warn("Ignoring the unreadable line of the extraction task journal: " + line, e);
+        }
+    }
+
+    /**
+     * Records a new task
+     */
+    public synchronized void submitted(ExecutionMetadata metadata, String request, Map<String, String> headers) {
+        Map<String, String> recorded = new HashMap<String, String>();
+        for (String name : RECORDED_HEADERS) {
+            if (headers.get(name) != null) {
+                recorded.put(name, headers.get(name));
+            }
+        }
+        Entry entry = new Entry(metadata.getUuid(), request, recorded, metadata.getRequestTime(),
+                metadata.getPriority(), ExecutionState.WAITING);
+        entries.put(entry.uuid, entry);
+        try {
+            append(entry.toJSON());
+        } catch (JSONException e) {
+            LOG.error("Unable to record the extraction task " + entry.uuid, e);
+        }
+    }
+
+    public synchronized void priorityChanged(String uuid, ExecutionPriority priority) {
+        Entry entry = entries.get(uuid);
+        if (entry != null && entry.priority != priority) {
+            entry.priority = priority;
+            append(event(OP_PRIORITY, uuid, "priority", priority.name()));
+        }
+    }
+
+    /**
+     * Records that the task is paused or waiting again
+     */
+    public synchronized void stateChanged(String uuid, ExecutionState state) {
+        Entry entry = entries.get(uuid);
+        if (entry != null && entry.state != state) {
+            entry.state = state;
+            append(event(OP_STATE, uuid, "state", state.name()));
+        }
+    }
+
+    /**
+     * Records that the task is completed or cancelled, it will not be submitted again
+     */
+    public synchronized void finished(String uuid) {
+        if (entries.remove(uuid) != null) {
+            append(event(OP_FINISH, uuid, null, null));
+            if (lines > entries.size() + COMPACTION_THRESHOLD) {
+                compact();
+            }
+        }
+    }
+
+    private JSONObject event(String op, String uuid, String key, String value) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("op", op);
+            json.put("uuid", uuid);
+            if (key != null) {
+                json.put(key, value);
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return json;
+    }
+
+    private void append(JSONObject event) {
+        try {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(getFile(), true), ENCODING);
+            }
+            writer.write(event.toString());
+            writer.write('\n');
+            writer.flush();
+            lines++;
+        } catch (IOException e) {
+            LOG.error("Unable to write in the extraction task journal " + getFile(), e);
+            closeWriter();
+        }
+    }
+
+    /**
+     * Rewrites the journal with the unfinished tasks only.
+     */
+    private void compact() {
+        closeWriter();
+        File journal = getFile();
+        File compacted = new File(journal.getParentFile(), journal.getName() + ".tmp");
+        try {
+            if (!journal.getParentFile().exists()) {
+                journal.getParentFile().mkdirs();
+            }
+            Writer out = new OutputStreamWriter(new FileOutputStream(compacted), ENCODING);
+            try {
+                for (Entry entry : entries.values()) {
+                    out.write(entry.toJSON().toString());
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            if (!compacted.renameTo(journal) && !(journal.delete() && compacted.renameTo(journal))) {
+                throw new IOException("Unable to replace " + journal + " by " + compacted);
+            }
+            lines = entries.size();
+        } catch (Exception e) {
+            // the journal is kept as it is, it is only longer to load
+            LOG.error("Unable to compact the extraction task journal " + journal, e);
+            compacted.delete();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close the extraction task journal", e);
+            }
+            writer = null;
+        }
+    }
+
+    public synchronized void close() {
+        closeWriter();
+    }
+}
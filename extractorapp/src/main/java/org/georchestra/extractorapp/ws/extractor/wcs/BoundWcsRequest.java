@@ -41,6 +41,7 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
 import org.apache.http.protocol.BasicHttpContext;
 import org.georchestra.extractorapp.ws.ExtractorException;
+import org.georchestra.extractorapp.ws.extractor.CapabilitiesCache;
 import org.georchestra.extractorapp.ws.extractor.FileUtils;
 import org.georchestra.extractorapp.ws.extractor.OversizedCoverageRequestException;
 import org.georchestra.extractorapp.ws.extractor.XmlUtils;
@@ -196,13 +197,12 @@ class BoundWcsRequest extends WcsReaderRequest {
      * Download describeCoverage document and return it in string form.
      *
      * Downloading only occurs once and is cached so a new instance will be
-     * required to redownload
+     * required to redownload. The document is also shared with the other
+     * requests of the coverage through the {@link CapabilitiesCache}.
      */
     public String getDescribeCoverage () throws ProtocolException, MalformedURLException, IOException {
         if (_describeCoverage == null) {
-            InputStream stream = makeRequest (DESCRIBE_COVERAGE, _wcsUrl, false, 3000);
-
-            _describeCoverage = toString (stream);
+            _describeCoverage = cachedDocument (DESCRIBE_COVERAGE, "&COVERAGE=" + coverage);
         }
 
         return _describeCoverage;
@@ -212,18 +212,29 @@ class BoundWcsRequest extends WcsReaderRequest {
      * Download getCapabilities document and return it in string form.
      *
      * Downloading only occurs once and is cached so a new instance will be
-     * required to redownload
+     * required to redownload. The document is also shared with the other
+     * requests to the server through the {@link CapabilitiesCache}.
      */
     public String getCapabilities () throws ProtocolException, MalformedURLException, IOException {
         if (_capabilities == null) {
-            InputStream stream = makeRequest (GET_CAPABILITIES, _wcsUrl, false, 3000);
-
-            _capabilities = toString (stream);
+            _capabilities = cachedDocument (GET_CAPABILITIES, "");
         }
 
         return _capabilities;
     }
 
+    private String cachedDocument (final String request, String parameters) throws IOException {
+        String key = _wcsUrl + "?SERVICE=WCS&VERSION=" + version + "&REQUEST=" + request + parameters;
+        return CapabilitiesCache.shared ().get (key, username, null, new CapabilitiesCache.Loader () {
+            @Override
+            public String load () throws IOException {
+                InputStream stream = makeRequest (request, _wcsUrl, false, 3000);
+
+                return BoundWcsRequest.this.toString (stream);
+            }
+        }).getContent ();
+    }
+
     /**
      * Get the inputStream for the request. This is NOT cached
      */
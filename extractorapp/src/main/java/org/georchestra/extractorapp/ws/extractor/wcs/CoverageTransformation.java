@@ -7,9 +7,13 @@ import org.georchestra.extractorapp.ws.ExtractorException;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridFormatFinder;
 import org.geotools.coverage.grid.io.UnknownFormat;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
 import org.opengis.coverage.grid.Format;
 import org.opengis.coverage.grid.GridCoverage;
+import org.opengis.coverage.grid.GridCoverageReader;
 import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
 import org.opengis.referencing.FactoryException;
 
 
@@ -22,6 +26,9 @@ import org.opengis.referencing.FactoryException;
  */
 @SuppressWarnings("deprecation")
 abstract class CoverageTransformation<T> {
+	/** width and height of the tiles the coverages are read and written by */
+	static final int TILE_SIZE = 512;
+
 	/**
 	 * Entry point for performing a transformation
 	 * 
@@ -31,15 +38,43 @@ abstract class CoverageTransformation<T> {
 	 * @return result from the transform object
 	 */
 	public static <T> T perform(File in, CoverageTransformation<T> transform) throws IOException {
-            GeneralParameterValue[] params = new GeneralParameterValue[0];
             AbstractGridFormat gridFormat = lookupFormat(in);
-            GridCoverage coverage = gridFormat.getReader (in).read (params);
+            GridCoverageReader reader = gridFormat.getReader (in);
             try {
+                GridCoverage coverage = reader.read (tiledReadParameters());
 				return transform.transform(coverage);
 			} catch (FactoryException e) {
 				throw new ExtractorException(e);
+			} finally {
+				reader.dispose();
 			}
 	}
+
+	/**
+	 * The parameters to read the image of a coverage lazily, tile by tile, as
+	 * its pixels are used: a transformation then streams the coverage instead
+	 * of loading it in memory.
+	 */
+	static GeneralParameterValue[] tiledReadParameters() {
+		ParameterValue<Boolean> deferred = AbstractGridFormat.USE_JAI_IMAGEREAD.createValue();
+		deferred.setValue(true);
+		ParameterValue<String> tileSize = AbstractGridFormat.SUGGESTED_TILE_SIZE.createValue();
+		tileSize.setValue(TILE_SIZE + "," + TILE_SIZE);
+		return new GeneralParameterValue[] { deferred, tileSize };
+	}
+
+	/**
+	 * @return the parameter to write a GeoTIFF in tiles, so that the writer
+	 *         requests the pixels of the coverage tile by tile
+	 */
+	static ParameterValue<GeoToolsWriteParams> tiledGeoTiffParameter() {
+		GeoTiffWriteParams tiling = new GeoTiffWriteParams();
+		tiling.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+		tiling.setTiling(TILE_SIZE, TILE_SIZE);
+		ParameterValue<GeoToolsWriteParams> parameter = AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.createValue();
+		parameter.setValue(tiling);
+		return parameter;
+	}
 	
 	/**
 	 * just a helper method for obtaining a format object
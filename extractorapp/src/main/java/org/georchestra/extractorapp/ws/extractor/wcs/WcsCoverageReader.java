@@ -3,8 +3,8 @@ package org.georchestra.extractorapp.ws.extractor.wcs;
 import static org.georchestra.extractorapp.ws.extractor.wcs.WcsParameters.FORMAT;
 
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -15,6 +15,7 @@ import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -26,6 +27,10 @@ import java.util.Set;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RenderedOp;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -42,6 +47,7 @@ import org.geotools.data.ServiceInfo;
 import org.geotools.data.mif.MIFProjReader;
 import org.geotools.factory.GeoTools;
 import org.geotools.factory.Hints;
+import org.geotools.gce.geotiff.GeoTiffFormat;
 import org.geotools.gce.geotiff.GeoTiffWriter;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.parameter.Parameter;
@@ -250,7 +256,8 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
             file = new File(containingDirectory, baseFilename + "." + request.fileExtension());
             LOG.debug("Writing GridCoverage obtained from " + _wcsUrl + " to file " + file);
 
-            tmpFile = File.createTempFile(baseFilename, ".tif");
+            // next to the target, so that moving it is a rename and not a copy
+            tmpFile = File.createTempFile(baseFilename, ".tif", containingDirectory);
             writeToFile(tmpFile, input);
 
             transformCoverage(tmpFile, file, request, requestNativeFormat, true);
@@ -286,7 +293,7 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
             }
 
             LOG.info("Coverage reprojection/transformation complete");
-        } else if (handleFormatTranform) {
+        } else if (handleFormatTranform && (targetRequest.useCommandLineGDAL || !Formats.isGeotiff(targetRequest.format))) {
             if (targetRequest.useCommandLineGDAL) {
                 GDALCommandLine.gdalTransformation(sourceFile, file, executedRequest, targetRequest);
             } else {
@@ -330,12 +337,16 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
                     // load coverages into memory but reads off disk
                     GridCoverageWriter writer = format.getWriter(tmpFile);
 
-                    file.delete();
-
                     ParameterValue<String> formatParam = FORMAT.createValue ();
                     formatParam.setValue (request.format);
 
-                    writer.write((GridCoverage) transformed, new GeneralParameterValue[] {formatParam});
+                    try {
+                        writer.write((GridCoverage) transformed, writeParameters(format, formatParam));
+                    } finally {
+                        writer.dispose();
+                    }
+                    // the source is read while the coverage is written, it is replaced afterwards
+                    file.delete();
                     // There may be several files created if dest format is
                     // world+image
                     // so move all files in the tmpDir
@@ -348,7 +359,11 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
                     }
                 } else {
                     GridCoverageWriter writer = format.getWriter(file);
-                    writer.write((GridCoverage) transformed, null);
+                    try {
+                        writer.write((GridCoverage) transformed, writeParameters(format));
+                    } finally {
+                        writer.dispose();
+                    }
                 }
 
                 LOG.debug("Finished reprojecting output");
@@ -359,6 +374,19 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
         CoverageTransformation.perform(sourceFile, transformation);
     }
 
+    /**
+     * GeoTIFFs are written in tiles, so that the resampled coverage is
+     * computed tile by tile rather than in a single image
+     */
+    private static GeneralParameterValue[] writeParameters(AbstractGridFormat format, GeneralParameterValue... parameters) {
+        if (!(format instanceof GeoTiffFormat)) {
+            return parameters.length == 0 ? null : parameters;
+        }
+        GeneralParameterValue[] tiled = Arrays.copyOf(parameters, parameters.length + 1);
+        tiled[parameters.length] = CoverageTransformation.tiledGeoTiffParameter();
+        return tiled;
+    }
+
     private void convertFormat(String baseFilename, InputStream in, File file,
             WcsReaderRequest request, BoundWcsRequest requestNegotiatedFormat)
             throws IOException, AssertionError, FileNotFoundException {
@@ -376,8 +404,14 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
                     FileUtils.delete(tmpDir);
                 }
             } else {
-                BufferedImage image = ImageIO.read(in);
-                ImageIO.write(image, request.format, file);
+                File tmpFile = File.createTempFile(baseFilename, "." + requestNegotiatedFormat.fileExtension(),
+                        file.getParentFile());
+                try {
+                    writeToFile(tmpFile, in);
+                    transcode(tmpFile, file, request.format);
+                } finally {
+                    FileUtils.delete(tmpFile);
+                }
 
                 writeWorldImageExt(request, file);
             }
@@ -391,6 +425,31 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
         }
     }
 
+    /**
+     * Writes the image in another format without decoding it entirely: the
+     * image is read tile by tile (JAI ImageRead) as the writer requests its
+     * pixels.
+     */
+    private void transcode(File source, File target, String format) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(source);
+        try {
+            ImageLayout layout = new ImageLayout();
+            layout.setTileWidth(CoverageTransformation.TILE_SIZE).setTileHeight(CoverageTransformation.TILE_SIZE);
+            ParameterBlockJAI read = new ParameterBlockJAI("ImageRead");
+            read.setParameter("Input", input);
+            RenderedOp image = JAI.create("ImageRead", read, new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout));
+            try {
+                if (!ImageIO.write(image, format, target)) {
+                    throw new ExtractorException("No image writer available for the format " + format);
+                }
+            } finally {
+                image.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
     private void convertToGeotiff(File tmpFile, final File file)
             throws IOException {
 
@@ -400,8 +459,11 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
             public Object transform(GridCoverage coverage) throws IOException {
                 GeoTiffWriter writer = new GeoTiffWriter(file);
 
-                GeneralParameterValue[] params = new GeneralParameterValue[0];
-                writer.write(coverage, params);
+                try {
+                    writer.write(coverage, new GeneralParameterValue[] {CoverageTransformation.tiledGeoTiffParameter()});
+                } finally {
+                    writer.dispose();
+                }
                 return null;
             }
         };
@@ -0,0 +1,163 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExtractionArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExtractionArchive newArchive(File file) throws IOException {
+        return new ExtractionArchive(file, "extraction", Deflater.DEFAULT_COMPRESSION,
+                ExtractionArchive.DEFAULT_STORED_EXTENSIONS);
+    }
+
+    private File layer(String name, String... files) throws IOException {
+        File dir = new File(folder.getRoot(), name);
+        File layerDir = new File(dir, name);
+        layerDir.mkdirs();
+        for (String file : files) {
+            org.apache.commons.io.FileUtils.writeStringToFile(new File(layerDir, file), "content of " + file, "UTF-8");
+        }
+        return dir;
+    }
+
+    private List<String> entryNames(ZipFile zip) {
+        List<String> names = new ArrayList<String>();
+        for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+            names.add(entries.nextElement().getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    public void testStoredAndDeflatedEntries() throws Exception {
+        File file = new File(folder.getRoot(), "out/archive.zip");
+        ExtractionArchive archive = newArchive(file);
+        archive.addContent(layer("layer", "layer.shp", "image.PNG"));
+
+        assertEquals(file, archive.close());
+
+        ZipFile zip = new ZipFile(file);
+        try {
+            ZipEntry deflated = zip.getEntry("extraction/layer/layer.shp");
+            assertNotNull(deflated);
+            assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+            ZipEntry stored = zip.getEntry("extraction/layer/image.PNG");
+            assertNotNull(stored);
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertEquals("content of image.PNG", IOUtils.toString(zip.getInputStream(stored), "UTF-8"));
+            assertEquals("content of layer.shp", IOUtils.toString(zip.getInputStream(deflated), "UTF-8"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testPartFileRenamedWhenClosed() throws Exception {
+        File file = new File(folder.getRoot(), "archive.zip");
+        File part = new File(folder.getRoot(), "archive.zip.part");
+        ExtractionArchive archive = newArchive(file);
+        archive.addContent(layer("layer", "layer.gml"));
+
+        // an unfinished archive is never downloaded
+        assertTrue(part.exists());
+        assertFalse(file.exists());
+
+        archive.close();
+
+        assertTrue(file.exists());
+        assertFalse(part.exists());
+    }
+
+    @Test
+    public void testAbortDeletesPartFile() throws Exception {
+        File file = new File(folder.getRoot(), "archive.zip");
+        ExtractionArchive archive = newArchive(file);
+        archive.addContent(layer("layer", "layer.gml"));
+
+        archive.abort();
+
+        assertFalse(file.exists());
+        assertFalse(new File(folder.getRoot(), "archive.zip.part").exists());
+    }
+
+    @Test
+    public void testEmptyArchive() throws Exception {
+        File file = new File(folder.getRoot(), "archive.zip");
+        newArchive(file).close();
+
+        ZipFile zip = new ZipFile(file);
+        try {
+            assertEquals(Collections.singletonList("extraction/"), entryNames(zip));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testDuplicateFilesSkipped() throws Exception {
+        File file = new File(folder.getRoot(), "archive.zip");
+        ExtractionArchive archive = newArchive(file);
+        archive.addContent(layer("layer", "layer.gml"));
+        archive.addContent(layer("layer", "layer.gml", "layer.xml"));
+        archive.close();
+
+        ZipFile zip = new ZipFile(file);
+        try {
+            assertEquals(Arrays.asList("extraction/layer/layer.gml", "extraction/layer/layer.xml"),
+                    entryNames(zip));
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testMissingDirectoryCanBeRetried() throws Exception {
+        ExtractionArchive archive = newArchive(new File(folder.getRoot(), "archive.zip"));
+        try {
+            archive.addContent(new File(folder.getRoot(), "missing"));
+            fail("IOException expected");
+        } catch (IncompleteContentException e) {
+            fail("nothing was archived");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            archive.abort();
+        }
+    }
+
+    @Test
+    public void testFailureAfterArchivingIsIncomplete() throws Exception {
+        ExtractionArchive archive = newArchive(new File(folder.getRoot(), "archive.zip"));
+        archive.abort();
+        try {
+            // the zip stream is closed, as when the disk is full
+            archive.addContent(layer("layer", "layer.gml"));
+            fail("IncompleteContentException expected");
+        } catch (IncompleteContentException e) {
+            assertNotNull(e.getCause());
+        }
+    }
+}
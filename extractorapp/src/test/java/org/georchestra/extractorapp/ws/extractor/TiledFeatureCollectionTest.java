@@ -0,0 +1,208 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.util.NullProgressListener;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opengis.feature.Feature;
+import org.opengis.feature.FeatureVisitor;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Test for {@link TiledFeatureCollection}, the WFS layer is a mocked feature
+ * source evaluating the tile filters on features in memory.
+ */
+public class TiledFeatureCollectionTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private final ReferencedEnvelope bbox = new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84);
+
+    private final List<SimpleFeature> layer = new ArrayList<SimpleFeature>();
+
+    private SimpleFeatureType type;
+
+    private SimpleFeatureSource source;
+
+    private Query query;
+
+    /** number of GetFeature requests */
+    private int requests;
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("layer");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("the_geom", Geometry.class);
+        builder.add("name", String.class);
+        type = builder.buildFeatureType();
+
+        // a point in each unit square of the bbox
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                add(geometryFactory.createPoint(new Coordinate(x + 0.5, y + 0.5)));
+            }
+        }
+        // on the corners of the tiles and of the bbox
+        add(geometryFactory.createPoint(new Coordinate(5, 5)));
+        add(geometryFactory.createPoint(new Coordinate(10, 10)));
+        // crossing all the tiles of a row, without a vertex in the bbox
+        add(geometryFactory.createLineString(new Coordinate[] { new Coordinate(-1, 3), new Coordinate(11, 3) }));
+        // covering all the tiles
+        add(geometryFactory.toGeometry(new ReferencedEnvelope(-1, 11, -1, 11, DefaultGeographicCRS.WGS84)));
+        // outside the bbox
+        add(geometryFactory.createPoint(new Coordinate(20, 20)));
+
+        source = Mockito.mock(SimpleFeatureSource.class);
+        Mockito.when(source.getSchema()).thenReturn(type);
+        Mockito.when(source.getName()).thenReturn(new NameImpl("layer"));
+        Mockito.when(source.getFeatures(Matchers.any(Query.class))).thenAnswer(new Answer<SimpleFeatureCollection>() {
+            @Override
+            public SimpleFeatureCollection answer(InvocationOnMock invocation) {
+                requests++;
+                Query tileQuery = (Query) invocation.getArguments()[0];
+                List<SimpleFeature> selected = new ArrayList<SimpleFeature>();
+                for (SimpleFeature feature : layer) {
+                    if (selected.size() < tileQuery.getMaxFeatures() && tileQuery.getFilter().evaluate(feature)) {
+                        selected.add(feature);
+                    }
+                }
+                return DataUtilities.collection(selected);
+            }
+        });
+
+        query = new Query("layer", WfsExtractor.intersects("the_geom", bbox, "EPSG:4326"),
+                new String[] { "the_geom", "name" });
+    }
+
+    private void add(Geometry geometry) {
+        String id = "layer." + layer.size();
+        layer.add(SimpleFeatureBuilder.build(type, new Object[] { geometry, id }, id));
+    }
+
+    private TiledFeatureCollection newCollection() throws IOException {
+        return new TiledFeatureCollection(source, query, bbox, "EPSG:4326", PAGE_SIZE, 1);
+    }
+
+    private List<String> read(TiledFeatureCollection features) {
+        List<String> ids = new ArrayList<String>();
+        SimpleFeatureIterator it = features.features();
+        try {
+            while (it.hasNext()) {
+                ids.add(it.next().getID());
+            }
+        } finally {
+            it.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void testEachFeatureReadOnce() throws Exception {
+        List<String> ids = read(newCollection());
+
+        // all the features in the bbox, those intersecting several tiles once
+        assertEquals(layer.size() - 1, ids.size());
+        assertEquals(ids.size(), new HashSet<String>(ids).size());
+        // the layer does not fit in a page, it is read by several tiles
+        assertTrue(requests > 1);
+    }
+
+    /**
+     * More large features than a page overlap everywhere: the quarters return
+     * them again, the tiles are not split down to the maximum depth.
+     */
+    @Test
+    public void testOverlappingFeaturesNotSplitForever() throws Exception {
+        for (int i = 0; i < 2 * PAGE_SIZE; i++) {
+            add(geometryFactory.toGeometry(new ReferencedEnvelope(-1 - i * 0.1, 11, -1, 11, DefaultGeographicCRS.WGS84)));
+        }
+
+        List<String> ids = read(newCollection());
+
+        assertEquals(layer.size() - 1, ids.size());
+        assertEquals(ids.size(), new HashSet<String>(ids).size());
+        assertTrue("too many requests: " + requests, requests < 1000);
+    }
+
+    /**
+     * More features than a page cross every tile of a row without covering
+     * any: the tiles are not split any more once MAX_TILES have been read.
+     */
+    @Test
+    public void testNumberOfTilesLimited() throws Exception {
+        for (int i = 0; i < 2 * PAGE_SIZE; i++) {
+            add(geometryFactory.createLineString(new Coordinate[] { new Coordinate(-1, 3), new Coordinate(11, 3) }));
+        }
+
+        List<String> ids = read(newCollection());
+
+        assertEquals(layer.size() - 1, ids.size());
+        assertEquals(ids.size(), new HashSet<String>(ids).size());
+        assertTrue("too many requests: " + requests, requests < TiledFeatureCollection.MAX_TILES + 50);
+    }
+
+    @Test
+    public void testAcceptsDoesNotCount() throws Exception {
+        TiledFeatureCollection features = newCollection();
+        final List<String> visited = new ArrayList<String>();
+
+        features.accepts(new FeatureVisitor() {
+            @Override
+            public void visit(Feature feature) {
+                visited.add(feature.getIdentifier().getID());
+            }
+        }, new NullProgressListener());
+
+        int visitRequests = requests;
+        requests = 0;
+        assertEquals(read(newCollection()), visited);
+        // the layer is read once: as many requests as a single iteration
+        assertEquals(requests, visitRequests);
+        Mockito.verify(source, Mockito.never()).getCount(Matchers.any(Query.class));
+    }
+
+    @Test
+    public void testSizeAskedToTheServer() throws Exception {
+        Mockito.when(source.getCount(Matchers.any(Query.class))).thenReturn(42);
+
+        assertEquals(42, newCollection().size());
+        assertEquals(0, requests);
+    }
+
+    @Test
+    public void testSizeCountedWhenUnknown() throws Exception {
+        Mockito.when(source.getCount(Matchers.any(Query.class))).thenReturn(-1);
+
+        assertEquals(layer.size() - 1, newCollection().size());
+    }
+}
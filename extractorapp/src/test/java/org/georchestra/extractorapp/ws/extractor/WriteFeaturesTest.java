@@ -0,0 +1,143 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Test for the batches of {@link WriteFeatures}, the features are written to
+ * shapefiles.
+ */
+public class WriteFeaturesTest {
+
+    private static final int BATCH_SIZE = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private SimpleFeatureType type;
+
+    private SimpleFeatureBuilder featureBuilder;
+
+    private int nextId;
+
+    @Before
+    public void setUp() {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("layer");
+        builder.setCRS(DefaultGeographicCRS.WGS84);
+        builder.add("the_geom", Geometry.class);
+        builder.add("name", String.class);
+        type = builder.buildFeatureType();
+        featureBuilder = new SimpleFeatureBuilder(type);
+    }
+
+    private WriteFeatures newWriter(int maxTransactionFeatures) {
+        return new WriteFeatures(type, folder.getRoot(), DefaultGeographicCRS.WGS84, new ShpDatastoreFactory(),
+                BATCH_SIZE, maxTransactionFeatures);
+    }
+
+    private void visit(WriteFeatures writer, Geometry geometry) {
+        featureBuilder.add(geometry);
+        featureBuilder.add("feature" + nextId);
+        writer.visit(featureBuilder.buildFeature("layer." + nextId++));
+    }
+
+    private Geometry point(int i) {
+        return geometryFactory.createPoint(new Coordinate(i, i));
+    }
+
+    private Geometry line(int i) {
+        return geometryFactory.createLineString(new Coordinate[] { new Coordinate(i, 0), new Coordinate(i, 1) });
+    }
+
+    private Geometry polygon(int i) {
+        return geometryFactory.toGeometry(new Envelope(i, i + 1, 0, 1));
+    }
+
+    /**
+     * @return the names of the features written to the shapefile, read
+     *         outside of the transaction of the writer
+     */
+    private Set<String> readNames(String typeName) throws IOException {
+        File file = new File(folder.getRoot(), typeName + ".shp");
+        ShapefileDataStore store = new ShapefileDataStore(file.toURI().toURL());
+        Set<String> names = new HashSet<String>();
+        try {
+            SimpleFeatureIterator it = store.getFeatureSource().getFeatures().features();
+            try {
+                while (it.hasNext()) {
+                    names.add((String) it.next().getAttribute("name"));
+                }
+            } finally {
+                it.close();
+            }
+        } finally {
+            store.dispose();
+        }
+        return names;
+    }
+
+    @Test
+    public void testPartialBatchesFlushedOnClose() throws Exception {
+        WriteFeatures writer = newWriter(WriteFeatures.MAX_TRANSACTION_FEATURES);
+        // the geometry types are mixed, none of the counts is a multiple of the batch size
+        Set<String> points = new HashSet<String>();
+        Set<String> lines = new HashSet<String>();
+        Set<String> polygons = new HashSet<String>();
+        for (int i = 0; i < 10; i++) {
+            points.add("feature" + nextId);
+            visit(writer, point(i));
+            if (i < 7) {
+                lines.add("feature" + nextId);
+                visit(writer, line(i));
+            }
+            if (i < 5) {
+                polygons.add("feature" + nextId);
+                visit(writer, polygon(i));
+            }
+        }
+        writer.close();
+
+        assertEquals(3, writer.getShapeFiles().length);
+        assertEquals(points, readNames("layer_POINT"));
+        assertEquals(lines, readNames("layer_LINE"));
+        assertEquals(polygons, readNames("layer_POLYGON"));
+    }
+
+    @Test
+    public void testTransactionCommittedWhenFull() throws Exception {
+        WriteFeatures writer = newWriter(10);
+        for (int i = 0; i < 12; i++) {
+            visit(writer, point(i));
+        }
+        // the third batch would exceed the transaction, the first two are committed
+        assertEquals(8, readNames("layer_POINT").size());
+
+        visit(writer, point(12));
+        writer.close();
+
+        assertEquals(13, readNames("layer_POINT").size());
+    }
+}
@@ -0,0 +1,229 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
+import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the scheduling of {@link ExtractionManager}. The manager runs one
+ * task at a time, the tasks are stubs recording their execution order. A first
+ * task holds the thread while the following ones are waiting.
+ */
+public class ExtractionManagerTest {
+
+    private ExtractionManager manager;
+
+    /** names of the tasks which have run, in execution order */
+    private final List<String> runs = Collections.synchronizedList(new ArrayList<String>());
+
+    private final CountDownLatch blockerStarted = new CountDownLatch(1);
+
+    private final CountDownLatch blockerReleased = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        manager = new ExtractionManager();
+        manager.setMinThreads(1);
+        manager.setMaxExtractions(1);
+        manager.init();
+
+        manager.submit(new StubTask("blocker") {
+            @Override
+            protected void extract() throws InterruptedException {
+                blockerStarted.countDown();
+                blockerReleased.await();
+            }
+        });
+        assertTrue(blockerStarted.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        blockerReleased.countDown();
+    }
+
+    private StubTask submit(String name) {
+        StubTask task = new StubTask(name);
+        manager.submit(task);
+        return task;
+    }
+
+    private static String uuid(ExtractionTask task) {
+        return task.executionMetadata.getUuid();
+    }
+
+    /**
+     * Releases the first task and waits for the given number of tasks to run,
+     * the first one included.
+     */
+    private void runTasks(int count) throws InterruptedException {
+        blockerReleased.countDown();
+        waitForRuns(count);
+    }
+
+    private void waitForRuns(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (runs.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // the tasks which should not run are given the time to run
+        Thread.sleep(100);
+        assertEquals(count, runs.size());
+    }
+
+    @Test
+    public void testSubmissionOrder() throws Exception {
+        submit("a");
+        submit("b");
+        StubTask high = new StubTask("high");
+        high.executionMetadata.setPriority(ExecutionPriority.HIGH);
+        manager.submit(high);
+        submit("c");
+
+        runTasks(5);
+
+        assertEquals(Arrays.asList("blocker", "high", "a", "b", "c"), runs);
+    }
+
+    @Test
+    public void testPriorityChangedWhileWaiting() throws Exception {
+        StubTask a = submit("a");
+        submit("b");
+        StubTask c = submit("c");
+
+        manager.updatePriority(c.executionMetadata.getUuid(), ExecutionPriority.HIGH);
+        manager.updatePriority(a.executionMetadata.getUuid(), ExecutionPriority.LOW);
+
+        List<ExecutionMetadata> queue = manager.getTaskQueue();
+        assertEquals(uuid(c), queue.get(0).getUuid());
+        assertEquals(ExecutionPriority.HIGH, queue.get(0).getPriority());
+        assertEquals(uuid(a), queue.get(2).getUuid());
+
+        runTasks(4);
+
+        assertEquals(Arrays.asList("blocker", "c", "b", "a"), runs);
+    }
+
+    @Test
+    public void testPauseThenResume() throws Exception {
+        StubTask a = submit("a");
+        submit("b");
+
+        manager.updateStatus(uuid(a), ExecutionState.PAUSED);
+        assertTrue(a.executionMetadata.isPaused());
+        assertNotNull(manager.findTask(uuid(a)));
+
+        runTasks(2);
+        assertEquals(Arrays.asList("blocker", "b"), runs);
+        assertTrue(a.executionMetadata.isPaused());
+
+        // the runner left by the paused task has run nothing, another one runs it
+        manager.updateStatus(uuid(a), ExecutionState.WAITING);
+        waitForRuns(3);
+        assertEquals("a", runs.get(2));
+        assertTrue(a.executionMetadata.isCompleted());
+    }
+
+    @Test
+    public void testPauseAndResumeRunOnce() throws Exception {
+        StubTask a = submit("a");
+        submit("b");
+        for (int i = 0; i < 10; i++) {
+            manager.updateStatus(uuid(a), ExecutionState.PAUSED);
+            manager.updateStatus(uuid(a), ExecutionState.WAITING);
+        }
+
+        runTasks(3);
+
+        assertEquals(Arrays.asList("blocker", "b", "a"), runs);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        StubTask a = submit("a");
+        StubTask b = submit("b");
+        StubTask paused = submit("paused");
+        submit("c");
+
+        manager.updateStatus(uuid(a), ExecutionState.CANCELLED);
+        manager.removeTask(uuid(b));
+        manager.updateStatus(uuid(paused), ExecutionState.PAUSED);
+        manager.updateStatus(uuid(paused), ExecutionState.CANCELLED);
+
+        assertEquals(ExecutionState.CANCELLED, a.executionMetadata.getState());
+        assertEquals(ExecutionState.CANCELLED, b.executionMetadata.getState());
+        assertEquals(ExecutionState.CANCELLED, paused.executionMetadata.getState());
+        assertNull(manager.findTask(uuid(a)));
+
+        runTasks(2);
+
+        assertEquals(Arrays.asList("blocker", "c"), runs);
+        // a cancelled task cannot be resumed
+        manager.updateStatus(uuid(paused), ExecutionState.WAITING);
+        waitForRuns(2);
+    }
+
+    @Test
+    public void testUpdateAllPriorities() throws Exception {
+        StubTask a = submit("a");
+        StubTask b = submit("b");
+        StubTask c = submit("c");
+        manager.updatePriority(uuid(a), ExecutionPriority.HIGH);
+
+        // b is not in the new order, it is cancelled
+        manager.updateAllPriorities(Arrays.asList(uuid(c), uuid(a)));
+
+        assertEquals(ExecutionState.CANCELLED, b.executionMetadata.getState());
+        assertEquals(ExecutionPriority.MEDIUM, a.executionMetadata.getPriority());
+
+        // the task submitted afterwards is queued after them
+        submit("d");
+
+        runTasks(4);
+
+        assertEquals(Arrays.asList("blocker", "c", "a", "d"), runs);
+    }
+
+    private class StubTask extends ExtractionTask {
+        private final String name;
+
+        StubTask(String name) {
+            super(new RequestConfiguration(Collections.<ExtractorLayerRequest> emptyList(), UUID.randomUUID(), null,
+                    null, true, "user", "ROLE_SV_USER", null, "localhost", "extraction-", 0, false, false,
+                    "{\"name\":\"" + name + "\"}"), new Date());
+            this.name = name;
+        }
+
+        protected void extract() throws InterruptedException {
+        }
+
+        @Override
+        public void run() {
+            executionMetadata.setRunning();
+            runs.add(name);
+            try {
+                extract();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executionMetadata.setCompleted();
+            }
+        }
+    }
+}
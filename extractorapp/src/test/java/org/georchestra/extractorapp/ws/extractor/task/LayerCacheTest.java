@@ -0,0 +1,186 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LayerCacheTest {
+
+    /** size of the layers created by the test */
+    private static final int LAYER_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDir;
+
+    private LayerCache cache;
+
+    private int layers;
+
+    @Before
+    public void setUp() {
+        cacheDir = new File(folder.getRoot(), "cache");
+        cache = newCache();
+    }
+
+    private LayerCache newCache() {
+        LayerCache newCache = new LayerCache();
+        newCache.setDirectory(cacheDir);
+        return newCache;
+    }
+
+    /**
+     * @return an extracted layer, a directory holding a file of LAYER_SIZE bytes
+     */
+    private File layer(String content) throws IOException {
+        File dir = new File(folder.getRoot(), "layer" + (layers++));
+        StringBuilder data = new StringBuilder(content);
+        while (data.length() < LAYER_SIZE) {
+            data.append(' ');
+        }
+        FileUtils.writeStringToFile(new File(dir, "layer.gml"), data.toString(), "UTF-8");
+        return dir;
+    }
+
+    private String content(File layer) throws IOException {
+        return FileUtils.readFileToString(new File(layer, "layer.gml"), "UTF-8").trim();
+    }
+
+    @Test
+    public void testPutAndAcquire() throws Exception {
+        assertNull(cache.acquire("a"));
+
+        File extracted = layer("a");
+        cache.put("a", extracted);
+
+        // moved in the cache
+        assertFalse(extracted.exists());
+        File cached = cache.acquire("a");
+        assertNotNull(cached);
+        assertEquals(new File(cacheDir, "a"), cached);
+        assertEquals("a", content(cached));
+        cache.release("a");
+        assertNull(cache.acquire("b"));
+    }
+
+    @Test
+    public void testPutReplacesReleasedLayer() throws Exception {
+        cache.put("a", layer("first"));
+        cache.put("a", layer("second"));
+
+        assertEquals("second", content(cache.acquire("a")));
+        cache.release("a");
+    }
+
+    @Test
+    public void testPutKeepsAcquiredLayer() throws Exception {
+        cache.put("a", layer("first"));
+        File cached = cache.acquire("a");
+
+        File extracted = layer("second");
+        cache.put("a", extracted);
+
+        // being archived, it is not replaced and the new one is dropped
+        assertEquals("first", content(cached));
+        cache.release("a");
+        assertEquals("first", content(cache.acquire("a")));
+        cache.release("a");
+        assertEquals(1, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        cache.setMaxSize(2 * LAYER_SIZE);
+        cache.put("a", layer("a"));
+        cache.put("b", layer("b"));
+        // a is used more recently than b
+        cache.acquire("a");
+        cache.release("a");
+
+        cache.put("c", layer("c"));
+
+        assertNull(cache.acquire("b"));
+        assertFalse(new File(cacheDir, "b").exists());
+        assertNotNull(cache.acquire("a"));
+        assertNotNull(cache.acquire("c"));
+    }
+
+    @Test
+    public void testAcquiredLayerNotEvicted() throws Exception {
+        cache.setMaxSize(LAYER_SIZE);
+        cache.put("a", layer("a"));
+        File cached = cache.acquire("a");
+
+        cache.put("b", layer("b"));
+
+        // pinned by its reader, the other layer is evicted instead
+        assertTrue(cached.exists());
+        assertEquals("a", content(cached));
+        assertNull(cache.acquire("b"));
+        cache.release("a");
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        cache.put("a", layer("a"));
+        cache.put("b", layer("b"));
+        File pinned = cache.acquire("b");
+
+        cache.setTimeToLive(10);
+        Thread.sleep(50);
+
+        assertNull(cache.acquire("a"));
+        assertFalse(new File(cacheDir, "a").exists());
+        // expired, but deleted only once released
+        assertNull(cache.acquire("b"));
+        assertTrue(pinned.exists());
+        cache.release("b");
+        assertNull(cache.acquire("b"));
+        assertFalse(pinned.exists());
+    }
+
+    @Test
+    public void testRestartReindexesLayers() throws Exception {
+        cache.put("old", layer("old"));
+        cache.put("new", layer("new"));
+        new File(cacheDir, "old").setLastModified(System.currentTimeMillis() - 60000);
+        // interrupted while storing a layer
+        File part = new File(cacheDir, "other-3.part");
+        part.mkdirs();
+        FileUtils.writeStringToFile(new File(cacheDir, "unknown.txt"), "not a layer", "UTF-8");
+
+        LayerCache restarted = newCache();
+        restarted.setMaxSize(LAYER_SIZE);
+
+        // the oldest layer is evicted when the cache is indexed
+        assertEquals("new", content(restarted.acquire("new")));
+        assertNull(restarted.acquire("old"));
+        assertFalse(part.exists());
+        assertFalse(new File(cacheDir, "unknown.txt").exists());
+        restarted.release("new");
+    }
+
+    @Test
+    public void testRestartExpiresOldLayers() throws Exception {
+        cache.put("a", layer("a"));
+        new File(cacheDir, "a").setLastModified(System.currentTimeMillis() - 60000);
+
+        LayerCache restarted = newCache();
+        restarted.setTimeToLive(30000);
+
+        assertNull(restarted.acquire("a"));
+        assertFalse(new File(cacheDir, "a").exists());
+    }
+}
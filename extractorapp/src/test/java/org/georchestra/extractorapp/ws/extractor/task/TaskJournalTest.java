@@ -0,0 +1,192 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TaskJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private TaskJournal journal;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "extraction-tasks.journal");
+        journal = newJournal();
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    private TaskJournal newJournal() {
+        TaskJournal newJournal = new TaskJournal();
+        newJournal.setFile(file);
+        return newJournal;
+    }
+
+    private ExecutionMetadata submit(String request) {
+        ExecutionMetadata metadata = new ExecutionMetadata(UUID.randomUUID(), "user", new Date(), request);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("sec-username", "user");
+        headers.put("sec-roles", "ROLE_SV_USER");
+        journal.submitted(metadata, request, headers);
+        return metadata;
+    }
+
+    /** the journal read again, as after a restart */
+    private List<TaskJournal.Entry> reload() throws IOException {
+        journal.close();
+        journal = newJournal();
+        return journal.load();
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        assertTrue(journal.load().isEmpty());
+
+        ExecutionMetadata first = submit("{\"layers\":1}");
+        ExecutionMetadata second = submit("{\"layers\":2}");
+        ExecutionMetadata finished = submit("{\"layers\":3}");
+        journal.priorityChanged(second.getUuid(), ExecutionPriority.HIGH);
+        journal.finished(finished.getUuid());
+
+        List<TaskJournal.Entry> entries = reload();
+
+        assertEquals(2, entries.size());
+        TaskJournal.Entry entry = entries.get(0);
+        assertEquals(first.getUuid(), entry.getUuid());
+        assertEquals("{\"layers\":1}", entry.getRequest());
+        assertEquals(first.getRequestTime(), entry.getRequestTime());
+        assertEquals(ExecutionPriority.MEDIUM, entry.getPriority());
+        assertEquals("user", entry.getHeaders().get("sec-username"));
+        assertEquals("ROLE_SV_USER", entry.getHeaders().get("sec-roles"));
+        assertEquals(second.getUuid(), entries.get(1).getUuid());
+        assertEquals(ExecutionPriority.HIGH, entries.get(1).getPriority());
+        // rewritten with the unfinished tasks
+        assertEquals(2, FileUtils.readLines(file, "UTF-8").size());
+    }
+
+    @Test
+    public void testOnlyRecordedHeadersAreWritten() throws Exception {
+        ExecutionMetadata metadata = new ExecutionMetadata(UUID.randomUUID(), "user", new Date(), "{}");
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("sec-username", "user");
+        headers.put("sec-convention", "true");
+        headers.put("sec-email", "user@example.org");
+        headers.put("sec-tel", "0123456789");
+        journal.submitted(metadata, "{}", headers);
+        journal.close();
+
+        String content = FileUtils.readFileToString(file, "UTF-8");
+        assertTrue(content.contains("sec-convention"));
+        assertFalse(content.contains("user@example.org"));
+        assertFalse(content.contains("0123456789"));
+
+        Map<String, String> restored = reload().get(0).getHeaders();
+        assertEquals(2, restored.size());
+        assertEquals("user", restored.get("sec-username"));
+        assertEquals("true", restored.get("sec-convention"));
+    }
+
+    @Test
+    public void testPreviousJournalHeadersAreDropped() throws Exception {
+        String uuid = UUID.randomUUID().toString();
+        FileUtils.writeStringToFile(file, "{\"op\":\"submit\",\"uuid\":\"" + uuid + "\",\"request\":\"{}\","
+                + "\"headers\":{\"sec-username\":\"user\",\"sec-email\":\"user@example.org\"},"
+                + "\"time\":0,\"priority\":\"MEDIUM\",\"state\":\"WAITING\"}\n", "UTF-8");
+
+        List<TaskJournal.Entry> entries = journal.load();
+
+        assertEquals(1, entries.size());
+        assertNull(entries.get(0).getHeaders().get("sec-email"));
+        assertFalse(FileUtils.readFileToString(file, "UTF-8").contains("user@example.org"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        journal.load();
+        ExecutionMetadata kept = submit("{\"kept\":true}");
+        for (int i = 0; i < 1000; i++) {
+            journal.finished(submit("{\"layers\":" + i + "}").getUuid());
+        }
+        journal.close();
+
+        // 2001 events were written, the journal was rewritten when the finished tasks made most of it
+        int lines = FileUtils.readLines(file, "UTF-8").size();
+        assertTrue("not compacted: " + lines + " lines", lines <= 1001);
+
+        List<TaskJournal.Entry> entries = reload();
+        assertEquals(1, entries.size());
+        assertEquals(kept.getUuid(), entries.get(0).getUuid());
+    }
+
+    @Test
+    public void testTruncatedLastLine() throws Exception {
+        ExecutionMetadata metadata = submit("{}");
+        journal.close();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        try {
+            // the server stopped while writing the event
+            out.write("{\"op\":\"finish\",\"uu");
+        } finally {
+            out.close();
+        }
+
+        List<TaskJournal.Entry> entries = reload();
+
+        assertEquals(1, entries.size());
+        assertEquals(metadata.getUuid(), entries.get(0).getUuid());
+        assertEquals(1, FileUtils.readLines(file, "UTF-8").size());
+
+        // the following events are readable
+        journal.finished(metadata.getUuid());
+        assertTrue(reload().isEmpty());
+    }
+
+    @Test
+    public void testRestoredState() throws Exception {
+        journal.load();
+        ExecutionMetadata paused = submit("{\"paused\":true}");
+        ExecutionMetadata running = submit("{\"running\":true}");
+        ExecutionMetadata resumed = submit("{\"resumed\":true}");
+        journal.stateChanged(paused.getUuid(), ExecutionState.PAUSED);
+        journal.stateChanged(resumed.getUuid(), ExecutionState.PAUSED);
+        journal.stateChanged(resumed.getUuid(), ExecutionState.WAITING);
+
+        List<TaskJournal.Entry> entries = reload();
+
+        assertEquals(3, entries.size());
+        assertEquals(paused.getUuid(), entries.get(0).getUuid());
+        assertEquals(ExecutionState.PAUSED, entries.get(0).getState());
+        // a task running when the server stopped is started again
+        assertEquals(running.getUuid(), entries.get(1).getUuid());
+        assertEquals(ExecutionState.WAITING, entries.get(1).getState());
+        assertEquals(resumed.getUuid(), entries.get(2).getUuid());
+        assertEquals(ExecutionState.WAITING, entries.get(2).getState());
+    }
+}
@@ -10,7 +10,6 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
-import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Random;
@@ -23,9 +22,6 @@ import java.sql.ResultSet;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -279,18 +275,11 @@ public abstract class A_DocService {
 
             InputStream dataToValid = new ByteArrayInputStream(getContent().getBytes("UTF-8"));
 
-            // lookup a factory for the W3C XML Schema language
-            SchemaFactory factory = SchemaFactory.newInstance("http://www.w3.org/2001/XMLSchema");
-
-            // get the schema online.
-            Schema schema = factory.newSchema(new URL(schemaURL));
-
             // prepare source to valid by the validator based on the schema
             Source source = new StreamSource(dataToValid);
-            Validator validator = schema.newValidator();
 
-            // check if doc is valid
-            validator.validate(source);
+            // check if doc is valid, the schema is compiled once (see SchemaCache)
+            SchemaCache.validate(schemaURL, source);
             return true;
         }
         catch (SAXException ex) {
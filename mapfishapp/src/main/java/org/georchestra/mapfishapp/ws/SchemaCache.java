@@ -0,0 +1,137 @@
+package org.georchestra.mapfishapp.ws;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * The XSD schemas the documents are validated against, downloaded and
+ * compiled once then shared by all the requests. The schemas are not bundled:
+ * their server (schemas.opengis.net for the WMC and SLD documents) must be
+ * reachable once after each restart.
+ * <p>
+ * Each schema is compiled under its own lock: the requests validated against
+ * another schema do not wait for the download. A schema which cannot be
+ * compiled, e.g. while its server is unreachable, is not downloaded again
+ * before RETRY_DELAY, the requests fail immediately in the meantime.
+ * </p>
+ * <p>
+ * A compiled {@link Schema} is thread safe, its {@link Validator}s are not:
+ * they are kept in a pool and reused by one request at a time.
+ * </p>
+ */
+final class SchemaCache {
+
+    private static final Log LOG = LogFactory.getLog(SchemaCache.class.getPackage().getName());
+
+    /** milliseconds a failed compilation is reported before the schema is downloaded again */
+    private static final long RETRY_DELAY = 60000;
+
+    private static final class Entry {
+        final String schemaURL;
+        final Queue<Validator> validators = new ConcurrentLinkedQueue<Validator>();
+        private volatile Schema schema;
+        /** the last compilation failure, null if there is none */
+        private Exception failure;
+        private long failureTime;
+
+        Entry(String schemaURL) {
+            this.schemaURL = schemaURL;
+        }
+
+        Schema schema() throws SAXException, IOException {
+            Schema compiled = schema;
+            if (compiled != null) {
+                return compiled;
+            }
+            // compiled once, the other requests of this schema wait for it
+            synchronized (this) {
+                if (schema == null) {
+                    if (failure != null && System.currentTimeMillis() - failureTime < RETRY_DELAY) {
+                        String message = "Schema " + schemaURL + " unavailable: " + failure.getMessage();
+                        if (failure instanceof SAXException) {
+                            throw new SAXException(message, failure);
+                        }
+                        throw new IOException(message, failure);
+                    }
+                    try {
+                        schema = compile(schemaURL);
+                        failure = null;
+                    } catch (SAXException e) {
+                        failed(e);
+                        throw e;
+                    } catch (IOException e) {
+                        failed(e);
+                        throw e;
+                    }
+                }
+                return schema;
+            }
+        }
+
+        private void failed(Exception e) {
+            LOG.warn("Unable to compile the schema " + schemaURL + ": " + e.getMessage());
+            failure = e;
+            failureTime = System.currentTimeMillis();
+        }
+    }
+
+    private static final ConcurrentMap<String, Entry> SCHEMAS = new ConcurrentHashMap<String, Entry>();
+
+    private SchemaCache() {
+    }
+
+    /**
+     * Validates the document against the schema
+     *
+     * @throws SAXException if the document is not valid
+     * @throws IOException if the schema cannot be loaded
+     */
+    static void validate(String schemaURL, Source document) throws SAXException, IOException {
+        Entry entry = entry(schemaURL);
+        Schema schema = entry.schema();
+        Validator validator = entry.validators.poll();
+        if (validator == null) {
+            validator = schema.newValidator();
+        }
+        try {
+            validator.validate(document);
+        } finally {
+            validator.reset();
+            entry.validators.offer(validator);
+        }
+    }
+
+    private static Entry entry(String schemaURL) {
+        Entry entry = SCHEMAS.get(schemaURL);
+        if (entry == null) {
+            Entry created = new Entry(schemaURL);
+            entry = SCHEMAS.putIfAbsent(schemaURL, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    private static Schema compile(String schemaURL) throws SAXException, IOException {
+        long start = System.currentTimeMillis();
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        Schema schema = factory.newSchema(new URL(schemaURL));
+        LOG.info("Schema " + schemaURL + " compiled in " + (System.currentTimeMillis() - start) + " ms");
+        return schema;
+    }
+}
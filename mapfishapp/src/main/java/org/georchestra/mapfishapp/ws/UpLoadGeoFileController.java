@@ -3,10 +3,12 @@
  */
 package org.georchestra.mapfishapp.ws;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.net.URL;
@@ -17,8 +19,10 @@ import java.util.zip.ZipFile;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
@@ -42,9 +46,6 @@ import org.springframework.web.multipart.MultipartHttpServletRequest;
 import org.springframework.web.multipart.commons.CommonsMultipartResolver;
 import org.springframework.web.servlet.HandlerExceptionResolver;
 import org.springframework.web.servlet.ModelAndView;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXParseException;
 
 /**
  * This controller is responsible for uploading a geofiles and transform their
@@ -287,7 +288,10 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
      * @param request
      *            The expected parameters are geofile (or url) and srs. In case
      *            a url is provided, the file can be fetched remotely and
-     *            analyzed as if it was posted.
+     *            analyzed as if it was posted. The optional parameters
+     *            tolerance (simplification distance, in the srs units) and
+     *            decimals (number of decimals of the coordinates) reduce the
+     *            size of the response.
      *
      * @param response
      * @throws IOException
@@ -364,39 +368,18 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
                     LOG.debug("provided file is not a ZIP file");
                 }
                 if (StringUtils.isBlank(guessedExtension)) {
-                    DocumentBuilderFactory factory = DocumentBuilderFactory
-                            .newInstance();
-                    DocumentBuilder builder;
-
-                    try {
-                        builder = factory.newDocumentBuilder();
-                        Document doc = builder.parse(destFile);
-
-                        // manages messed-up xml documents, selects the first
-                        // significant element (i.e. which is not a comment).
-                        NodeList lst = doc.getChildNodes();
-                        String rootElement = "";
-                        int i = 0;
-                        do {
-                            if (i < lst.getLength())
-                                rootElement = lst.item(i++).getNodeName();
-                            // last element (unlikely to happen):
-                            // and we only found #comment elements
-                            else
-                                rootElement = "";
-                        } while ("#comment".equals(rootElement));
-
-                        if ("osm".equals(rootElement)) {
-                            guessedExtension = "osm";
-                        } else if ("kml".equals(rootElement)) {
-                            guessedExtension = "kml";
-                        } else if ("gpx".equals(rootElement)) {
-                            guessedExtension = "gpx";
-                        } else if (rootElement.contains("FeatureCollection")) {
-                            guessedExtension = "gml";
-                        }
-                    } catch (SAXParseException e) {
+                    // only the root element is read, not the whole document
+                    String rootElement = readRootElement(destFile);
+                    if (rootElement == null) {
                         LOG.debug("provided file is not an XML file either, giving up.");
+                    } else if ("osm".equals(rootElement)) {
+                        guessedExtension = "osm";
+                    } else if ("kml".equals(rootElement)) {
+                        guessedExtension = "kml";
+                    } else if ("gpx".equals(rootElement)) {
+                        guessedExtension = "gpx";
+                    } else if (rootElement.contains("FeatureCollection")) {
+                        guessedExtension = "gml";
                     }
                 }
                 // if guessedExtension is still blank, give up
@@ -475,6 +458,26 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
                 throw new IOException(e);
             }
 
+            // optional simplification and rounding of the geometries, to
+            // reduce the size of the response
+            final String toleranceParam = request.getParameter("tolerance");
+            if (StringUtils.isNotBlank(toleranceParam)) {
+                double tolerance = parseParameter("tolerance", toleranceParam);
+                if (tolerance < 0) {
+                    throw new IllegalArgumentException("tolerance must be positive: " + toleranceParam);
+                }
+                fileManagement.setSimplificationTolerance(tolerance);
+            }
+            final String decimalsParam = request.getParameter("decimals");
+            if (StringUtils.isNotBlank(decimalsParam)) {
+                double decimals = parseParameter("decimals", decimalsParam);
+                if (decimals < 0 || decimals > UpLoadFileManagement.DEFAULT_DECIMALS || decimals != Math.floor(decimals)) {
+                    throw new IllegalArgumentException("decimals must be an integer between 0 and "
+                            + UpLoadFileManagement.DEFAULT_DECIMALS + ": " + decimalsParam);
+                }
+                fileManagement.setDecimals((int) decimals);
+            }
+
             // retrieves the feature collection and write the response
             writeOKResponse(response, fileManagement, crs);
 
@@ -492,6 +495,48 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
         }
     }
 
+    /**
+     * Reads the name of the root element of a xml file. The comments and the
+     * processing instructions before it are skipped.
+     *
+     * @param file
+     * @return the local name of the root element, null if the file is not a xml file
+     * @throws IOException
+     */
+    private static String readRootElement(final File file) throws IOException {
+
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        return reader.getLocalName();
+                    }
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static double parseParameter(final String name, final String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not a number: " + value, e);
+        }
+    }
+
     /**
      * Write the features in the response object.
      * <p>
@@ -510,8 +555,6 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
             final UpLoadFileManagement fileManagement,
             final CoordinateReferenceSystem crs) throws Exception {
 
-        StringWriter json_out = new StringWriter();
-
         response.setCharacterEncoding(responseCharset);
         response.setContentType("text/html");
         response.setStatus(HttpServletResponse.SC_OK);
@@ -519,12 +562,15 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
         PrintWriter out = response.getWriter();
         try {
 
-            fileManagement.writeFeatureCollectionAsJSON(json_out, crs);
-
             // builds the following response:
             // "{\"success\": \"true\", \"geojson\":" + jsonFeatures+"}");
+            // the features are written in the response while they are read
+            // from the file. The file is opened before the response buffer
+            // is sent, thus the errors found opening it are still reported.
+            // An error found once the buffer is sent ends the response
+            // before the end of the document, which is thus not valid.
             out.print("{\"success\": \"true\", \"geojson\":");
-            out.print(json_out.toString());
+            fileManagement.writeFeatureCollectionAsJSON(out, crs);
             out.println("}");
 
             out.flush();
@@ -563,6 +609,11 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
     private void writeErrorResponse(HttpServletResponse response,
             final Status st, final String errorDetail,
             final int responseStatusError) {
+        if (response.isCommitted()) {
+            // part of the features has already been sent
+            LOG.error("The response is already sent, unable to report the error " + st + " " + errorDetail);
+            return;
+        }
         response.reset();
         PrintWriter out = null;
         try {
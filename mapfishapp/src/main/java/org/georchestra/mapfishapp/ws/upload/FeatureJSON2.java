@@ -46,6 +46,7 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
 
 /**
  * This is a workaround to fix the problem found in the CRS generation.
@@ -65,6 +66,7 @@ final class FeatureJSON2 extends FeatureJSON {
     boolean encodeFeatureCRS = false;
     boolean encodeFeatureCollectionCRS = false;
     boolean encodeNullValues = false;
+    double simplificationTolerance = 0;
 
     public FeatureJSON2() {
         this(new GeometryJSON());
@@ -191,6 +193,27 @@ final class FeatureJSON2 extends FeatureJSON {
         return encodeNullValues;
     }
 
+    /**
+     * Sets the distance tolerance used to simplify the geometries, 0 to encode them unchanged.
+     *
+     * @see #getSimplificationTolerance()
+     */
+    public void setSimplificationTolerance(double simplificationTolerance) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
+    /**
+     * The distance tolerance used to simplify the geometries.
+     * <p>
+     * When greater than 0 the default geometry of each feature is simplified, preserving its
+     * topology, before being encoded. The tolerance is expressed in the units of the feature
+     * coordinate reference system.
+     * </p>
+     */
+    public double getSimplificationTolerance() {
+        return simplificationTolerance;
+    }
+
     /**
      * Writes a feature as GeoJSON.
      *
@@ -265,10 +288,11 @@ final class FeatureJSON2 extends FeatureJSON {
       obj.put("type", "FeatureCollection");
       if (encodeFeatureCollectionBounds || encodeFeatureCollectionCRS) {
 
-          final ReferencedEnvelope bounds = features.getBounds();
-
           if (encodeFeatureCollectionBounds) {
 
+              // the bounds of a streamed collection are computed reading all its features
+              final ReferencedEnvelope bounds = features.getBounds();
+
               obj.put("bbox", new JSONStreamAware() {
 
                   public void writeJSONString(Writer out) throws IOException {
@@ -480,6 +504,14 @@ final class FeatureJSON2 extends FeatureJSON {
 
         public String toJSONString(SimpleFeature feature) {
             try {
+                return toJSONObject(feature).toString(4);
+            } catch (JSONException e) {
+                LOG.error("Unable to encode the feature into GeoJSON, returning an empty object.");
+                return "{}";
+            }
+        }
+
+        JSONObject toJSONObject(SimpleFeature feature) throws JSONException {
             JSONObject ret = new JSONObject();
             ret.put("type", "Feature");
             //crs
@@ -502,7 +534,11 @@ final class FeatureJSON2 extends FeatureJSON {
 
             //geometry
             if (feature.getDefaultGeometry() != null) {
-                JSONObject geom = new JSONObject(gjson.toString((Geometry) feature.getDefaultGeometry()));
+                Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                if (simplificationTolerance > 0) {
+                    geometry = TopologyPreservingSimplifier.simplify(geometry, simplificationTolerance);
+                }
+                JSONObject geom = new JSONObject(gjson.toString(geometry));
                 ret.put("geometry", geom);
             }
 
@@ -547,12 +583,7 @@ final class FeatureJSON2 extends FeatureJSON {
 
             ret.put("id", feature.getID());
 
-            return ret.toString(4);
-
-            } catch (JSONException e) {
-                LOG.error("Unable to encode the feature into GeoJSON, returning an empty object.");
-                return "{}";
-            }
+            return ret;
         }
 
         public String toJSONString() {
@@ -570,40 +601,46 @@ final class FeatureJSON2 extends FeatureJSON {
             this.gjson = gjson;
         }
 
+        /**
+         * Writes the features as they are read. If a feature cannot be read
+         * the array is left open: the features written so far do not make a
+         * valid, seemingly complete, document.
+         *
+         * @throws IOException if the features cannot be read
+         */
         public void writeJSONString(Writer out) throws IOException {
             SimpleFeatureType ft = (SimpleFeatureType) features.getSchema();
             FeatureEncoder featureEncoder = new FeatureEncoder(ft);
             JSONWriter jsRet = new JSONWriter(out);
             try {
                 jsRet.array();
-                FeatureIterator i = features.features();
+                FeatureIterator i = null;
                 try {
-                    if (i == null) {
-                        jsRet.endArray();
-                        return;
-                    }
-                    while (i.hasNext()) {
+                    i = features.features();
+                    // each feature is written as soon as it is read
+                    while (i != null && i.hasNext()) {
                         Feature f = i.next();
                         try {
                             if (f instanceof SimpleFeature) {
-                                jsRet.value(new JSONObject(featureEncoder.toJSONString((SimpleFeature) f)));
+                                jsRet.value(featureEncoder.toJSONObject((SimpleFeature) f));
                             }
+                        } catch (JSONException e) {
+                            LOG.error("Unable to encode the feature into GeoJSON, skipping it. " + e.getMessage());
                         } catch (NullPointerException e) {
                             LOG.error("Unable to convert feature into JSON, skipping it. " + e.getMessage());
                         }
                     }
-                }  catch (Throwable e) {
-                    LOG.error("Unable to convert the featurecollection into JSON: " + e.getMessage());
-                    LOG.error("Ignoring ...");
-                }finally {
+                } catch (RuntimeException e) {
+                    throw new IOException("Unable to read the features: " + e.getMessage(), e);
+                } finally {
                     if (i != null) {
                         i.close();
                     }
-                    jsRet.endArray();
                 }
+                jsRet.endArray();
 
             } catch (JSONException e) {
-                LOG.error("Unable to generate JSON: " + e.getMessage());
+                throw new IOException("Unable to generate JSON: " + e.getMessage(), e);
             }
         }
     }
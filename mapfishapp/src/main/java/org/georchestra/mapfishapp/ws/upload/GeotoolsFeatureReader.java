@@ -17,13 +17,11 @@ import org.geotools.GML.Version;
 import org.geotools.data.DataStore;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.Query;
-import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.mif.MIFDataStoreFactory;
 import org.geotools.data.shapefile.ShapefileDataStoreFactory;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.projection.ProjectionException;
 import org.geotools.xml.Configuration;
@@ -152,7 +150,9 @@ class GeotoolsFeatureReader implements FeatureGeoFileReader {
     }
 
     /**
-     * Creates a feature collection from a GML file.
+     * Creates a feature collection from a GML file. Only the first feature is
+     * parsed here, to find the crs and the feature type, the features are
+     * parsed and reprojected while the collection is iterated.
      *
      * @param file
      *            a gml file
@@ -179,59 +179,40 @@ class GeotoolsFeatureReader implements FeatureGeoFileReader {
                 targetSRID = CRS.lookupEpsgCode(targetCRS, true);
             }
 
-            CoordinateReferenceSystem sourceCRS;
-            MathTransform mathTransform = null;
-            ListFeatureCollection fc = null;
-            SimpleFeature feature;
-            while ((feature = (SimpleFeature) parser.parse()) != null) {
-
-                Geometry geom = (Geometry) feature.getDefaultGeometry();
-
-                // initializes the feature collection using the crs and the
-                // feature type of the first feature
-                if (fc == null) {
-
-                    int srid = geom.getSRID();
-                    if (srid > 0) {
-                        sourceCRS = CRS.decode("EPSG:" + srid);
-                    } else {
-                        sourceCRS = CRS.decode("EPSG:4326"); // if the crs is not present 4326 is assumed
-                    }
-
-                    SimpleFeatureType type;
-                    if ((targetCRS != null) && !sourceCRS.equals(targetCRS)) {
-                        // transforms the feature type to the target crs, creates the feature collection
-                        // and finds the math transformation required
-                        type = SimpleFeatureTypeBuilder.retype(
-                                feature.getFeatureType(), targetCRS);
-
-                        mathTransform = CRS.findMathTransform(sourceCRS,
-                                targetCRS, true);
-                    } else {
-                        // uses the original feature type
-                        type = SimpleFeatureTypeBuilder.retype(
-                                feature.getFeatureType(), sourceCRS);
-                    }
-                    fc = new ListFeatureCollection(type);
-
-                }
-                // reproject the feature's geometry it it is necessary before
-                // add the feature to the new feature collection.
-                if (mathTransform != null) {
-                    // transformation is required
-                    Geometry reprojectedGeometry = JTS.transform(geom,
-                            mathTransform);
-                    reprojectedGeometry.setSRID(targetSRID);
-                    feature.setDefaultGeometry(reprojectedGeometry);
-                }
-                fc.add(feature);
-            }
-            if (fc == null) {
+            // the crs and the feature type of the collection are those of the first feature
+            SimpleFeature feature = (SimpleFeature) parser.parse();
+            if (feature == null) {
                 final String msg = "Fail reading GML file (" + version + "). It cannot read the file "+ file.getAbsoluteFile();
                 LOG.warn(msg);
                 throw new IOException(msg);
             }
-            return fc;
+            Geometry geom = (Geometry) feature.getDefaultGeometry();
+
+            CoordinateReferenceSystem sourceCRS;
+            int srid = geom.getSRID();
+            if (srid > 0) {
+                sourceCRS = CRS.decode("EPSG:" + srid);
+            } else {
+                sourceCRS = CRS.decode("EPSG:4326"); // if the crs is not present 4326 is assumed
+            }
+
+            SimpleFeatureType type;
+            MathTransform mathTransform = null;
+            if ((targetCRS != null) && !sourceCRS.equals(targetCRS)) {
+                // transforms the feature type to the target crs and finds
+                // the math transformation required
+                type = SimpleFeatureTypeBuilder.retype(
+                        feature.getFeatureType(), targetCRS);
+
+                mathTransform = CRS.findMathTransform(sourceCRS,
+                        targetCRS, true);
+            } else {
+                // uses the original feature type
+                type = SimpleFeatureTypeBuilder.retype(
+                        feature.getFeatureType(), sourceCRS);
+            }
+            return new GmlFeatureCollection(type, file, cfg, mathTransform, targetSRID);
+
         } catch (ProjectionException e) {
             throw e;
         } catch (Exception e) {
@@ -0,0 +1,161 @@
+package org.georchestra.mapfishapp.ws.upload;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.xml.Configuration;
+import org.geotools.xml.PullParser;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * The features of a GML file, parsed while they are iterated instead of being
+ * loaded in memory. The geometries are reprojected as they are read.
+ * <p>
+ * Each iteration parses the file again: {@link #size()} and
+ * {@link #getBounds()} read the whole file.
+ * </p>
+ */
+class GmlFeatureCollection extends AbstractFeatureCollection {
+
+    private static final Log LOG = LogFactory.getLog(GmlFeatureCollection.class.getPackage().getName());
+
+    private final File file;
+    private final Configuration configuration;
+    private final MathTransform mathTransform;
+    private final int targetSRID;
+
+    /**
+     * @param type the type of the features, in the target crs
+     * @param file the gml file
+     * @param configuration the GML2 or GML3 configuration of the parser
+     * @param mathTransform the transformation from the file crs to the target crs, null if the features are not reprojected
+     * @param targetSRID the srid of the reprojected geometries
+     */
+    GmlFeatureCollection(SimpleFeatureType type, File file, Configuration configuration,
+            MathTransform mathTransform, int targetSRID) {
+        super(type);
+        this.file = file;
+        this.configuration = configuration;
+        this.mathTransform = mathTransform;
+        this.targetSRID = targetSRID;
+    }
+
+    @Override
+    protected Iterator<SimpleFeature> openIterator() {
+        try {
+            return new GmlIterator();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read " + file, e);
+        }
+    }
+
+    protected void closeIterator(Iterator<SimpleFeature> close) {
+        if (close instanceof GmlIterator) {
+            ((GmlIterator) close).close();
+        }
+    }
+
+    @Override
+    public int size() {
+        GmlIterator it = (GmlIterator) openIterator();
+        try {
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            return count;
+        } finally {
+            it.close();
+        }
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds() {
+        ReferencedEnvelope bounds = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+        GmlIterator it = (GmlIterator) openIterator();
+        try {
+            while (it.hasNext()) {
+                bounds.include(it.next().getBounds());
+            }
+        } finally {
+            it.close();
+        }
+        return bounds;
+    }
+
+    private final class GmlIterator implements Iterator<SimpleFeature>, Closeable {
+        private InputStream in;
+        private final PullParser parser;
+        private SimpleFeature next;
+
+        GmlIterator() throws IOException {
+            this.in = new FileInputStream(file);
+            this.parser = new PullParser(configuration, in, SimpleFeature.class);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && in != null) {
+                try {
+                    next = (SimpleFeature) parser.parse();
+                    if (next == null) {
+                        close();
+                    } else if (mathTransform != null) {
+                        // reproject the feature's geometry
+                        Geometry reprojectedGeometry = JTS.transform((Geometry) next.getDefaultGeometry(),
+                                mathTransform);
+                        reprojectedGeometry.setSRID(targetSRID);
+                        next.setDefaultGeometry(reprojectedGeometry);
+                    }
+                } catch (Exception e) {
+                    close();
+                    throw new RuntimeException("Fail reading the GML file " + file, e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature feature = next;
+            next = null;
+            return feature;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (in == null) {
+                return;
+            }
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close " + file, e);
+            }
+            in = null;
+        }
+    }
+}
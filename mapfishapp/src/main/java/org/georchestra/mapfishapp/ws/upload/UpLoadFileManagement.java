@@ -3,15 +3,16 @@
  */
 package org.georchestra.mapfishapp.ws.upload;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -20,7 +21,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.geotools.referencing.operation.projection.ProjectionException;
 import org.json.JSONArray;
@@ -43,44 +43,55 @@ public class UpLoadFileManagement {
         geotools, ogr
     };
 
-    private static List<String>          VALID_EXTENSIONS;
+    /** number of decimals of the coordinates written in the json document */
+    public static final int              DEFAULT_DECIMALS = 18;
+
+    private static final Set<String>     VALID_EXTENSIONS;
     static {
 
-        VALID_EXTENSIONS = new ArrayList<String>();
+        Set<String> extensions = new HashSet<String>();
         // SHP
-        VALID_EXTENSIONS.add("SHP");
-        VALID_EXTENSIONS.add("DBF");
-        VALID_EXTENSIONS.add("PRJ");
-        VALID_EXTENSIONS.add("SHX");
-        VALID_EXTENSIONS.add("QIX");
+        extensions.add("SHP");
+        extensions.add("DBF");
+        extensions.add("PRJ");
+        extensions.add("SHX");
+        extensions.add("QIX");
 
         // TAB
-        VALID_EXTENSIONS.add("TAB");
-        VALID_EXTENSIONS.add("ID");
-        VALID_EXTENSIONS.add("MAP");
-        VALID_EXTENSIONS.add("DAT");
+        extensions.add("TAB");
+        extensions.add("ID");
+        extensions.add("MAP");
+        extensions.add("DAT");
 
         // MIF
-        VALID_EXTENSIONS.add("MIF");
-        VALID_EXTENSIONS.add("MID");
+        extensions.add("MIF");
+        extensions.add("MID");
 
-        VALID_EXTENSIONS.add("GML");
+        extensions.add("GML");
 
-        VALID_EXTENSIONS.add("KML");
+        extensions.add("KML");
 
-        VALID_EXTENSIONS.add("GPX");
+        extensions.add("GPX");
 
         // OSM
-        VALID_EXTENSIONS.add("OSM");
+        extensions.add("OSM");
 
+        VALID_EXTENSIONS = Collections.unmodifiableSet(extensions);
     }
 
+    /** size of the buffer used to extract the files from the zip file */
+    private static final int             BUFFER_SIZE = 64 * 1024;
+
     private FileDescriptor               fileDescriptor;
 
     private String                       workDirectory;
 
     private AbstractFeatureGeoFileReader reader;
 
+    private int                          decimals = DEFAULT_DECIMALS;
+
+    private double                       simplificationTolerance = 0;
+
     private UpLoadFileManagement() {
         // use the method factory
     }
@@ -121,27 +132,53 @@ public class UpLoadFileManagement {
         return manager;
     }
 
+    /**
+     * Sets the number of decimals of the coordinates written in the json
+     * document. The coordinates are rounded, which reduces the size of the
+     * document (by default {@link #DEFAULT_DECIMALS}).
+     *
+     * @param decimals
+     */
+    public void setDecimals(int decimals) {
+        this.decimals = decimals;
+    }
+
+    /**
+     * Sets the distance tolerance used to simplify the geometries written in
+     * the json document, in the units of the output crs. The geometries are
+     * simplified preserving their topology. 0 (the default) writes the
+     * geometries unchanged.
+     *
+     * @param simplificationTolerance
+     */
+    public void setSimplificationTolerance(double simplificationTolerance) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
     public void unzip() throws IOException {
 
         ZipFile zipFile = new ZipFile(
                 fileDescriptor.savedFile.getAbsolutePath());
 
-        // creates the directories and extracts the geofiles
-        Enumeration<? extends ZipEntry> entries = zipFile.entries();
-        while (entries.hasMoreElements()) {
-
-            ZipEntry entry = entries.nextElement();
-            String path = workDirectory + File.separator + entry.getName();
-
-            String extension = FilenameUtils.getExtension(path).toUpperCase();
-            if (VALID_EXTENSIONS.contains(extension)) {
-                File outFile = new File(path);
-                extractFile(zipFile, entry, outFile);
-            } else {
-                makeDirectory(path);
+        try {
+            // creates the directories and extracts the geofiles
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+
+                ZipEntry entry = entries.nextElement();
+                String path = workDirectory + File.separator + entry.getName();
+
+                String extension = FilenameUtils.getExtension(path).toUpperCase();
+                if (VALID_EXTENSIONS.contains(extension)) {
+                    File outFile = new File(path);
+                    extractFile(zipFile, entry, outFile);
+                } else {
+                    makeDirectory(path);
+                }
             }
+        } finally {
+            zipFile.close();
         }
-        zipFile.close();
     }
 
     /**
@@ -170,18 +207,22 @@ public class UpLoadFileManagement {
     private void extractFile(final ZipFile zipFile, final ZipEntry entry, final File outFile) throws IOException {
 
         InputStream is = zipFile.getInputStream(entry);
-        BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
-
-        byte[] buffer = new byte[1024];
-        int len;
-
-        while ((len = is.read(buffer)) >= 0) {
-            os.write(buffer, 0, len);
+        try {
+            OutputStream os = new FileOutputStream(outFile);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+
+                while ((len = is.read(buffer)) >= 0) {
+                    os.write(buffer, 0, len);
+                }
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
         }
 
-        is.close();
-        os.close();
-
         // save the extension in the content extensions list
         String extension = FilenameUtils.getExtension(outFile.getName())
                 .toUpperCase();
@@ -260,15 +301,13 @@ public class UpLoadFileManagement {
      */
     public boolean checkSingleGeoFile() {
 
-        List<String> foundExtensions = new ArrayList<String>();
+        Set<String> foundExtensions = new HashSet<String>();
         for (String fileName : this.fileDescriptor.listOfFiles) {
 
             String ext = FilenameUtils.getExtension(fileName).toUpperCase();
 
-            if (foundExtensions.contains(ext)) {
+            if (!foundExtensions.add(ext)) {
                 return false;
-            } else {
-                foundExtensions.add(ext);
             }
         }
         return true;
@@ -367,11 +406,12 @@ public class UpLoadFileManagement {
                 return;
             }
             // TODO FeatureJSON2 is a workaround to solve the crs bug
-            FeatureJSON fjson = new FeatureJSON2(new GeometryJSON(18));
+            FeatureJSON2 fjson = new FeatureJSON2(new GeometryJSON(this.decimals));
             SimpleFeatureType schema = featureCollection.getSchema();
 
             fjson.setFeatureType(schema);
             fjson.setEncodeFeatureCollectionCRS(true);
+            fjson.setSimplificationTolerance(this.simplificationTolerance);
 
             fjson.writeFeatureCollection(featureCollection, writer);
 
@@ -380,6 +420,13 @@ public class UpLoadFileManagement {
             throw e;
         }
         catch (Exception e) {
+            // a feature found while the features are written may not be reprojected
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof ProjectionException) {
+                    LOG.error("Failed reading " + fileName + ": " + cause.getMessage());
+                    throw (ProjectionException) cause;
+                }
+            }
 
             final String message = "Failed reading " + fileName + ".  "
                     + e.getMessage();
@@ -0,0 +1,97 @@
+package org.georchestra.mapfishapp.ws;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.SAXException;
+
+/**
+ * Test for {@link SchemaCache}, the documents are validated against a local
+ * schema.
+ */
+public class SchemaCacheTest {
+
+    private static final String VALID = "<context xmlns=\"http://www.georchestra.org/test/context\" version=\"1.1.0\">"
+            + "<layer>roads</layer><layer>rivers</layer></context>";
+
+    private static final String INVALID = "<context xmlns=\"http://www.georchestra.org/test/context\">"
+            + "<unknown/></context>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String schemaURL;
+
+    @Before
+    public void setUp() {
+        schemaURL = SchemaCacheTest.class.getResource("schema-cache-test.xsd").toString();
+    }
+
+    private void validate(String document) throws Exception {
+        SchemaCache.validate(schemaURL, new StreamSource(new StringReader(document)));
+    }
+
+    @Test
+    public void testValidDocument() throws Exception {
+        validate(VALID);
+    }
+
+    @Test
+    public void testInvalidDocument() throws Exception {
+        try {
+            validate(INVALID);
+            fail("SAXException expected");
+        } catch (SAXException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The validator which rejected a document is reset before it is reused.
+     */
+    @Test
+    public void testValidatorReused() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            try {
+                validate(INVALID);
+                fail("SAXException expected");
+            } catch (SAXException e) {
+                // expected
+            }
+            validate(VALID);
+        }
+    }
+
+    /**
+     * A schema which cannot be loaded, as when its server is unreachable, is
+     * not loaded again by the following requests.
+     */
+    @Test
+    public void testFailureNotRetriedAtOnce() throws Exception {
+        File schema = new File(folder.getRoot(), "schema.xsd");
+        schemaURL = schema.toURI().toString();
+        try {
+            validate(VALID);
+            fail("the schema does not exist");
+        } catch (SAXException e) {
+            // expected
+        }
+
+        FileUtils.copyURLToFile(SchemaCacheTest.class.getResource("schema-cache-test.xsd"), schema);
+        try {
+            validate(VALID);
+            fail("the failure is reported until the schema is loaded again");
+        } catch (SAXException e) {
+            // expected
+        }
+    }
+}
@@ -6,6 +6,7 @@ package org.georchestra.mapfishapp.ws.upload;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 import static org.junit.Assume.assumeNoException;
 
@@ -268,6 +269,75 @@ public class UpLoadFileManagementGTImplTest {
                 6177255.152005254290998, json);
     }
 
+    /**
+     * The features of a GML file are written while they are parsed: an error
+     * found after the first feature is reported, the written document is not
+     * complete.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGMLInvalidSecondFeature() throws Exception {
+
+        String fileName = "gml_4326_invalid_second_feature.gml";
+        String fullName = makeFullName(fileName);
+
+        FileDescriptor fd = new FileDescriptor(fullName);
+        fd.listOfFiles.add(fullName);
+        fd.listOfExtensions.add(FilenameUtils.getExtension(fullName));
+
+        UpLoadFileManagement fm = create();
+        fm.setWorkDirectory(FilenameUtils.getFullPath(fullName));
+        fm.setFileDescriptor(fd);
+
+        StringWriter out = new StringWriter();
+        try {
+            fm.writeFeatureCollectionAsJSON(out, null);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            new JSONObject(out.toString());
+            fail("the truncated document is valid JSON: " + out);
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The simplified geometries, with rounded coordinates, make a smaller
+     * document with the same features.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testKMLAsJSONSimplified() throws Exception {
+
+        String fileName = "regions.kml";
+        String fullName = makeFullName(fileName);
+
+        String json = testGetGeofileToJSON(fullName, null);
+
+        FileDescriptor fd = new FileDescriptor(fullName);
+        fd.listOfFiles.add(fullName);
+        fd.listOfExtensions.add(FilenameUtils.getExtension(fullName));
+
+        UpLoadFileManagement fm = create();
+        fm.setWorkDirectory(FilenameUtils.getFullPath(fullName));
+        fm.setFileDescriptor(fd);
+        fm.setSimplificationTolerance(0.01);
+        fm.setDecimals(4);
+
+        StringWriter out = new StringWriter();
+        fm.writeFeatureCollectionAsJSON(out, null);
+        String simplified = out.toString();
+
+        assertTrue(simplified.length() < json.length());
+        assertEquals(new JSONObject(json).getJSONArray("features").length(),
+                new JSONObject(simplified).getJSONArray("features").length());
+    }
+
     /**
      * Assert that the feature in json syntax contains its coordinate in the
      * order x, y.
@@ -33,6 +33,11 @@ public class UpLoadFileManagementOGRImplTest extends UpLoadFileManagementGTImplT
     @Ignore("OGR GML reprojection is currently broken out of Mapfishapp's scope")
     public void testGMLCoordinatesFrom4326to3857() throws Exception {}
 
+    @Override
+    @Test
+    @Ignore("The OGR implementation does not stream the GML features")
+    public void testGMLInvalidSecondFeature() throws Exception {}
+
     @Override
 	@Test
 	@Ignore("KML OGR Implementation is currently broken out of Mapfishapp's scope")
@@ -0,0 +1,18 @@
+<?xml version="1.0" encoding="utf-8" ?>
+<ogr:FeatureCollection
+     xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"
+     xmlns:ogr="http://ogr.maptools.org/"
+     xmlns:gml="http://www.opengis.net/gml">
+  <gml:featureMember>
+    <ogr:route_accidents_mortels fid="route_accidents_mortels.0">
+      <ogr:geometryProperty><gml:Point srsName="EPSG:4326"><gml:coordinates>-2.265330624649336,48.421434814828025</gml:coordinates></gml:Point></ogr:geometryProperty>
+      <ogr:id>205</ogr:id>
+    </ogr:route_accidents_mortels>
+  </gml:featureMember>
+  <gml:featureMember>
+    <ogr:route_accidents_mortels fid="route_accidents_mortels.1">
+      <ogr:geometryProperty><gml:Point srsName="EPSG:4326"><gml:coordinates>-2.1,48.5</gml:coordinates></gml:Point></ogr:geometryProperty>
+      <ogr:id>206</ogr:id>
+    </ogr:geometryProperty>
+  </gml:featureMember>
+</ogr:FeatureCollection>
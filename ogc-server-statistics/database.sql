@@ -21,4 +21,25 @@ CREATE TABLE ogc_services_log (
 CREATE INDEX user_name_index ON ogc_services_log USING btree (user_name);
 CREATE INDEX date_index ON ogc_services_log USING btree (date);
 CREATE INDEX service_index ON ogc_services_log USING btree (service);
-CREATE INDEX layer_index ON ogc_services_log USING btree (layer);
\ No newline at end of file
+CREATE INDEX layer_index ON ogc_services_log USING btree (layer);
+
+-- Monthly counts of ogc_services_log, maintained by analytics. The log is
+-- rolled up to the day before rolled_until, analytics adds the rows logged since.
+
+CREATE TABLE ogc_services_log_monthly (
+  month date NOT NULL,
+  user_name character varying(255),
+  org character varying(255),
+  service character varying(5),
+  layer character varying(255),
+  request character varying(20),
+  count bigint NOT NULL
+);
+
+CREATE INDEX month_index ON ogc_services_log_monthly USING btree (month);
+
+CREATE TABLE ogc_services_log_rollup (
+  rolled_until date NOT NULL
+);
+
+INSERT INTO ogc_services_log_rollup (rolled_until) VALUES ('1970-01-01');
@@ -0,0 +1,25 @@
+--
+-- Creates the tables of the monthly counts read by analytics in an existing
+-- ogcstatistics schema (see database.sql). The counts of the whole log are
+-- computed by the first rollup of analytics.
+--
+
+SET search_path TO ogcstatistics,public,pg_catalog;
+
+CREATE TABLE ogc_services_log_monthly (
+  month date NOT NULL,
+  user_name character varying(255),
+  org character varying(255),
+  service character varying(5),
+  layer character varying(255),
+  request character varying(20),
+  count bigint NOT NULL
+);
+
+CREATE INDEX month_index ON ogc_services_log_monthly USING btree (month);
+
+CREATE TABLE ogc_services_log_rollup (
+  rolled_until date NOT NULL
+);
+
+INSERT INTO ogc_services_log_rollup (rolled_until) VALUES ('1970-01-01');
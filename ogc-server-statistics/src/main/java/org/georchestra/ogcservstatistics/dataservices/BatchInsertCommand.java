@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.dataservices;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.georchestra.ogcservstatistics.dataservices.InsertCommand.DATE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.InsertCommand.LAYER_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.InsertCommand.ORG_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.InsertCommand.REQUEST_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.InsertCommand.SERVICE_COLUMN;
+import static org.georchestra.ogcservstatistics.dataservices.InsertCommand.USER__COLUMN;
+
+/**
+ * Inserts a set of ogc service logs using a single JDBC batch and a single transaction.
+ * <p>
+ * The values longer than their column are truncated. If the batch fails anyway, the
+ * rows are inserted one by one, so that an invalid row does not lose the whole batch
+ * (see {@link #getFailedRows()}).
+ * </p>
+ *
+ * @see InsertCommand
+ */
+public final class BatchInsertCommand extends AbstractDataCommand {
+
+	/** size of the columns of the ogc_services_log table (see database.sql) */
+	static final int USER_SIZE = 255;
+	static final int SERVICE_SIZE = 5;
+	static final int LAYER_SIZE = 255;
+	static final int REQUEST_SIZE = 20;
+	static final int ORG_SIZE = 255;
+
+	private List<Map<String, Object>> rows = Collections.emptyList();
+
+	private int failedRows = 0;
+
+	private String lastError;
+
+	public void setRows(final List<Map<String, Object>> ogcServiceLogs) {
+
+		this.rows = ogcServiceLogs;
+	}
+
+	/**
+	 * @return number of rows which could not be inserted by the last execution
+	 */
+	public int getFailedRows() {
+		return this.failedRows;
+	}
+
+	/**
+	 * @return the error of the last row which could not be inserted, null if all were inserted
+	 */
+	public String getLastError() {
+		return this.lastError;
+	}
+
+	@Override
+	public void execute() throws DataCommandException {
+
+        assert this.connection != null: "database connection is null, use setConnection";
+
+        this.failedRows = 0;
+        this.lastError = null;
+        if(this.rows.isEmpty()){
+        	return;
+        }
+        PreparedStatement pStmt=null;
+        try {
+        	this.connection.setAutoCommit(false);
+            pStmt = this.connection.prepareStatement(InsertCommand.SQL_INSERT);
+            boolean inserted = false;
+            try {
+            	for (Map<String, Object> row : this.rows) {
+            		setValues(pStmt, row);
+            		pStmt.addBatch();
+            	}
+            	pStmt.executeBatch();
+            	this.connection.commit();
+            	inserted = true;
+            } catch (SQLException e) {
+            	this.lastError = e.getMessage();
+            } catch (RuntimeException e) {
+            	// missing value
+            	this.lastError = e.toString();
+            }
+            if (!inserted) {
+            	this.connection.rollback();
+            	pStmt.close();
+            	// one invalid row fails the whole batch, the rows are inserted one by one
+            	this.lastError = null;
+            	pStmt = this.connection.prepareStatement(InsertCommand.SQL_INSERT);
+            	insertRowByRow(pStmt);
+            }
+
+        } catch (SQLException e) {
+        	String message = e.getMessage();
+        	try {
+        		this.connection.rollback();
+        	} catch (SQLException e1) {
+        		// reported with the error by the caller (the appender's error handler), not on stderr
+        		message += " (rollback failed: " + e1.getMessage() + ")";
+        	}
+        	throw new DataCommandException(message);
+        } finally{
+            try {
+                if(pStmt != null) pStmt.close();
+            	this.connection.setAutoCommit(true);
+
+            } catch (SQLException e1) {
+                throw new DataCommandException(e1.getMessage());
+            }
+        }
+	}
+
+	private void insertRowByRow(final PreparedStatement pStmt) throws SQLException {
+
+		for (Map<String, Object> row : this.rows) {
+			try {
+				setValues(pStmt, row);
+				pStmt.executeUpdate();
+				this.connection.commit();
+			} catch (SQLException e) {
+				this.connection.rollback();
+				this.failedRows++;
+				this.lastError = e.getMessage();
+			} catch (RuntimeException e) {
+				// missing value
+				this.failedRows++;
+				this.lastError = e.toString();
+			}
+		}
+	}
+
+	private static void setValues(final PreparedStatement pStmt, final Map<String, Object> row) throws SQLException {
+
+		pStmt.setString(1, truncate((String)row.get(USER__COLUMN), USER_SIZE));
+		pStmt.setDate(2, new java.sql.Date(((java.util.Date) row.get(DATE_COLUMN)).getTime()));
+		pStmt.setString(3, truncate(((String)row.get(SERVICE_COLUMN)).trim(), SERVICE_SIZE));
+		pStmt.setString(4, truncate(((String)row.get(LAYER_COLUMN)).trim(), LAYER_SIZE));
+		pStmt.setString(5, truncate(((String)row.get(REQUEST_COLUMN)).trim(), REQUEST_SIZE));
+		pStmt.setString(6, truncate(((String)row.get(ORG_COLUMN)).trim(), ORG_SIZE));
+	}
+
+	static String truncate(final String value, final int size) {
+
+		if (value == null || value.length() <= size) {
+			return value;
+		}
+		return value.substring(0, size);
+	}
+}
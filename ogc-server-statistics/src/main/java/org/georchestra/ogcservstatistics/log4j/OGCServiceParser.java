@@ -8,11 +8,10 @@ import java.net.URLDecoder;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -21,284 +20,349 @@ import org.apache.log4j.spi.LoggingEvent;
 /**
  * This parse recognizes an OGC service taking into account the syntax convention 
  * implemented by {@link OGCServiceMessageFormatter}.
+ * <p>
+ * The request is scanned once, looking for the <code>key=value</code> pairs of
+ * the service, the operation and the layers (query string parameters or xml
+ * attributes of a POST body). Keys and values are compared ignoring case, so
+ * the message is neither copied nor upper-cased.
+ * </p>
  * 
  * @author Mauricio Pazos
  *
  */
 final class OGCServiceParser {
 
-	private static final String SERVICE_KEYWORD = "SERVICE=";
-	private static final String REQUEST_KEYWORD = "REQUEST=";
-			
+	// keys
+	private static final String SERVICE_KEYWORD = "SERVICE";
+	private static final String REQUEST_KEYWORD = "REQUEST";
+	private static final String[] LAYER_KEYWORD = {"LAYERS", "LAYER", "TYPENAME", "QUERY_LAYERS"};
+
 	// service types
-	private static final String WFS = "WFS";
 	private static final String WMS = "WMS";
-	private static final String WCS = "WCS";
-	private static final String[] SERVICE_TYPE = 
-		{ 	SERVICE_KEYWORD+WFS,SERVICE_KEYWORD+WCS, SERVICE_KEYWORD+WMS, 
-			SERVICE_KEYWORD+ "WMTS", 
-			SERVICE_KEYWORD+"\"WFS\"", SERVICE_KEYWORD+"\"WCS\"", SERVICE_KEYWORD+"\"WMTS\"" };
+	private static final String[] SERVICE_TYPE = { "WFS", "WCS", WMS, "WMTS" };
 	
 	// request type
-	private static final String GETCAPABILITIES = "GETCAPABILITIES";
-	private static final String GETMAP = "GETMAP";
 	private static final String GETLEGENDGRAPHIC = "GETLEGENDGRAPHIC";
-	private static final String GETFEATUREINFO = "GETFEATUREINFO";
-	private static final String DESCRIBELAYER = "DESCRIBELAYER";
-	private static final String GETFEATURE = "GETFEATURE";
-	private static final String DESCRIBEFEATURETYPE = "DESCRIBEFEATURETYPE";
-	private static final String GETCOVERAGE = "GETCOVERAGE";
-	private static final String DESCRIBECOVERAGE = "DESCRIBECOVERAGE";
-	private static final String GETTILE = "GETTILE";
-	private static final String GETSTYLES = "GETSTYLES";
-	// WFS2 support
-	private static final String GETPROPERTYVALUE = "GETPROPERTYVALUE";
-	private static final String LOCKFEATURE = "LOCKFEATURE";
-	private static final String GETFEATUREWITHLOCK = "GETFEATUREWITHLOCK";
-	private static final String LISTSTOREDQUERIES = "LISTSTOREDQUERIES";
-	private static final String DESCRIBESTOREDQUERIES = "DESCRIBESTOREDQUERIES";
-	private static final String CREATESTOREDQUERY = "CREATESTOREDQUERY";
-	private static final String DROPSTOREDQUERY = "DROPSTOREDQUERY";
-	
-	
-	
 	private static final String[] REQUEST_TYPE = 
-		{ 	REQUEST_KEYWORD+GETCAPABILITIES,
-			REQUEST_KEYWORD+GETMAP,
-			REQUEST_KEYWORD+GETLEGENDGRAPHIC,
-			REQUEST_KEYWORD+GETFEATUREINFO,
-			REQUEST_KEYWORD+DESCRIBELAYER,
-			REQUEST_KEYWORD+GETFEATURE,
-			REQUEST_KEYWORD+DESCRIBEFEATURETYPE,
-			REQUEST_KEYWORD+GETCOVERAGE,
-			REQUEST_KEYWORD+DESCRIBECOVERAGE,
-			REQUEST_KEYWORD+GETTILE,
-			REQUEST_KEYWORD+GETSTYLES,
+		{ 	"GETCAPABILITIES",
+			"GETMAP",
+			GETLEGENDGRAPHIC,
+			"GETFEATUREINFO",
+			"DESCRIBELAYER",
+			"GETFEATURE",
+			"DESCRIBEFEATURETYPE",
+			"GETCOVERAGE",
+			"DESCRIBECOVERAGE",
+			"GETTILE",
+			"GETSTYLES",
 			// WFS2
-			REQUEST_KEYWORD+GETPROPERTYVALUE,
-			REQUEST_KEYWORD+LOCKFEATURE,
-			REQUEST_KEYWORD+GETFEATUREWITHLOCK,
-			REQUEST_KEYWORD+LISTSTOREDQUERIES,
-			REQUEST_KEYWORD+DESCRIBESTOREDQUERIES,
-			REQUEST_KEYWORD+CREATESTOREDQUERY,
-			REQUEST_KEYWORD+DROPSTOREDQUERY
+			"GETPROPERTYVALUE",
+			"LOCKFEATURE",
+			"GETFEATUREWITHLOCK",
+			"LISTSTOREDQUERIES",
+			"DESCRIBESTOREDQUERIES",
+			"CREATESTOREDQUERY",
+			"DROPSTOREDQUERY"
 		};
-	
-	private static final String[] LAYER_KEYWORD = {"LAYERS=", "LAYER=","TYPENAME=", "QUERY_LAYERS="};
+	private static final String[] REQUEST_NAME = new String[REQUEST_TYPE.length];
+	static {
+		for (int i = 0; i < REQUEST_TYPE.length; i++) {
+			REQUEST_NAME[i] = REQUEST_TYPE[i].toLowerCase();
+		}
+	}
 
-	private static final String OPERATION_GET_LEGEND_GRAPHIC = "GETLEGENDGRAPHIC";
+	private static final char SEPARATOR = OGCServiceMessageFormatter.SEPARATOR.charAt(0);
 	private static final char COMMA = ',';
 	private static final char QUOTE = '\"';
-	
-	private static final char[]  DELIMITER = {'&', ' ',  '\r', '\t', '>' };
-	static{
-		// sorts the delimiters to allow binary search
-		Arrays.sort(DELIMITER);
+
+	/**
+	 * Service, operation and layers found in a request.
+	 */
+	static final class OGCRequest {
+
+		static final OGCRequest NONE = new OGCRequest("", "", Collections.<String>emptyList());
+
+		final String service;
+		final String request;
+		final List<String> layers;
+
+		private OGCRequest(String service, String request, List<String> layers) {
+			this.service = service;
+			this.request = request;
+			this.layers = layers;
+		}
+
+		boolean isOGCService() {
+			return service.length() > 0;
+		}
 	}
-	
+
 	private OGCServiceParser(){
 		// utility class
 	}
 
 	public  static boolean isOGCService(LoggingEvent event) {
 		
-		String service = parseService(event.getMessage().toString());
-		
-		return !"".equals(service);
+		return scan(event.getMessage().toString()).isOGCService();
 	}
+
 	/**
-	 * Parses the OGC service.
+	 * Parses the request string in order to extract service, layer, user, date
 	 * 
 	 * @param message
+	 * @return list of logs
 	 * 
-	 * @return an OGC service symbol, "" in other case.
+	 * @throws ParseException
+	 * @throws UnsupportedEncodingException 
 	 */
-	private static String parseService(final String message){
-		
-		String msg = new String(message); // defensive copy 
-		msg = msg.toUpperCase();
-		// checks if it is an ogc service
-		for (int i = 0; i < SERVICE_TYPE.length; i++) {
-			if (msg.contains(SERVICE_TYPE[i])) {
-				
-				String service = SERVICE_TYPE[i].substring(SERVICE_KEYWORD.length());
-				return removeQuote(service);
-			}
-		}
-		// Particular case: the following does not contain the WMS service key 
-		if(msg.contains(OPERATION_GET_LEGEND_GRAPHIC)){
-			return WMS;
-		}
-		return "";
-	}
-	
-	private static String parseRequest(final String message){
-		
-		String msg = new String(message); // defensive copy 
-		msg = msg.toUpperCase();
-		// checks if it is an ogc service
-		for (int i = 0; i < REQUEST_TYPE.length; i++) {
-			if (msg.contains(REQUEST_TYPE[i])) {
-				
-				String request = REQUEST_TYPE[i].substring(REQUEST_KEYWORD.length());
-				return removeQuote(request);
-			}
+	public static List<Map<String, Object>> parseLog(final String message) throws ParseException, UnsupportedEncodingException {
+
+		List<String> splittedMessage = split(message);
+		if(splittedMessage.size() < 3){
+			throw new ParseException("the message has not be recognized. Use OGCServiceMessageFormatter.format(...) to build the message", 0);
 		}
-		return "";
+		return buildLogs(splittedMessage, scan(decode(splittedMessage.get(2))));
 	}
 
 	/**
-	 * Parses the request string in order to extract service, layer, user, date
+	 * Parses the message only once: unlike {@link #isOGCService(LoggingEvent)}
+	 * followed by {@link #parseLog(String)}, the request is scanned a single time.
 	 * 
 	 * @param message
-	 * @return list of logs
+	 * @return list of logs, empty if the message is not an OGC service request
 	 * 
 	 * @throws ParseException
 	 * @throws UnsupportedEncodingException 
 	 */
-	public static List<Map<String, Object>> parseLog(final String message) throws ParseException, UnsupportedEncodingException {
+	static List<Map<String, Object>> parseOGCServiceLog(final String message) throws ParseException, UnsupportedEncodingException {
 
-		String work = new String(message);
-		String[] splittedMessage = work.split("["+OGCServiceMessageFormatter.SEPARATOR+"]");
-		if(splittedMessage.length < 3){
+		List<String> splittedMessage = split(message);
+		if(splittedMessage.size() < 3){
+			if(!scan(message).isOGCService()){
+				return Collections.emptyList();
+			}
 			throw new ParseException("the message has not be recognized. Use OGCServiceMessageFormatter.format(...) to build the message", 0);
 		}
+		OGCRequest request = scan(decode(splittedMessage.get(2)));
+		if(!request.isOGCService()){
+			return Collections.emptyList();
+		}
+		return buildLogs(splittedMessage, request);
+	}
+
+	/**
+	 * Builds a log for each layer of the request (a log without layer if there is not any).
+	 */
+	private static List<Map<String, Object>> buildLogs(List<String> splittedMessage, OGCRequest request) throws ParseException {
 
 		// extracts user 
-		final String user=  splittedMessage[0];
+		final String user = splittedMessage.get(0);
 		
 		// extracts date
+		// not shared: SimpleDateFormat is not thread safe
 		DateFormat format = new SimpleDateFormat(OGCServiceMessageFormatter.DATE_FORMAT);
-		Date date = format.parse(splittedMessage[1] );
-		
-		// parses service and layer from request
-		String request = URLDecoder.decode(splittedMessage[2], "UTF-8");
-		String service = parseService(request);
-		String ogcReq = parseRequest(request).toLowerCase();
+		Date date = format.parse(splittedMessage.get(1));
 		
 		// parses org (it is optional)
 		String org;
-		if(splittedMessage.length == 4){
-			org = splittedMessage[3];
+		if(splittedMessage.size() == 4){
+			org = splittedMessage.get(3);
 		} else {
 			org = "";
 		}
 		
 		// for each layer adds a log to the list
-		List<Map<String, Object>> logList = new LinkedList<Map<String,Object>>(); 
-		List<String> layerList = parseLayer(request);
-		if(layerList.isEmpty() ){
+		if(request.layers.isEmpty()){
 			// create a log without layer
-			Map<String, Object>  log = new HashMap<String, Object>(6);
-			
-			log.put("user_name", user );
-			log.put("date", date);
-			log.put("service", service );
-			log.put("layer", "" );
-			log.put("request", ogcReq );
-			log.put("org", org);
-			
-			logList.add(log);
-		} else{ // there are one ore more layers
-			
-			for(String layer : layerList){
-				Map<String, Object>  log = new HashMap<String, Object>(6);
-				
-				log.put("user_name", user );
-				log.put("date", date);
-				log.put("service", service );
-				log.put("layer", layer.toLowerCase() );
-				log.put("request", ogcReq );
-				log.put("org", org);
-				
-				logList.add(log);
-			}
+			return Collections.singletonList(buildLog(user, date, request.service, "", request.request, org));
+		}
+		List<Map<String, Object>> logList = new ArrayList<Map<String,Object>>(request.layers.size()); 
+		for(String layer : request.layers){
+			logList.add(buildLog(user, date, request.service, layer, request.request, org));
 		}
 		return logList;
 	}
 
+	private static Map<String, Object> buildLog(String user, Date date, String service, String layer, String request, String org) {
+
+		Map<String, Object>  log = new HashMap<String, Object>(8);
+		
+		log.put("user_name", user );
+		log.put("date", date);
+		log.put("service", service );
+		log.put("layer", layer );
+		log.put("request", request );
+		log.put("org", org);
+		
+		return log;
+	}
+
+	/**
+	 * Splits the message on {@link OGCServiceMessageFormatter#SEPARATOR}, trailing empty parts are removed.
+	 */
+	private static List<String> split(final String message) {
+
+		List<String> parts = new ArrayList<String>(4);
+		int begin = 0;
+		int end;
+		while ((end = message.indexOf(SEPARATOR, begin)) >= 0) {
+			parts.add(message.substring(begin, end));
+			begin = end + 1;
+		}
+		parts.add(message.substring(begin));
+		int size = parts.size();
+		while (size > 0 && parts.get(size - 1).length() == 0) {
+			parts.remove(--size);
+		}
+		return parts;
+	}
+
+	private static String decode(final String request) throws UnsupportedEncodingException {
+
+		if (request.indexOf('%') < 0 && request.indexOf('+') < 0) {
+			return request;
+		}
+		return URLDecoder.decode(request, "UTF-8");
+	}
+
 	/**
-	 * Parses the layer name
+	 * Scans the request once looking for the service, operation and layers.
+	 * <p>
+	 * Each <code>=</code> found delimits a key, made of the letters and underscores
+	 * preceding it, and a value, ending at the first delimiter. When the service
+	 * key is missing, a GetLegendGraphic request is a WMS request. Among the layer
+	 * keys, QUERY_LAYERS is preferred to TYPENAME, LAYER then LAYERS.
+	 * </p>
 	 * 
 	 * @param request
-	 * 
-	 * @return a list of layer names
+	 * @return the service, operation and layers found, {@link OGCRequest#NONE} if it is not an OGC service
 	 */
-	private static List<String> parseLayer(final String request) {
-
-		String msg = new String(request); // defensive copy
-		msg = msg.toUpperCase();
-
-		List<String> layerList = Collections.emptyList();
-		for (int i = 0; i < LAYER_KEYWORD.length; i++) {
-			if (msg.contains(LAYER_KEYWORD[i])) {
-
-				int begin = msg.indexOf(LAYER_KEYWORD[i]);
-				begin = begin + LAYER_KEYWORD[i].length();
-				String layers = msg.substring(begin);
-				int end = searchEndOfLayerValue(layers);
-				layers = layers.substring(0, end);
-				
-				layerList = buildLayerList(layers);
+	static OGCRequest scan(final String request) {
+
+		String service = "";
+		String operation = "";
+		int layersKey = -1;
+		int layersBegin = 0;
+		int layersEnd = 0;
+
+		final int length = request.length();
+		int keyBegin = 0;
+		for (int i = 0; i < length; i++) {
+			char c = request.charAt(i);
+			if (c != '=') {
+				if (!isKeyChar(c)) {
+					keyBegin = i + 1;
+				}
+				continue;
 			}
+			int keyLength = i - keyBegin;
+			if (keyLength > 0) {
+				int valueBegin = i + 1;
+				int valueEnd = searchEndOfValue(request, valueBegin);
+				if (service.length() == 0 && matches(request, keyBegin, keyLength, SERVICE_KEYWORD)) {
+					int type = searchValue(request, valueBegin, valueEnd, SERVICE_TYPE);
+					if (type >= 0) {
+						service = SERVICE_TYPE[type];
+					}
+				} else if (operation.length() == 0 && matches(request, keyBegin, keyLength, REQUEST_KEYWORD)) {
+					int type = searchValue(request, valueBegin, valueEnd, REQUEST_TYPE);
+					if (type >= 0) {
+						operation = REQUEST_NAME[type];
+					}
+				} else {
+					for (int k = LAYER_KEYWORD.length - 1; k > layersKey; k--) {
+						if (matches(request, keyBegin, keyLength, LAYER_KEYWORD[k])) {
+							layersKey = k;
+							layersBegin = valueBegin;
+							layersEnd = valueEnd;
+							break;
+						}
+					}
+				}
+			}
+			keyBegin = i + 1;
 		}
-		return layerList;
+		if (service.length() == 0) {
+			// Particular case: the following does not contain the WMS service key 
+			if (!GETLEGENDGRAPHIC.equalsIgnoreCase(operation)) {
+				return OGCRequest.NONE;
+			}
+			service = WMS;
+		}
+		List<String> layers;
+		if (layersKey < 0) {
+			layers = Collections.emptyList();
+		} else {
+			layers = buildLayerList(request, layersBegin, layersEnd);
+		}
+		return new OGCRequest(service, operation, layers);
+	}
+
+	private static boolean isKeyChar(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+	}
+
+	private static boolean matches(String request, int keyBegin, int keyLength, String keyword) {
+		return keyLength == keyword.length() && request.regionMatches(true, keyBegin, keyword, 0, keyLength);
 	}
 
 	/**
-	 * Index of the end of list of the layer names.
-	 * 
-	 * @param layer
-	 * @return index 
+	 * Index of the end of the value beginning at the given index.
 	 */
-	private static int searchEndOfLayerValue(String layer) {
-
-		int end = -1;
-		// search the delimiter the layer element
-		for(int i = 0; i < layer.length(); i ++){
-			
-			char current = layer.charAt(i);
-			if(Arrays.binarySearch(DELIMITER, current) >= 0){
+	private static int searchEndOfValue(String request, int begin) {
+
+		for (int i = begin; i < request.length(); i++) {
+			switch (request.charAt(i)) {
+			case '&':
+			case ' ':
+			case '\r':
+			case '\n':
+			case '\t':
+			case '>':
 				return i;
+			default:
+				break;
 			}
 		}
-		if( end == -1){
-			end = layer.length() - 1;
+		return request.length();
+	}
+
+	/**
+	 * @return the index of the value (may be quoted) in the candidates, ignoring case, -1 if not found
+	 */
+	private static int searchValue(String request, int begin, int end, String[] candidates) {
+
+		while (begin < end && request.charAt(begin) == QUOTE) {
+			begin++;
+		}
+		while (end > begin && request.charAt(end - 1) == QUOTE) {
+			end--;
+		}
+		int length = end - begin;
+		for (int i = 0; i < candidates.length; i++) {
+			if (candidates[i].length() == length && request.regionMatches(true, begin, candidates[i], 0, length)) {
+				return i;
+			}
 		}
-		return end;
+		return -1;
 	}
 
 	/**
-	 * Extract the layer name from a list like
+	 * Extract the layer names from a list like
 	 * layer1, layer2, ...., layerN
 	 * 
-	 * @param strLayerList
-	 * 
-	 * @return List of layers
+	 * @return List of layers, in lower case and without quotes
 	 */
-	private static List<String> buildLayerList(final String strLayerList) {
-		
-		List<String> layerList = new LinkedList<String>();
+	private static List<String> buildLayerList(final String request, final int begin, final int end) {
 		
-		StringBuilder currentLayer = new StringBuilder(strLayerList.length());
-		currentLayer.append("");
-		for(int i = 0; i < strLayerList.length(); i++){
-
-			if(strLayerList.charAt(i) == COMMA){
-
-				layerList.add(removeQuote(currentLayer.toString()));
-				
-				int capacity = strLayerList.length() - currentLayer.length();
-				currentLayer = new StringBuilder(capacity);
-			} else {
-				currentLayer.append(strLayerList.charAt(i));
+		List<String> layerList = new ArrayList<String>(2);
+		int layerBegin = begin;
+		for(int i = begin; i <= end; i++){
+			if(i == end || request.charAt(i) == COMMA){
+				layerList.add(removeQuote(request.substring(layerBegin, i)).toLowerCase());
+				layerBegin = i + 1;
 			}
 		}
-		if( !"".equals(currentLayer) ){
-			
-			layerList.add(removeQuote(currentLayer.toString()));
-		}
-		
 		return layerList;
 	}
 
@@ -309,8 +373,9 @@ final class OGCServiceParser {
 	 */
 	private static String removeQuote(String string) {
 
-		string = string.replace(QUOTE, ' ');
-		
+		if (string.indexOf(QUOTE) >= 0) {
+			string = string.replace(QUOTE, ' ');
+		}
 		return string.trim();
 	}
 
@@ -2,15 +2,20 @@ package org.georchestra.ogcservstatistics.log4j;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 import org.georchestra.ogcservstatistics.OGCServStatisticsException;
 import org.georchestra.ogcservstatistics.dataservices.DataServicesConfiguration;
-import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
+import org.georchestra.ogcservstatistics.dataservices.BatchInsertCommand;
 
 
 /**
@@ -30,10 +35,21 @@ import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
  * log4j.appender.OGCSERVICES.databaseUser=postgres
  * log4j.appender.OGCSERVICES.databasePassword=postgres
  * log4j.appender.OGCSERVICES.bufferSize=1
+ * log4j.appender.OGCSERVICES.asynchronous=true
+ * log4j.appender.OGCSERVICES.queueSize=10000
+ * log4j.appender.OGCSERVICES.flushInterval=1000
  * 
  * </pre>
  * <p>
- * Note: you could improve the performance increasing the <b>bufferSize</b> value.
+ * Note: you could improve the performance increasing the <b>bufferSize</b> value,
+ * the logs are inserted in batches of <b>bufferSize</b> rows.
+ * </p>
+ * <p>
+ * In <b>asynchronous</b> mode (the default) the logs are queued and inserted by a
+ * background thread, so that the logging thread never waits for the database. A batch is
+ * written when it holds <b>bufferSize</b> rows or when its first row has waited
+ * <b>flushInterval</b> milliseconds. When the queue is full (<b>queueSize</b> rows) the new
+ * logs are dropped and counted (see {@link #getDroppedRows()}).
  * </p>
  * 
  * <p>
@@ -92,8 +108,37 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	 */
 	protected boolean activated = false;
 
+	/**
+	 * true: the logs are inserted by a background thread
+	 * false: the logs are inserted by the logging thread
+	 */
+	protected boolean asynchronous = true;
+
+	/**
+	 * max number of logs waiting to be inserted in asynchronous mode
+	 */
+	protected int queueSize = 10000;
+
+	/**
+	 * max time (milliseconds) a log waits before being inserted in asynchronous mode
+	 */
+	protected long flushInterval = 1000;
+
 	private DataServicesConfiguration dataServiceConfiguration = DataServicesConfiguration.getInstance();
 
+	private BlockingQueue<Map<String, Object>> queue;
+
+	private Thread writer;
+
+	/** queued by close() to stop the writer, compared by identity */
+	private static final Map<String, Object> END_OF_QUEUE = new HashMap<String, Object>(0);
+
+	private final AtomicLong flushedRows = new AtomicLong();
+
+	private final AtomicLong droppedRows = new AtomicLong();
+
+	private final AtomicLong failedRows = new AtomicLong();
+
 
 	public OGCServicesAppender() {
 		super();
@@ -171,6 +216,51 @@ public class OGCServicesAppender extends AppenderSkeleton {
 		this.activated = activated;
 	}
 
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * @return number of logs inserted in the database
+	 */
+	public long getFlushedRows() {
+		return flushedRows.get();
+	}
+
+	/**
+	 * @return number of logs dropped because the queue was full
+	 */
+	public long getDroppedRows() {
+		return droppedRows.get();
+	}
+
+	/**
+	 * @return number of logs which could not be inserted
+	 */
+	public long getFailedRows() {
+		return failedRows.get();
+	}
+
 	/**
 	 * This hook method called after set all appender properties.
 	 * In this case the configuration is set.
@@ -182,6 +272,17 @@ public class OGCServicesAppender extends AppenderSkeleton {
 		this.dataServiceConfiguration.setUser(getDatabaseUser());
 		this.dataServiceConfiguration.setPassword(getDatabasePassword());
 		this.dataServiceConfiguration.setJdbcURL(getJdbcURL());
+
+		if (this.activated && this.asynchronous && this.writer == null) {
+			this.queue = new ArrayBlockingQueue<Map<String, Object>>(this.queueSize);
+			this.writer = new Thread(new Runnable() {
+				public void run() {
+					writeQueuedLogs();
+				}
+			}, "ogc-statistics-writer");
+			this.writer.setDaemon(true);
+			this.writer.start();
+		}
 	}
 
 
@@ -199,18 +300,25 @@ public class OGCServicesAppender extends AppenderSkeleton {
 
 		try {
 
-			if (OGCServiceParser.isOGCService(event)) {
+			String msg = event.getRenderedMessage();
 
-				String msg = event.getRenderedMessage();
-
-				List<Map<String, Object>> logList = OGCServiceParser.parseLog(msg);
-				
-				for (Map<String, Object> log : logList) {
+			// empty if it is not an OGC service
+			List<Map<String, Object>> logList = OGCServiceParser.parseOGCServiceLog(msg);
+			
+			for (Map<String, Object> log : logList) {
+				if (this.queue != null) {
+					// never wait for the writer, drop the log if it is late
+					if (!this.queue.offer(log)) {
+						this.droppedRows.incrementAndGet();
+					}
+					continue;
+				}
+				synchronized (this.buffer) {
 					this.buffer.add(log);
 					if (this.buffer.size() >= this.bufferSize) {
 						flushBuffer();
 					}
-				} 
+				}
 			} 
 		} catch (Exception ex) {
 			errorHandler.error("Failed to insert the ogc service reocrd", ex,
@@ -225,31 +333,84 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	 */
 	private void flushBuffer() {
 		
-		ArrayList<Map<String, Object>> removed = new ArrayList<Map<String,Object>>(this.buffer.size());
-		for (Map<String,Object> log: this.buffer) {
+		insert(this.buffer);
+		this.buffer.clear();
+	}
 
-			insert(log);
-			removed.add(log);
+	/**
+	 * Body of the writer thread: inserts the queued logs by batches of bufferSize rows,
+	 * waiting at most flushInterval milliseconds to complete a batch. It stops when
+	 * close() queues {@link #END_OF_QUEUE}, so it is the only user of the connection
+	 * while it runs.
+	 */
+	private void writeQueuedLogs() {
+
+		List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(this.bufferSize);
+		boolean end = false;
+		while (!end) {
+			try {
+				Map<String, Object> log = this.queue.take();
+				final long deadline = System.currentTimeMillis() + this.flushInterval;
+				while (log != null) {
+					if (log == END_OF_QUEUE) {
+						end = true;
+						break;
+					}
+					batch.add(log);
+					long remaining = deadline - System.currentTimeMillis();
+					if (batch.size() >= this.bufferSize || remaining <= 0) {
+						break;
+					}
+					log = this.queue.poll(remaining, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				// only close() stops the writer
+			}
+			insert(batch);
+			batch.clear();
 		}
-		this.buffer.removeAll(removed);
 	}
 
+	private void insert(List<Map<String, Object>> ogcServiceRecords)  {
 
-	private void insert(Map<String, Object> ogcServiceRecord)  {
-
+		if (ogcServiceRecords.isEmpty()) {
+			return;
+		}
 		try {
-			InsertCommand cmd = new InsertCommand();
-			cmd.setConnection(this.dataServiceConfiguration .getConnection());
-			cmd.setRowValues( ogcServiceRecord);
-			cmd.execute();
+			int failed = insertRows(ogcServiceRecords);
+			this.flushedRows.addAndGet(ogcServiceRecords.size() - failed);
+			if (failed > 0) {
+				this.failedRows.addAndGet(failed);
+			}
 
 		} catch (Exception e) {
 
+			this.failedRows.addAndGet(ogcServiceRecords.size());
 			errorHandler.error("Failed to insert the log", e,
 					ErrorCode.WRITE_FAILURE);
 		}
 		
 	}
+
+	/**
+	 * Inserts the logs in the database.
+	 *
+	 * @param ogcServiceRecords the logs
+	 * @return number of logs which could not be inserted
+	 * @throws Exception if none of the logs was inserted
+	 */
+	protected int insertRows(List<Map<String, Object>> ogcServiceRecords) throws Exception {
+
+		BatchInsertCommand cmd = new BatchInsertCommand();
+		cmd.setConnection(this.dataServiceConfiguration.getConnection());
+		cmd.setRows(ogcServiceRecords);
+		cmd.execute();
+		if (cmd.getFailedRows() > 0) {
+			errorHandler.error("Failed to insert " + cmd.getFailedRows() + " logs: " + cmd.getLastError(),
+					null, ErrorCode.WRITE_FAILURE);
+		}
+		return cmd.getFailedRows();
+	}
 	
 	@Override
 	public void finalize() {
@@ -263,7 +424,36 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	public void close() {
 		try {
 
-			flushBuffer();
+			if (this.writer != null) {
+				// the writer inserts the logs queued before the end mark, then stops
+				boolean interrupted = false;
+				while (true) {
+					try {
+						this.queue.put(END_OF_QUEUE);
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				while (this.writer.isAlive()) {
+					try {
+						this.writer.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				this.writer = null;
+				// logs appended while closing
+				List<Map<String, Object>> remaining = new ArrayList<Map<String, Object>>(this.queue.size());
+				this.queue.drainTo(remaining);
+				insert(remaining);
+			}
+			synchronized (this.buffer) {
+				flushBuffer();
+			}
 			this.dataServiceConfiguration.closeConnection();
 			
 		} catch (SQLException e) {
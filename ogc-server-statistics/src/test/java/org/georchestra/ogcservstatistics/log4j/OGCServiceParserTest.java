@@ -1,7 +1,9 @@
 package org.georchestra.ogcservstatistics.log4j;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
@@ -38,4 +40,39 @@ public class OGCServiceParserTest {
 			 assertTrue(((String) lst.get("request")).length() == 0);
 		 }
 	}
+
+	@Test
+	public void testParseLayers() throws Exception {
+		List<Map<String, Object>> logs = OGCServiceParser.parseLog(
+				"testuser|2013/12/18|http://localhost/geoserver/wms?SERVICE=WMS&REQUEST=GetMap&LAYERS=topp:States,\"Roads\"&BBOX=0,0,1,1|myorg");
+
+		assertEquals(2, logs.size());
+		assertEquals("WMS", logs.get(0).get("service"));
+		assertEquals("getmap", logs.get(0).get("request"));
+		assertEquals("topp:states", logs.get(0).get("layer"));
+		assertEquals("roads", logs.get(1).get("layer"));
+		assertEquals("myorg", logs.get(1).get("org"));
+
+		// QUERY_LAYERS is preferred to LAYERS, the last layer is not truncated
+		logs = OGCServiceParser.parseLog(
+				"testuser|2013/12/18|http://localhost/geoserver/wms?request=GetFeatureInfo&service=wms&layers=a,b&query_layers=b");
+		assertEquals(1, logs.size());
+		assertEquals("getfeatureinfo", logs.get(0).get("request"));
+		assertEquals("b", logs.get(0).get("layer"));
+		assertEquals("", logs.get(0).get("org"));
+
+		// xml body of a POST request
+		logs = OGCServiceParser.parseLog(
+				"testuser|2013/12/18|http://localhost/geoserver/wfs?\n<wfs:GetFeature service=\"WFS\" version=\"1.0.0\">\n<wfs:Query typeName=\"ign:commune\" srsName=\"EPSG:2154\">");
+		assertEquals("WFS", logs.get(0).get("service"));
+		assertEquals("ign:commune", logs.get(0).get("layer"));
+
+		// the service key can be omitted by GetLegendGraphic requests
+		logs = OGCServiceParser.parseLog("testuser|2013/12/18|http://localhost/geoserver/wms?REQUEST=GetLegendGraphic&LAYER=roads");
+		assertEquals("WMS", logs.get(0).get("service"));
+		assertEquals("roads", logs.get(0).get("layer"));
+
+		assertTrue(OGCServiceParser.parseOGCServiceLog("testuser|2013/12/18|http://localhost/header.html").isEmpty());
+		assertTrue(OGCServiceParser.parseOGCServiceLog("not an ogc service").isEmpty());
+	}
 }
@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test for the asynchronous mode of {@link OGCServicesAppender}. The database is replaced
+ * by an appender which records the inserted batches.
+ */
+public class OGCServicesAppenderAsynchronousTest {
+
+	private static final Logger LOGGER = Logger.getLogger(OGCServicesAppenderAsynchronousTest.class);
+
+	private static final String REQUEST = "http://www.someserver.com/geoserver/wms?SERVICE=WMS&VERSION=1.1.1&REQUEST=GetCapabilities";
+
+	private RecordingAppender appender;
+
+	@After
+	public void tearDown() {
+		if (this.appender != null) {
+			this.appender.release();
+			this.appender.close();
+		}
+	}
+
+	@Test
+	public void testBatchBySize() throws Exception {
+
+		this.appender = newAppender(3, 60000, 100);
+
+		append(6);
+		waitForRows(6);
+
+		assertEquals(2, this.appender.batches.size());
+		assertEquals(3, this.appender.batches.get(0).intValue());
+		assertEquals(3, this.appender.batches.get(1).intValue());
+		assertEquals(6, this.appender.getFlushedRows());
+	}
+
+	@Test
+	public void testFlushInterval() throws Exception {
+
+		this.appender = newAppender(100, 50, 100);
+
+		append(2);
+		waitForRows(2);
+
+		assertEquals(Collections.singletonList(2), this.appender.batches);
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+
+		this.appender = newAppender(1, 1000, 2);
+		this.appender.block();
+
+		append(1);
+		// the writer holds the first log, the queue holds the next two
+		assertTrue(this.appender.inserting.await(5, TimeUnit.SECONDS));
+		append(3);
+
+		assertEquals(1, this.appender.getDroppedRows());
+		this.appender.release();
+		waitForRows(3);
+		assertEquals(3, this.appender.getFlushedRows());
+	}
+
+	@Test
+	public void testFailedRows() throws Exception {
+
+		this.appender = newAppender(2, 60000, 100);
+		this.appender.failures = 1;
+
+		append(2);
+		waitForRows(2);
+
+		assertEquals(1, this.appender.getFlushedRows());
+		assertEquals(1, this.appender.getFailedRows());
+	}
+
+	/**
+	 * close() waits for the batch being inserted and inserts the queued logs, without
+	 * using the connection at the same time as the writer.
+	 */
+	@Test
+	public void testCloseWaitsForWriter() throws Exception {
+
+		this.appender = newAppender(1, 1000, 100);
+		this.appender.block();
+
+		append(1);
+		assertTrue(this.appender.inserting.await(5, TimeUnit.SECONDS));
+		append(4);
+
+		final RecordingAppender closing = this.appender;
+		Thread closer = new Thread(new Runnable() {
+			public void run() {
+				closing.close();
+			}
+		});
+		closer.start();
+		closer.join(200);
+		assertTrue("close() returned while the writer was inserting", closer.isAlive());
+
+		this.appender.release();
+		closer.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse(closer.isAlive());
+
+		assertEquals(5, this.appender.getFlushedRows());
+		assertFalse(this.appender.overlapped);
+	}
+
+	private RecordingAppender newAppender(int bufferSize, long flushInterval, int queueSize) {
+
+		RecordingAppender recording = new RecordingAppender();
+		recording.setActivated(true);
+		recording.setBufferSize(bufferSize);
+		recording.setFlushInterval(flushInterval);
+		recording.setQueueSize(queueSize);
+		recording.activateOptions();
+		return recording;
+	}
+
+	private void append(int logs) {
+
+		String message = OGCServiceMessageFormatter.format("user", Calendar.getInstance().getTime(), REQUEST, "");
+		for (int i = 0; i < logs; i++) {
+			this.appender.doAppend(new LoggingEvent(LOGGER.getName(), LOGGER, Level.INFO, message, null));
+		}
+	}
+
+	private void waitForRows(long rows) throws InterruptedException {
+
+		final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+		while (this.appender.getFlushedRows() + this.appender.getFailedRows() < rows
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(rows, this.appender.getFlushedRows() + this.appender.getFailedRows());
+	}
+
+	private static final class RecordingAppender extends OGCServicesAppender {
+
+		final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+		final CountDownLatch inserting = new CountDownLatch(1);
+
+		private volatile CountDownLatch blocked = new CountDownLatch(0);
+
+		private final AtomicInteger active = new AtomicInteger();
+
+		volatile boolean overlapped = false;
+
+		volatile int failures = 0;
+
+		void block() {
+			this.blocked = new CountDownLatch(1);
+		}
+
+		void release() {
+			this.blocked.countDown();
+		}
+
+		@Override
+		protected int insertRows(List<Map<String, Object>> ogcServiceRecords) throws Exception {
+
+			if (this.active.incrementAndGet() > 1) {
+				this.overlapped = true;
+			}
+			try {
+				this.inserting.countDown();
+				this.blocked.await();
+				this.batches.add(ogcServiceRecords.size());
+				return this.failures;
+			} finally {
+				this.active.decrementAndGet();
+			}
+		}
+	}
+}
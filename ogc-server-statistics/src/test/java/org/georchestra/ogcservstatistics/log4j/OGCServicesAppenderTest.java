@@ -523,8 +523,19 @@ public class OGCServicesAppenderTest {
 
 		String ogcServiceMessage = OGCServiceMessageFormatter.format(user, time, request,"");
 
+		final OGCServicesAppender appender = (OGCServicesAppender) Logger.getLogger(
+				"org.georchestra.ogcservstatistics.log4j").getAppender("OGCSERVICES");
+		final long writtenBefore = appender.getFlushedRows() + appender.getFailedRows();
+
 		LOGGER.info(ogcServiceMessage);
 
+		// the logs are inserted by the writer thread
+		final long deadline = System.currentTimeMillis() + 10 * appender.getFlushInterval();
+		while (appender.getFlushedRows() + appender.getFailedRows() < writtenBefore + expectedLogs
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
 		logList = OGCServiceStatistics.list();
 		assertEquals(logSizeBefore + expectedLogs, logList.size());
 	}
@@ -32,6 +32,12 @@ import static org.georchestra.security.HeaderNames.TRANSFER_ENCODING;
 /**
  * A strategy for copying headers from the request to the proxied request and
  * the same for the response headers.
+ * <p>
+ * A single instance is shared by all the proxied requests: the configuration is
+ * only changed through the setters (at startup) and the methods only work on
+ * per-request state, so no global lock is needed. The jsessionid map stored in
+ * the http session is guarded by the session itself.
+ * </p>
  * 
  * @author jeichar
  */
@@ -41,29 +47,31 @@ public class HeadersManagementStrategy {
     /**
      * If true (default is false) AcceptEncoding headers are removed from request headers
      */
-    private boolean noAcceptEncoding = false;
-    private List<HeaderProvider> headerProviders = Collections.emptyList(); 
-    private List<HeaderFilter> filters = new ArrayList<HeaderFilter>(1);
-    private String referer = null;
-
-    public HeadersManagementStrategy() {
-        filters.add(new SecurityRequestHeaderFilter());
-    }
+    private volatile boolean noAcceptEncoding = false;
+    private volatile List<HeaderProvider> headerProviders = Collections.emptyList();
+    private volatile List<HeaderFilter> filters = Collections.<HeaderFilter>singletonList(new SecurityRequestHeaderFilter());
+    private volatile String referer = null;
 
     /**
      * Copies the request headers from the original request to the proxy request.  It may modify the
      * headers slightly
      */
     @SuppressWarnings("unchecked")
-    public synchronized void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest) {
+    public void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest) {
         Enumeration<String> headerNames = originalRequest.getHeaderNames();
         String headerName = null;
+        final String referer = this.referer;
+        final boolean noAcceptEncoding = this.noAcceptEncoding;
 
-        StringBuilder headersLog = new StringBuilder("Request Headers:\n");
-        headersLog
-                .append("==========================================================\n");
+        // the log is only built when it is going to be written
+        StringBuilder headersLog = null;
+        if (logger.isTraceEnabled()) {
+            headersLog = new StringBuilder("Request Headers:\n");
+            headersLog
+                    .append("==========================================================\n");
+        }
         if (referer != null) {
-            addHeaderToRequestAndLog(proxyRequest, headersLog, REFERER_HEADER_NAME, this.referer);
+            addHeaderToRequestAndLog(proxyRequest, headersLog, REFERER_HEADER_NAME, referer);
         }
         while (headerNames.hasMoreElements()) {
             headerName = headerNames.nextElement();
@@ -105,33 +113,39 @@ public class HeadersManagementStrategy {
                     proxyRequest.getHeaders(header.getName()).length > 0) {
                     Header[] originalHeaders = proxyRequest.getHeaders(header.getName());
                     for (Header originalHeader : originalHeaders) {
-                        headersLog.append("\t" + originalHeader.getName());
-                        headersLog.append("=");
-                        headersLog.append(originalHeader.getValue());
-                        headersLog.append("\n");
+                        log(headersLog, originalHeader.getName(), originalHeader.getValue());
                     }
                 } else {
                     proxyRequest.addHeader(header);
-                    headersLog.append("\t" + header.getName());
-                    headersLog.append("=");
-                    headersLog.append(header.getValue());
-                    headersLog.append("\n");
+                    log(headersLog, header.getName(), header.getValue());
                 }
             }
         }
 
-        headersLog
-                .append("==========================================================");
+        if (headersLog != null) {
+            headersLog
+                    .append("==========================================================");
 
-        logger.trace(headersLog.toString());
+            logger.trace(headersLog.toString());
+        }
     }
 
     private void addHeaderToRequestAndLog(HttpRequestBase proxyRequest, StringBuilder headersLog, String headerName, String value) {
         proxyRequest.addHeader(new BasicHeader(headerName, value));
-        headersLog.append("\t" + headerName);
-        headersLog.append("=");
-        headersLog.append(value);
-        headersLog.append("\n");
+        log(headersLog, headerName, value);
+    }
+
+    /**
+     * Appends the header to the log, does nothing if the log is disabled (null)
+     */
+    private static void log(StringBuilder headersLog, String headerName, Object value) {
+        if (headersLog != null) {
+            headersLog.append('\t');
+            headersLog.append(headerName);
+            headersLog.append('=');
+            headersLog.append(value);
+            headersLog.append('\n');
+        }
     }
 
     private void handleRequestCookies(HttpServletRequest originalRequest, HttpRequestBase proxyRequest,
@@ -153,8 +167,16 @@ public class HeadersManagementStrategy {
         }
         HttpSession session = originalRequest.getSession();
         String requestPath = proxyRequest.getURI().getPath();
-        if(session != null && session.getAttribute(HeaderNames.JSESSION_ID)!=null) {
-            Map<String,String> jessionIds = (Map) session.getAttribute(HeaderNames.JSESSION_ID);
+        Map<String,String> jessionIds = null;
+        if(session != null) {
+            synchronized (session) {
+                Map<String,String> sessionIds = (Map) session.getAttribute(HeaderNames.JSESSION_ID);
+                if (sessionIds != null) {
+                    jessionIds = new HashMap<String, String>(sessionIds);
+                }
+            }
+        }
+        if(jessionIds != null) {
             String currentPath = null;
             String currentId = null;
             for (String path : jessionIds.keySet()) {
@@ -175,17 +197,14 @@ public class HeadersManagementStrategy {
             }
         }
         
-        headersLog.append("\t" + COOKIE_ID);
-        headersLog.append("=");
-        headersLog.append(cookies);
-        headersLog.append("\n");
+        log(headersLog, COOKIE_ID, cookies);
 
         proxyRequest.addHeader(new BasicHeader(COOKIE_ID, cookies.toString()));
         
     }
 
     private boolean filter(HttpServletRequest originalRequest, String headerName, HttpRequestBase proxyRequest) {
-        for (HeaderFilter filter : filters) {
+        for (HeaderFilter filter : this.filters) {
             if(filter.filter(headerName, originalRequest, proxyRequest)) {
                 return true;
             }
@@ -196,17 +215,20 @@ public class HeadersManagementStrategy {
     /**
      * Copy headers from the proxy response to the final response
      */
-    public synchronized void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI, HttpResponse proxyResponse, HttpServletResponse finalResponse, Map<String,String> proxyTargets) {
+    public void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI, HttpResponse proxyResponse, HttpServletResponse finalResponse, Map<String,String> proxyTargets) {
         HttpSession session = originalRequest.getSession(true);
         session.setMaxInactiveInterval(Integer.MAX_VALUE);
         
-        StringBuilder headersLog = new StringBuilder("Response Headers:\n");
-        headersLog
-                .append("==========================================================\n");
+        // the log is only built when it is going to be written
+        StringBuilder headersLog = null;
+        if (logger.isTraceEnabled()) {
+            headersLog = new StringBuilder("Response Headers:\n");
+            headersLog
+                    .append("==========================================================\n");
+        }
 
         // Set Response headers
         for (Header header : proxyResponse.getAllHeaders()) {
-            headersLog.append("\t");
             if (header.getName().equalsIgnoreCase(HeaderNames.SET_COOKIE_ID)) {
                 continue;
             } else if (LOCATION.equalsIgnoreCase(header.getName())) {
@@ -218,23 +240,18 @@ public class HeadersManagementStrategy {
 //            	Header locationHeader = handleLocation(originalRequest, header, proxyTargets);
 //            	finalResponse.addHeader(locationHeader.getName(), locationHeader.getValue());
 			} else if (defaultIgnores(header)){
-                headersLog.append("-- IGNORING -- ");
+                log(headersLog, "-- IGNORING -- " + header.getName(), header.getValue());
+                continue;
             } else {
                 finalResponse.addHeader(header.getName(), header.getValue());
             }
-            headersLog.append(header.getName());
-            headersLog.append("=");
-            headersLog.append(header.getValue());
-            headersLog.append("\n");
+            log(headersLog, header.getName(), header.getValue());
         }
         
-        for(HeaderProvider provider : headerProviders) {
+        for(HeaderProvider provider : this.headerProviders) {
             for (Header header : provider.getCustomResponseHeaders()) {
                 finalResponse.addHeader(header.getName(), header.getValue());
-                headersLog.append("\t" + header.getName());
-                headersLog.append("=");
-                headersLog.append(header.getValue());
-                headersLog.append("\n");
+                log(headersLog, header.getName(), header.getValue());
             }
         }
 
@@ -243,11 +260,10 @@ public class HeadersManagementStrategy {
             handleResponseCookies(originalRequestURI, finalResponse, cookieHeaders, session,headersLog);
         }
         
-        headersLog
-                .append("==========================================================\n");
-
-        if (logger.isTraceEnabled()) {
-        	logger.trace(headersLog.toString());
+        if (headersLog != null) {
+            headersLog
+                    .append("==========================================================\n");
+            logger.trace(headersLog.toString());
         }
     }
 
@@ -323,38 +339,38 @@ public class HeadersManagementStrategy {
             if(cookies.length() > 0) {
                 cookies.append("; Path= /" + originalPath);
                 finalResponse.addHeader(HeaderNames.SET_COOKIE_ID, cookies.toString());
-                headersLog.append("\t" + HeaderNames.SET_COOKIE_ID);
-                headersLog.append("=");
-                headersLog.append(cookies);
-                headersLog.append("\n");
+                log(headersLog, HeaderNames.SET_COOKIE_ID, cookies);
             }
 
         }
     }
 
     private void storeJsessionHeader(HttpSession session, String path, String cookie, StringBuilder headersLog) {
-        Map<String,String> map = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
-        if(map==null) {
-            map = new HashMap<String,String>();
-            session.setAttribute(HeaderNames.JSESSION_ID, map);
-        }
-        if(path.length() > 0) {
-            // clean out session IDs with longer path since this should supercede them
-            for (String key : new HashMap<String,String>(map).keySet()) {
-                if(key.startsWith(path)) {
-                    map.remove(key);
-                }
+        synchronized (session) {
+            Map<String,String> map = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
+            if(map==null) {
+                map = new HashMap<String,String>();
+                session.setAttribute(HeaderNames.JSESSION_ID, map);
             }
+            if(path.length() > 0) {
+                // clean out session IDs with longer path since this should supercede them
+                for (String key : new HashMap<String,String>(map).keySet()) {
+                    if(key.startsWith(path)) {
+                        map.remove(key);
+                    }
+                }
 
+            }
+            map.put(path,cookie);
         }
-        map.put(path,cookie);
-
-        headersLog.append("\tStoring JSESSION cookie ");
-        headersLog.append(cookie);
-        headersLog.append(" for path ");
-        headersLog.append(path);
-        headersLog.append("\n");
 
+        if (headersLog != null) {
+            headersLog.append("\tStoring JSESSION cookie ");
+            headersLog.append(cookie);
+            headersLog.append(" for path ");
+            headersLog.append(path);
+            headersLog.append("\n");
+        }
     }
 
     private boolean defaultIgnores(Header header) {
@@ -368,11 +384,11 @@ public class HeadersManagementStrategy {
     }
     
     public void setHeaderProviders(List<HeaderProvider> headerProviders) {
-        this.headerProviders = headerProviders;
+        this.headerProviders = Collections.unmodifiableList(new ArrayList<HeaderProvider>(headerProviders));
     }
     
     public void setFilters(List<HeaderFilter> filters) {
-        this.filters = filters;
+        this.filters = Collections.unmodifiableList(new ArrayList<HeaderFilter>(filters));
     }
 
     public void setReferer(String referer){
@@ -0,0 +1,205 @@
+package org.georchestra.security;
+
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * Holds the single, long-lived {@link HttpClient} used by the {@link Proxy} to
+ * contact the proxied services.
+ * <p>
+ * Connections are kept alive and pooled per route, so that consecutive requests
+ * to the same target (e.g. GeoServer tiles) reuse already opened sockets instead
+ * of paying a new TCP/TLS handshake each time. The number of connections can be
+ * limited globally, per route and per entry of the proxy <code>targets</code> map.
+ * Idle and expired connections are evicted by a background daemon thread.
+ * </p>
+ * <p>
+ * The client does not keep any cookie, the cookies of the users are forwarded
+ * as headers by the proxy.
+ * </p>
+ */
+public class HttpClientPool {
+    protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
+
+    private int maxTotal = 200;
+    private int defaultMaxPerRoute = 50;
+    private Map<String, Integer> maxPerTarget = Collections.emptyMap();
+    /** in seconds */
+    private int idleTimeout = 30;
+    /** in seconds */
+    private int evictionInterval = 10;
+    /** in milliseconds */
+    private int socketTimeout = 300000;
+
+    private final Map<String, HttpRoute> targetRoutes = new LinkedHashMap<String, HttpRoute>();
+
+    private PoolingClientConnectionManager connectionManager;
+    private volatile DefaultHttpClient httpClient;
+    private Thread evictor;
+
+    /**
+     * Returns the shared client, creating it on first use.
+     */
+    public HttpClient getHttpClient() {
+        DefaultHttpClient client = httpClient;
+        if (client != null) {
+            return client;
+        }
+        synchronized (this) {
+            if (httpClient == null) {
+                createHttpClient();
+            }
+            return httpClient;
+        }
+    }
+
+    private void createHttpClient() {
+        connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(defaultMaxPerRoute);
+
+        DefaultHttpClient client = new DefaultHttpClient(connectionManager);
+        client.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT, socketTimeout);
+        client.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
+        // the client is shared by all the users: the cookies set by a target
+        // must not be stored and sent along with the requests of other users
+        client.getParams().setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.IGNORE_COOKIES);
+
+        //
+        // Handle http proxy for external request.
+        // Proxy must be configured by system variables (e.g.: -Dhttp.proxyHost=proxy -Dhttp.proxyPort=3128)
+        //
+        client.setRoutePlanner(new ProxySelectorRoutePlanner(
+                connectionManager.getSchemeRegistry(), ProxySelector.getDefault()));
+        httpClient = client;
+    }
+
+    /**
+     * Applies the per target limits and starts the idle connections evictor.
+     *
+     * @param targets the proxy targets (name -> url)
+     */
+    public synchronized void init(Map<String, String> targets) throws URISyntaxException {
+        getHttpClient();
+        targetRoutes.clear();
+        if (targets != null) {
+            for (Map.Entry<String, String> target : targets.entrySet()) {
+                HttpRoute route = toRoute(target.getValue());
+                targetRoutes.put(target.getKey(), route);
+                Integer max = maxPerTarget.get(target.getKey());
+                if (max != null) {
+                    connectionManager.setMaxPerRoute(route, max);
+                }
+            }
+        }
+        if (evictor == null && evictionInterval > 0) {
+            evictor = new Thread(new Runnable() {
+                public void run() {
+                    evictConnections();
+                }
+            }, "security-proxy-connection-evictor");
+            evictor.setDaemon(true);
+            evictor.start();
+        }
+    }
+
+    /**
+     * Closes every pooled connection and stops the evictor.
+     */
+    public synchronized void shutdown() {
+        if (evictor != null) {
+            evictor.interrupt();
+            evictor = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+            httpClient = null;
+        }
+    }
+
+    /**
+     * Pool statistics of the whole pool (key "total") and of each target route
+     * (key is the target name).
+     */
+    public synchronized Map<String, PoolStats> getStats() {
+        Map<String, PoolStats> stats = new LinkedHashMap<String, PoolStats>();
+        if (connectionManager != null) {
+            stats.put("total", connectionManager.getTotalStats());
+            for (Map.Entry<String, HttpRoute> target : targetRoutes.entrySet()) {
+                stats.put(target.getKey(), connectionManager.getStats(target.getValue()));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * The route must be built the same way the client does (see
+     * DefaultRequestDirector) otherwise the per route limits are not applied.
+     */
+    private HttpRoute toRoute(String url) throws URISyntaxException {
+        HttpHost host = URIUtils.extractHost(new URI(url));
+        return new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName()));
+    }
+
+    private void evictConnections() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(evictionInterval));
+                PoolingClientConnectionManager manager;
+                synchronized (this) {
+                    manager = connectionManager;
+                }
+                if (manager == null) {
+                    return;
+                }
+                manager.closeExpiredConnections();
+                manager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Connection pool stats: " + getStats());
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+        }
+    }
+
+    public void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+    public void setDefaultMaxPerRoute(int defaultMaxPerRoute) {
+        this.defaultMaxPerRoute = defaultMaxPerRoute;
+    }
+    public void setMaxPerTarget(Map<String, Integer> maxPerTarget) {
+        this.maxPerTarget = maxPerTarget;
+    }
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+    public void setEvictionInterval(int evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+}
@@ -3,7 +3,6 @@ package org.georchestra.security;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
 import com.google.common.io.Closer;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
@@ -20,14 +19,15 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpTrace;
-import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.georchestra.ogcservstatistics.log4j.OGCServiceMessageFormatter;
 import org.georchestra.security.healthcenter.DatabaseHealthCenter;
+import org.georchestra.security.healthcenter.DatabaseHealthMonitor;
+import org.georchestra.security.healthcenter.DatabaseHealthStatus;
 import org.georchestra.security.permissions.Permissions;
 import org.georchestra.security.permissions.UriMatcher;
 import org.springframework.oxm.xstream.XStreamMarshaller;
@@ -46,7 +46,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
-import java.net.ProxySelector;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -58,12 +57,6 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -107,6 +100,8 @@ public class Proxy {
     protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
     protected static final Log statsLogger = LogFactory.getLog(Proxy.class.getPackage().getName() + ".statistics");
 
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
     protected enum RequestType {
         GET, POST, DELETE, PUT, TRACE, OPTIONS, HEAD
     }
@@ -116,10 +111,16 @@ public class Proxy {
      */
     private String                    defaultTarget;
     private Map<String, String>       targets = Collections.emptyMap();
+    /**
+     * targets and defaultTarget compiled for routing, rebuilt when they change
+     */
+    private volatile TargetRouter     router;
     /**
      * must be defined
      */
     private HeadersManagementStrategy headerManagement             = new HeadersManagementStrategy();
+    private HttpClientPool            httpClientPool               = new HttpClientPool();
+    private TargetConcurrencyLimiter  concurrencyLimiter           = new TargetConcurrencyLimiter();
     private FilterRequestsStrategy    strategyForFilteringRequests = new AcceptAllRequests();
     private List<String>              requireCharsetContentTypes   = Collections.emptyList();
     private String defaultCharset = "UTF-8";
@@ -137,13 +138,25 @@ public class Proxy {
     private String user;
     private String password;
     private Integer maxDatabaseConnections;
+    /** in seconds */
+    private int healthCheckInterval = 60;
+    private DatabaseHealthMonitor healthMonitor;
 
-    public void init() throws IOException, ClassNotFoundException {
+    public void init() throws IOException, ClassNotFoundException, URISyntaxException {
         if (targets != null) {
             for (String url : targets.values()) {
                 new URL(url); // test that it is a valid URL
             }
         }
+        router = new TargetRouter(targets, defaultTarget);
+        httpClientPool.init(targets);
+        concurrencyLimiter.init();
+        if (isCheckHealth()) {
+            healthMonitor = new DatabaseHealthMonitor(
+                    DatabaseHealthCenter.getInstance(this.database, this.user, this.password, Proxy.class.getSimpleName()),
+                    this.maxDatabaseConnections);
+            healthMonitor.start(healthCheckInterval);
+        }
         if (proxyPermissionsFile != null) {
             Closer closer = Closer.create();
             try {
@@ -161,6 +174,57 @@ public class Proxy {
         }
     }
 
+    public void destroy() {
+        if (healthMonitor != null) {
+            healthMonitor.stop();
+        }
+        httpClientPool.shutdown();
+    }
+
+    /**
+     * Reports, as json, the last database health check (when checkHealth is
+     * enabled), the statistics of the connection pool and the number of
+     * requests forwarded to each target with a concurrency limit.
+     * <p>
+     * Restricted to the administrators (see applicationContext-security.xml).
+     * </p>
+     */
+    @RequestMapping(value="/health", method={GET} )
+    public void health(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        StringBuilder json = new StringBuilder("{\"database\":");
+        DatabaseHealthStatus status = healthMonitor == null ? null : healthMonitor.getLastStatus();
+        json.append(status == null ? "null" : status.toJSON());
+        json.append(",\"connectionPool\":{");
+        boolean first = true;
+        for (Map.Entry<String, PoolStats> stats : httpClientPool.getStats().entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            PoolStats poolStats = stats.getValue();
+            json.append('"').append(stats.getKey()).append("\":{")
+                .append("\"leased\":").append(poolStats.getLeased())
+                .append(",\"pending\":").append(poolStats.getPending())
+                .append(",\"available\":").append(poolStats.getAvailable())
+                .append(",\"max\":").append(poolStats.getMax())
+                .append('}');
+        }
+        json.append("},\"activeRequests\":{");
+        first = true;
+        for (Map.Entry<String, Integer> active : concurrencyLimiter.getActiveRequests().entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(active.getKey()).append("\":").append(active.getValue());
+        }
+        json.append("}}");
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(json.toString());
+    }
+
     /*  ----------  start work around for no gateway option  -------------- */
     private Gateway gateway = new Gateway();
 
@@ -264,40 +328,11 @@ public class Proxy {
     }
 
     private boolean urlIsProtected(HttpServletRequest request, URL url) throws IOException {
-        if (isSameServer(request, url)) {
-            String requestURI = url.getPath();
-            String[] requestSegments = splitRequestPath(requestURI);
-            for (String target : targets.values()) {
-                if (samePathPrefix(requestSegments, target)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return isSameServer(request, url) && getRouter().isTargetPath(url.getPath());
     }
     private boolean isSameServer(HttpServletRequest request, URL url) throws UnknownHostException {
         return InetAddress.getByName(request.getServerName()).equals(InetAddress.getByName(url.getHost()));
     }
-    private boolean samePathPrefix(String[] requestSegments, String target) throws MalformedURLException {
-        String[] targetSegments = splitRequestPath(new URL(target).getPath());
-        for (int i = 0; i < targetSegments.length; i++) {
-            String targetSegment = targetSegments[i];
-            if (!targetSegment.equals(requestSegments[i])) {
-                return false;
-            }
-        }
-        return true;
-    }
-    private String[] splitRequestPath(String requestURI) {
-        String[] requestSegments;
-        if(requestURI.charAt(0) == '/') {
-            requestSegments = StringUtils.split(requestURI.substring(1), '/');
-        } else {
-            requestSegments = StringUtils.split(requestURI, '/');
-        }
-        return requestSegments;
-    }
-
     /**
      * Since the URL param can access any url we need to control what it can request
      * so it is not used for nefarious purposes.  We are basing the control on contentType
@@ -376,7 +411,7 @@ public class Proxy {
 
             logger.debug("handlePathEncodedRequests: -- Handling Request: "+requestType+":"+forwardRequestURI+" from: "+request.getRemoteAddr());
 
-            String sURL = findTarget(forwardRequestURI);
+            String sURL = getRouter().findTarget(forwardRequestURI);
 
             if(sURL == null){
                 response.sendError(404);
@@ -422,92 +457,19 @@ public class Proxy {
         return isSameServer(request, url) && url.getPort() == request.getServerPort();
     }
 
-    private String findTarget(String requestURI) {
-        String[] segments;
-        if(requestURI.charAt(0) == '/') {
-            segments = requestURI.substring(1).split("/");
-        } else {
-            segments = requestURI.split("/");
-        }
-
-        if(segments.length == 0){
-            return concat(defaultTarget, new StringBuilder(requestURI));
-        }
-        String target = targets.get(segments[0]);
-        if(target==null){
-            target=defaultTarget;
-            return concat(defaultTarget, new StringBuilder(requestURI));
-        } else {
-            StringBuilder builder = new StringBuilder("/");
-            for (int i = 1; i < segments.length; i++) {
-                String segment = segments[i];
-                builder.append(segment);
-                if(i+1 < segments.length)
-                    builder.append("/");
-            }
-
-            if (requestURI.endsWith("/") && builder.charAt(builder.length()-1) != '/') {
-                builder.append('/');
-            }
-
-            return concat(target,builder);
-        }
-    }
-
-    private String concat(String target, StringBuilder builder) {
-        if(target == null){
-            return null;
-        }
-        String target2 = target;
-        if(target.endsWith("/")){
-            target2=target.substring(0, target.length()-1);
-        }
-        if(builder.charAt(0) != '/'){
-            builder.insert(0, '/');
-        }
-        return target2+builder;
-
-    }
-
     private String findMatchingTarget(HttpServletRequest request) {
-    	String requestURI = buildForwardRequestURL(request);
-    	return findMatchingTarget(requestURI);
-    }
-
-    private String findMatchingTarget(String requestURI) {
-        String[] segments = splitRequestPath(requestURI);
-        
-        if(segments.length == 0){
-        	return null;
-        }
-
-        if (targets.containsKey(segments[0])){
-        	return segments[0];
-        } else {
-        	return null;
-        }
+        TargetRouter.Target target = getRouter().findMatchingTarget(buildForwardRequestURL(request));
+        return target == null ? null : target.name;
     }
 
     private void handleRequest(HttpServletRequest request, HttpServletResponse finalResponse, RequestType requestType, String sURL, boolean localProxy) {
-        HttpClient httpclient = new DefaultHttpClient();
-        httpclient.getParams().setParameter("http.socket.timeout", new Integer(300000));
-        httpclient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
-
-        if( isCheckHealth() ){
-            DatabaseHealthCenter.getInstance(this.database, this.user, this.password, Proxy.class.getSimpleName())
-				.checkConnections(this.maxDatabaseConnections);
-        }
-
-        //
-        // Handle http proxy for external request.
-        // Proxy must be configured by system variables (e.g.: -Dhttp.proxyHost=proxy -Dhttp.proxyPort=3128)
-        //
-        ProxySelectorRoutePlanner routePlanner = new ProxySelectorRoutePlanner(
-                     httpclient.getConnectionManager().getSchemeRegistry(),
-                     ProxySelector.getDefault());
-
-        ((DefaultHttpClient)httpclient).setRoutePlanner(routePlanner);
+        HttpClient httpclient = httpClientPool.getHttpClient();
 
+        HttpRequestBase proxyingRequest = null;
+        HttpResponse proxiedResponse = null;
+        String target = localProxy ? findMatchingTarget(request) : null;
+        boolean acquired = false;
+        boolean aborted = false;
         try {
             URL url = null;
             try {
@@ -533,7 +495,16 @@ public class Proxy {
 
             logger.debug("Final request -- " + sURL);
 
-            HttpRequestBase proxyingRequest = makeRequest(request, requestType, sURL);
+            acquired = concurrencyLimiter.acquire(target);
+            if (!acquired) {
+                logger.warn("Too many concurrent requests to target " + target + ", rejecting " + sURL);
+                finalResponse.setHeader("Retry-After", "1");
+                finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Too many concurrent requests to \"" + target + "\"");
+                return;
+            }
+
+            proxyingRequest = makeRequest(request, requestType, sURL);
             headerManagement.configureRequestHeaders(request, proxyingRequest);
 
             try {
@@ -562,7 +533,7 @@ public class Proxy {
 		        }
             }
 
-            HttpResponse proxiedResponse = executeHttpRequest(httpclient, proxyingRequest);
+            proxiedResponse = executeHttpRequest(httpclient, proxyingRequest);
 
             org.apache.http.StatusLine statusLine = proxiedResponse.getStatusLine();
 
@@ -611,10 +582,31 @@ public class Proxy {
                 doHandleRequest(request, finalResponse, requestType, proxiedResponse);
             }
         } catch (IOException e) {
-            // connection problem with the host
+            // connection problem with the host or the client
             e.printStackTrace();
+            if (proxyingRequest != null) {
+                // the connection is in an unknown state and the rest of the
+                // response must not be read, do not give it back to the pool
+                proxyingRequest.abort();
+                aborted = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            if (proxyingRequest != null) {
+                proxyingRequest.abort();
+                aborted = true;
+            }
+            throw e;
         } finally {
-            httpclient.getConnectionManager().shutdown();
+            // release the connection to the pool. The response has been
+            // fully read, except for the errors which are not forwarded
+            if (proxiedResponse != null && !aborted) {
+                EntityUtils.consumeQuietly(proxiedResponse.getEntity());
+            }
+            if (acquired) {
+                concurrencyLimiter.release(target);
+            }
         }
     }
 
@@ -633,26 +625,20 @@ public class Proxy {
     	if (logger.isDebugEnabled()) {
     		logger.debug("adjustLocation called for request: " + request.getRequestURI());
     	}
-    	String target = findMatchingTarget(request);
+    	TargetRouter.Target matchingTarget = getRouter().findMatchingTarget(buildForwardRequestURL(request));
 
     	if (logger.isDebugEnabled()) {
-    		logger.debug("adjustLocation found target: " + target + " for request: " + request.getRequestURI());
+    		logger.debug("adjustLocation found target: " + (matchingTarget == null ? null : matchingTarget.name) + " for request: " + request.getRequestURI());
     	}
 
-    	if (target == null) {
+    	if (matchingTarget == null || matchingTarget.baseURI == null) {
     		copyLocationHeaders(proxiedResponse, finalResponse);
     		return;
     	}
 
-    	String baseURL = targets.get(target);
-    	URI baseURI = null;
-
-    	try {
-	        baseURI = new URI(baseURL);
-        } catch (URISyntaxException e) {
-        	copyLocationHeaders(proxiedResponse, finalResponse);
-	        return;
-        }
+    	String target = matchingTarget.name;
+    	URI baseURI = matchingTarget.baseURI;
+    	String baseURIString = matchingTarget.baseURIString;
 
     	for (Header locationHeader : proxiedResponse.getHeaders("Location")) {
     		if (logger.isDebugEnabled()) {
@@ -662,12 +648,13 @@ public class Proxy {
 	            URI locationURI = new URI(locationHeader.getValue());
 	            URI resolvedURI = baseURI.resolve(locationURI);
 
+	            String resolved = resolvedURI.toString();
 	            if (logger.isDebugEnabled()) {
-	            	logger.debug("Test location header: " + resolvedURI.toString() + " against: " + baseURI.toString());
+	            	logger.debug("Test location header: " + resolved + " against: " + baseURIString);
 	            }
-	            if (resolvedURI.toString().startsWith(baseURI.toString())) {
+	            if (resolved.startsWith(baseURIString)) {
 	            	// proxiedResponse.removeHeader(locationHeader);
-	            	String newLocation = "/" + target + "/" + resolvedURI.toString().substring(baseURI.toString().length());
+	            	String newLocation = "/" + target + "/" + resolved.substring(baseURIString.length());
 	            	finalResponse.addHeader("Location", newLocation);
 	            	// Header newLocationHeader = new BasicHeader("Location", newLocation);
 	            	if (logger.isDebugEnabled()) {
@@ -831,15 +818,18 @@ public class Proxy {
     /**
      * For certain requests (OGC Web services mainly) the charset is absolutely
      * required. So for certain content types (xml based normally) this method
-     * is called to detect the charset of the data. This method is a slow way of
-     * transferring data so data of any significant size should not enter this
-     * method.
+     * is called to detect the charset of the data. Only the first bytes of the
+     * data are inspected, the rest is streamed to the client as it is.
+     *
+     * @throws IOException if the response cannot be read or sent, in which case
+     *             the stream from the server is left open and the request must be aborted
      */
     private void doHandleRequestCharsetRequired(HttpServletRequest orignalRequest, HttpServletResponse finalResponse,
-            RequestType requestType, HttpResponse proxiedResponse, String contentType) {
+            RequestType requestType, HttpResponse proxiedResponse, String contentType) throws IOException {
 
         InputStream streamFromServer = null;
         OutputStream streamToClient = null;
+        boolean completed = false;
 
         try {
 
@@ -856,17 +846,17 @@ public class Proxy {
              *     Nothing special, just send back the stream to the client
              * B. There is no charset provided:
              *     The encoding has to be extracted from the file.
-             *     The file is read in ASCII, which is common to many charsets,
-             *     like that the encoding located in the first not can be retrieved.
+             *     The first bytes of the file are read (see XmlCharsetSniffer), looking for
+             *     a byte order mark or the encoding attribute of the xml declaration.
              *     Once the charset is found, the content-type header is overridden and the
              *     charset is appended.
              *
-             *     /!\ Special case: whenever data are compressed in gzip/deflate the stream has to
-             *     be uncompressed and compressed
+             *     /!\ Special case: whenever data are compressed in gzip/deflate only the
+             *     beginning of the stream is uncompressed to find the charset, the original
+             *     compressed bytes are sent to the client
              */
 
             boolean isCharsetKnown = proxiedResponse.getEntity().getContentType().getValue().toLowerCase().contains("charset");
-            // String contentEncoding = getContentEncoding(proxiedResponse.getAllHeaders());
             String contentEncoding = getContentEncoding(proxiedResponse.getHeaders("Content-Encoding"));
 
             if(logger.isDebugEnabled()) {
@@ -876,98 +866,59 @@ public class Proxy {
                 logger.debug("Charset is required so verifying that it has been added to the headers\n"+cskString+"\n"+cEString);
             }
 
-            if(contentEncoding == null || isCharsetKnown) {
-                // A simple stream can do the job for data that is not in content encoded
-                // but also for data content encoded with a known charset
-                streamFromServer = proxiedResponse.getEntity().getContent();
-                streamToClient = finalResponse.getOutputStream();
-            }
-            else if (!isCharsetKnown && ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding))) {
-                // the charset is unknown and the data are compressed in gzip
-                // we add the gzip wrapper to be able to read/write the stream content
-                streamFromServer = new GZIPInputStream(proxiedResponse.getEntity().getContent());
-                streamToClient = new GZIPOutputStream(finalResponse.getOutputStream());
+            if (isCharsetKnown) {
+                doHandleRequest(orignalRequest, finalResponse, requestType, proxiedResponse);
+                return;
             }
-            else if("deflate".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // same but with deflate
-                streamFromServer = new DeflaterInputStream(proxiedResponse.getEntity().getContent());
-                streamToClient = new DeflaterOutputStream(finalResponse.getOutputStream());
-            } else {
+            if (contentEncoding != null && !"gzip".equalsIgnoreCase(contentEncoding)
+                    && !"x-gzip".equalsIgnoreCase(contentEncoding) && !"deflate".equalsIgnoreCase(contentEncoding)) {
+                // unknown content encoding, the charset cannot be read
                 doHandleRequest(orignalRequest, finalResponse, requestType, proxiedResponse);
                 return;
             }
 
-            byte[] buf = new byte[1024]; // read maximum 1024 bytes
-            int len;                     // number of bytes read from the stream
-            boolean first = true;        // helps to find the encoding once and only once
-            String s = "";               // piece of file that should contain the encoding
-            while ((len = streamFromServer.read(buf)) > 0) {
-
-                if (first && !isCharsetKnown) {
-                    // charset is unknown try to find it in the file content
-                    for(int i=0; i < len; i++) {
-                        s += (char) buf[i]; // get the beginning of the file as ASCII
+            // charset is unknown try to find it in the file content
+            XmlCharsetSniffer sniffer = XmlCharsetSniffer.sniff(proxiedResponse.getEntity().getContent(), contentEncoding);
+            String charset = sniffer.getCharset();
+            if(charset == null) {
+                if(logger.isDebugEnabled()) {
+                    logger.debug("unable to find charset so using the first one from the accept-charset request header");
+                }
+                String calculateDefaultCharset = calculateDefaultCharset(orignalRequest);
+                if (calculateDefaultCharset !=null ) {
+                    charset = calculateDefaultCharset;
+                    if(logger.isDebugEnabled()) {
+                        logger.debug("hopefully the server responded with this charset: "+calculateDefaultCharset);
                     }
-                    // s has to be long enough to contain the encoding
-                    if(s.length() > 200) {
-
-                       if(logger.isTraceEnabled()) {
-                           logger.trace("attempting to read charset from: " + s);
-                       }
-                       String charset = getCharset(s); // extract charset
-
-                        if (charset == null) {
-                            if(logger.isTraceEnabled()) {
-                               logger.trace("unable to find charset from raw ASCII data.  Trying to unzip it");
-                            }
-
-                            // the charset cannot be found, IE users must be warned
-                            // that the request cannot be fulfilled, nothing good would happen otherwise
-                        }
-                        if(charset == null) {
-                            String guessedCharset = null;
-                            if(logger.isDebugEnabled()) {
-                                logger.debug("unable to find charset so using the first one from the accept-charset request header");
-                            }
-                            String calculateDefaultCharset = calculateDefaultCharset(orignalRequest);
-                            if (calculateDefaultCharset !=null ) {
-                                guessedCharset = calculateDefaultCharset;
-                                if(logger.isDebugEnabled()) {
-                                    logger.debug("hopefully the server responded with this charset: "+calculateDefaultCharset);
-                                }
-                            } else {
-                                guessedCharset = defaultCharset;
-                                if(logger.isDebugEnabled()) {
-                                    logger.debug("unable to find charset, so using default:"+defaultCharset);
-                                }
-                            }
-                            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + guessedCharset;
-                            finalResponse.setHeader("Content-Type", adjustedContentType);
-                            first = false; // we found the encoding, don't try to do it again
-                            finalResponse.setCharacterEncoding(guessedCharset);
-
-                        } else {
-                            if(logger.isDebugEnabled()) {
-                                logger.debug("found charset: "+charset);
-                            }
-                            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + charset;
-                            finalResponse.setHeader("Content-Type", adjustedContentType);
-                            first = false; // we found the encoding, don't try to do it again
-                            finalResponse.setCharacterEncoding(charset);
-                        }
+                } else {
+                    charset = defaultCharset;
+                    if(logger.isDebugEnabled()) {
+                        logger.debug("unable to find charset, so using default:"+defaultCharset);
                     }
                 }
-
-                // for everyone, the stream is just forwarded to the client
+            } else {
+                if(logger.isDebugEnabled()) {
+                    logger.debug("found charset: "+charset);
+                }
+            }
+            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + charset;
+            finalResponse.setHeader("Content-Type", adjustedContentType);
+            finalResponse.setCharacterEncoding(charset);
+
+            // for everyone, the stream is just forwarded to the client
+            streamFromServer = sniffer.getContent();
+            streamToClient = finalResponse.getOutputStream();
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int len;
+            while ((len = streamFromServer.read(buf)) > 0) {
                 streamToClient.write(buf, 0, len);
             }
+            completed = true;
 
-        }
-        catch (IOException e) {
-            // connection problem with the host
-            e.printStackTrace();
         } finally {
-            IOException exc = close(streamFromServer);
+            // closing the stream from the server reads the rest of the
+            // response, it is only done when it has been fully read
+            IOException exc = completed ? close(streamFromServer) : null;
             exc = close(streamToClient, exc);
             if(exc!=null){
                 logger.error("Error closing streams", exc);
@@ -1004,31 +955,6 @@ public class Proxy {
         return null;
     }
 
-    /**
-     * Extract the encoding from a string which is the header node of an xml file
-     * @param header String that should contain the encoding attribute and its value
-     * @return the charset. null if not found
-     */
-    private String getCharset(String header) {
-        Pattern pattern = null;
-        String charset = null;
-        try {
-            // use a regexp but we could also use string functions such as
-            // indexOf...
-            pattern = Pattern.compile("encoding=(['\"])([A-Za-z]([A-Za-z0-9._]|-)*)");
-        } catch (Exception e) {
-            throw new RuntimeException("expression syntax invalid");
-        }
-
-        Matcher matcher = pattern.matcher(header);
-        if (matcher.find()) {
-            String encoding = matcher.group();
-            charset = encoding.split("['\"]")[1];
-        }
-
-        return charset;
-    }
-
     /**
      * Gets the encoding of the content sent by the remote host: extracts the
      * content-encoding header
@@ -1089,47 +1015,34 @@ public class Proxy {
         return false;
     }
 
-    private String[] filter(String[] one) {
-        ArrayList<String> result = new ArrayList<String>();
-
-        for (String string : one) {
-            if (string.length() > 0) {
-                result.add(string);
-            }
-        }
-        return (String[]) result.toArray(new String[result.size()]);
-    }
-
     /**
      * Check to see if the call is recursive based on forwardRequestURI
      * startsWith contextPath
      */
     private boolean isRecursiveCallToProxy(String forwardRequestURI, String contextPath) {
-        String[] one = forwardRequestURI.split("/");
-        String[] two = contextPath.split("/");
-
-        one = filter(one);
-        two = filter(two);
-
-        if (one.length < two.length) {
-            return false;
-        }
-
-        boolean match = true;
-        for (int i = 0; i < two.length && i < one.length; i++) {
-            String s2 = two[i];
-            String s1 = one[i];
+        return TargetRouter.startsWithPath(forwardRequestURI, contextPath);
+    }
 
-            match &= s2.equalsIgnoreCase(s1);
+    private TargetRouter getRouter() {
+        TargetRouter current = router;
+        if (current == null) {
+            try {
+                current = new TargetRouter(targets, defaultTarget);
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException("Invalid proxy target", e);
+            }
+            router = current;
         }
-        return match;
+        return current;
     }
 
     public void setDefaultTarget(String defaultTarget) {
         this.defaultTarget = defaultTarget;
+        this.router = null;
     }
     public void setTargets(Map<String,String> targets) {
         this.targets = targets;
+        this.router = null;
     }
     public void setContextpath(String contextpath) {
 //        this.contextpath = contextpath;
@@ -1137,6 +1050,15 @@ public class Proxy {
     public void setHeaderManagement(HeadersManagementStrategy headerManagement) {
         this.headerManagement = headerManagement;
     }
+    public void setHttpClientPool(HttpClientPool httpClientPool) {
+        this.httpClientPool = httpClientPool;
+    }
+    public HttpClientPool getHttpClientPool() {
+        return httpClientPool;
+    }
+    public void setConcurrencyLimiter(TargetConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
 
     public void setDatabase(String database){
     	this.database = database;
@@ -1155,6 +1077,13 @@ public class Proxy {
     	this.maxDatabaseConnections = maxDatabaseConnections;
     }
 
+    /**
+     * @param healthCheckInterval seconds between two database health checks
+     */
+    public void setHealthCheckInterval(int healthCheckInterval){
+    	this.healthCheckInterval = healthCheckInterval;
+    }
+
     public Boolean getCheckHealth() {
 		return this.checkHealth;
 	}
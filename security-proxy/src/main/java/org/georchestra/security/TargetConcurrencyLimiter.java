@@ -0,0 +1,94 @@
+package org.georchestra.security;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of requests that can be forwarded concurrently to each proxy
+ * target.
+ * <p>
+ * Every proxied request holds a container thread for the whole round trip to
+ * the target, so a handful of slow requests (e.g. big WFS GetFeature) to one
+ * target could otherwise use all the threads and starve the fast requests to
+ * the other targets (e.g. WMS GetMap). When a target reaches its limit the new
+ * requests wait at most <code>acquireTimeout</code> milliseconds for a slot and
+ * are rejected otherwise.
+ * </p>
+ * <p>
+ * Targets without configured limit are not limited.
+ * </p>
+ */
+public class TargetConcurrencyLimiter {
+
+    private Map<String, Integer> maxConcurrentRequests = Collections.emptyMap();
+    /** in milliseconds */
+    private long acquireTimeout = 0;
+
+    private volatile Map<String, Semaphore> permits = Collections.emptyMap();
+
+    /**
+     * Creates the permits of each limited target.
+     */
+    public void init() {
+        Map<String, Semaphore> newPermits = new HashMap<String, Semaphore>();
+        for (Map.Entry<String, Integer> limit : maxConcurrentRequests.entrySet()) {
+            if (limit.getValue() <= 0) {
+                throw new IllegalArgumentException("maxConcurrentRequests of target " + limit.getKey() + " must be greater than 0");
+            }
+            newPermits.put(limit.getKey(), new Semaphore(limit.getValue(), true));
+        }
+        this.permits = newPermits;
+    }
+
+    /**
+     * Tries to reserve a slot for a request to the target. Each successful
+     * call must be followed by a call to {@link #release(String)}.
+     *
+     * @param target name of the target, may be null
+     * @return false if the target is saturated
+     */
+    public boolean acquire(String target) throws InterruptedException {
+        Semaphore semaphore = getPermits(target);
+        if (semaphore == null) {
+            return true;
+        }
+        return semaphore.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    public void release(String target) {
+        Semaphore semaphore = getPermits(target);
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * @return number of requests currently forwarded to each limited target
+     */
+    public Map<String, Integer> getActiveRequests() {
+        Map<String, Integer> active = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Semaphore> semaphore : permits.entrySet()) {
+            active.put(semaphore.getKey(),
+                    maxConcurrentRequests.get(semaphore.getKey()) - semaphore.getValue().availablePermits());
+        }
+        return active;
+    }
+
+    private Semaphore getPermits(String target) {
+        if (target == null) {
+            return null;
+        }
+        return permits.get(target);
+    }
+
+    public void setMaxConcurrentRequests(Map<String, Integer> maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+    public void setAcquireTimeout(long acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+}
@@ -0,0 +1,174 @@
+package org.georchestra.security;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The proxy targets compiled once into the structures needed to route a
+ * request, so that routing only scans the request path instead of splitting
+ * and rebuilding it.
+ * <p>
+ * A target is selected by the first segment of the request path, so the router
+ * is a map from that segment to the precomputed target: its url without
+ * trailing slash, its base {@link URI} used to rewrite the Location headers and
+ * the segments of its path used to detect direct access to protected services.
+ * </p>
+ */
+final class TargetRouter {
+
+    static final class Target {
+        final String name;
+        final String url;
+        final URI baseURI;
+        final String baseURIString;
+        final String[] pathSegments;
+
+        private Target(String name, String url) throws MalformedURLException {
+            this.name = name;
+            this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+            URI uri;
+            try {
+                uri = new URI(url);
+            } catch (URISyntaxException e) {
+                // Location headers are copied without rewrite for this target
+                uri = null;
+            }
+            this.baseURI = uri;
+            this.baseURIString = uri == null ? null : uri.toString();
+            this.pathSegments = splitPath(new URL(url).getPath());
+        }
+    }
+
+    private final Map<String, Target> targets;
+    private final List<Target> protectedTargets;
+    private final String defaultTarget;
+
+    TargetRouter(Map<String, String> targets, String defaultTarget) throws MalformedURLException {
+        Map<String, Target> compiled = new HashMap<String, Target>();
+        if (targets != null) {
+            for (Map.Entry<String, String> entry : targets.entrySet()) {
+                compiled.put(entry.getKey(), new Target(entry.getKey(), entry.getValue()));
+            }
+        }
+        this.targets = compiled;
+        this.protectedTargets = Collections.unmodifiableList(new ArrayList<Target>(compiled.values()));
+        if (defaultTarget != null && defaultTarget.endsWith("/")) {
+            defaultTarget = defaultTarget.substring(0, defaultTarget.length() - 1);
+        }
+        this.defaultTarget = defaultTarget;
+    }
+
+    /**
+     * @return the target selected by the first segment of the path, null if none
+     */
+    Target findMatchingTarget(String requestURI) {
+        int start = skipSlashes(requestURI, 0);
+        if (start == requestURI.length()) {
+            return null;
+        }
+        int end = requestURI.indexOf('/', start);
+        if (end < 0) {
+            end = requestURI.length();
+        }
+        return targets.get(requestURI.substring(start, end));
+    }
+
+    /**
+     * Builds the url the request must be forwarded to: the first segment of
+     * the path selects the target and is replaced by the target url, requests
+     * not matching a target are appended to the default target.
+     *
+     * @return null if no target matches and there is no default target
+     */
+    String findTarget(String requestURI) {
+        int start = requestURI.startsWith("/") ? 1 : 0;
+        int end = requestURI.indexOf('/', start);
+        String name = end < 0 ? requestURI.substring(start) : requestURI.substring(start, end);
+        Target target = targets.get(name);
+        if (target == null) {
+            if (defaultTarget == null) {
+                return null;
+            }
+            return requestURI.startsWith("/") ? defaultTarget + requestURI : defaultTarget + '/' + requestURI;
+        }
+        if (end < 0) {
+            return target.url + '/';
+        }
+        // trailing empty segments are collapsed into a single slash
+        int last = requestURI.length();
+        while (last - 1 > end && requestURI.charAt(last - 1) == '/' && requestURI.charAt(last - 2) == '/') {
+            last--;
+        }
+        return target.url + requestURI.substring(end, last);
+    }
+
+    /**
+     * @return true if the path starts with the path of one of the targets
+     */
+    boolean isTargetPath(String path) {
+        for (Target target : protectedTargets) {
+            if (startsWithSegments(path, target.pathSegments, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks, segment by segment and ignoring case, that the path starts with
+     * the segments of the prefix. Empty segments are ignored.
+     */
+    static boolean startsWithPath(String path, String prefix) {
+        int p = 0;
+        int q = skipSlashes(prefix, 0);
+        while (q < prefix.length()) {
+            int qEnd = nextSlash(prefix, q);
+            p = skipSlashes(path, p);
+            int pEnd = nextSlash(path, p);
+            if (pEnd - p != qEnd - q || !path.regionMatches(true, p, prefix, q, qEnd - q)) {
+                return false;
+            }
+            p = pEnd;
+            q = skipSlashes(prefix, qEnd);
+        }
+        return true;
+    }
+
+    private static boolean startsWithSegments(String path, String[] segments, boolean ignoreCase) {
+        int p = 0;
+        for (String segment : segments) {
+            p = skipSlashes(path, p);
+            int pEnd = nextSlash(path, p);
+            if (pEnd - p != segment.length() || !path.regionMatches(ignoreCase, p, segment, 0, segment.length())) {
+                return false;
+            }
+            p = pEnd;
+        }
+        return true;
+    }
+
+    private static int skipSlashes(String s, int from) {
+        while (from < s.length() && s.charAt(from) == '/') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int nextSlash(String s, int from) {
+        int slash = s.indexOf('/', from);
+        return slash < 0 ? s.length() : slash;
+    }
+
+    private static String[] splitPath(String path) {
+        return StringUtils.split(path, '/');
+    }
+}
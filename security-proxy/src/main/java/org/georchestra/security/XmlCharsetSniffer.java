@@ -0,0 +1,158 @@
+package org.georchestra.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Finds the charset of an xml document by looking at its first bytes only
+ * (byte order mark or encoding attribute of the xml declaration).
+ * <p>
+ * The bytes read to detect the charset are recorded as they were received, so
+ * that {@link #getContent()} gives back the whole original stream, still
+ * compressed if it was, and it can be forwarded as is to the client.
+ * </p>
+ */
+final class XmlCharsetSniffer {
+
+    /**
+     * Number of (uncompressed) bytes inspected, large enough to contain the
+     * xml declaration
+     */
+    static final int LOOK_AHEAD = 1024;
+
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*(['\"])([A-Za-z]([A-Za-z0-9._]|-)*)\\1");
+
+    private final String charset;
+    private final InputStream content;
+
+    private XmlCharsetSniffer(String charset, InputStream content) {
+        this.charset = charset;
+        this.content = content;
+    }
+
+    /**
+     * @param raw the stream as received from the server
+     * @param contentEncoding value of the Content-Encoding header, may be null
+     */
+    static XmlCharsetSniffer sniff(InputStream raw, String contentEncoding) throws IOException {
+        RecordingInputStream recorder = new RecordingInputStream(raw);
+        String charset = null;
+        try {
+            InputStream decoded = decode(recorder, contentEncoding);
+            byte[] prolog = new byte[LOOK_AHEAD];
+            int length = 0;
+            int read;
+            while (length < prolog.length && (read = decoded.read(prolog, length, prolog.length - length)) > 0) {
+                length += read;
+            }
+            charset = findCharset(prolog, length);
+        } catch (IOException e) {
+            // corrupted or truncated compressed data: the charset cannot be found
+            // but the data is still forwarded to the client as it is
+        }
+        InputStream recorded = new ByteArrayInputStream(recorder.stopRecording());
+        return new XmlCharsetSniffer(charset, new SequenceInputStream(recorded, raw));
+    }
+
+    private static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * @return the charset declared by the byte order mark or by the xml declaration, null if not found
+     */
+    static String findCharset(byte[] prolog, int length) {
+        if (length >= 3 && (prolog[0] & 0xFF) == 0xEF && (prolog[1] & 0xFF) == 0xBB && (prolog[2] & 0xFF) == 0xBF) {
+            return "UTF-8";
+        }
+        if (length >= 2 && (prolog[0] & 0xFF) == 0xFE && (prolog[1] & 0xFF) == 0xFF) {
+            return "UTF-16BE";
+        }
+        if (length >= 2 && (prolog[0] & 0xFF) == 0xFF && (prolog[1] & 0xFF) == 0xFE) {
+            return "UTF-16LE";
+        }
+        // the declaration is in ASCII, which is common to most charsets
+        int end = 0;
+        while (end < length && prolog[end] != '>') {
+            end++;
+        }
+        char[] declaration = new char[end];
+        for (int i = 0; i < end; i++) {
+            declaration[i] = (char) (prolog[i] & 0xFF);
+        }
+        Matcher matcher = ENCODING.matcher(new String(declaration));
+        if (matcher.find()) {
+            return matcher.group(2);
+        }
+        return null;
+    }
+
+    String getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return the original stream, from its first byte
+     */
+    InputStream getContent() {
+        return content;
+    }
+
+    /**
+     * Keeps a copy of the bytes read until {@link #stopRecording()} is called.
+     */
+    private static final class RecordingInputStream extends FilterInputStream {
+        private ByteArrayOutputStream recorded = new ByteArrayOutputStream(LOOK_AHEAD);
+
+        RecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && recorded != null) {
+                recorded.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0 && recorded != null) {
+                recorded.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the underlying stream is still needed to forward the rest of the content
+        }
+
+        byte[] stopRecording() {
+            byte[] bytes = recorded.toByteArray();
+            recorded = null;
+            return bytes;
+        }
+    }
+}
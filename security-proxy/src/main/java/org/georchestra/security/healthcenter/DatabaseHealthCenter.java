@@ -60,6 +60,18 @@ public class DatabaseHealthCenter {
 	 */
 	public boolean checkConnections(final int maxConnections){
 		
+		return check(maxConnections).isHealthy();
+	}
+
+	/**
+	 * Same as {@link #checkConnections(int)} but returns the details of the check.
+	 *
+	 * @param maxConnections max connections allowed
+	 *
+	 * @return the status of the database connections
+	 */
+	public DatabaseHealthStatus check(final int maxConnections){
+		
 		if(maxConnections <= 0 ){
 			throw new IllegalArgumentException("maxDatabaseConnection must be greater than 0 ");
 		}
@@ -80,13 +92,12 @@ public class DatabaseHealthCenter {
 				unstableReport(liveConnections, healthLimit, maxConnections, listConnections);
 				healthy = false;
 			}
+			return new DatabaseHealthStatus(liveConnections, maxConnections, healthy, null);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			// the database cannot be queried, it is not reported as healthy
+			LOGGER.error("Unable to check the database connections", e);
+			return new DatabaseHealthStatus(-1, maxConnections, false, String.valueOf(e.getMessage()));
 		}
-		return healthy;
-		
-		
 	}
 	/**
 	 * The system has open all available connection. 
@@ -0,0 +1,78 @@
+package org.georchestra.security.healthcenter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Checks the database connections in a background thread at a fixed interval
+ * and keeps the last result, so that the proxied requests never wait for the
+ * check.
+ *
+ */
+public final class DatabaseHealthMonitor {
+
+	private static final Log LOGGER = LogFactory.getLog(DatabaseHealthMonitor.class.getPackage().getName());
+
+	private final DatabaseHealthCenter healthCenter;
+	private final int maxConnections;
+
+	private ScheduledExecutorService scheduler;
+	private volatile DatabaseHealthStatus lastStatus;
+
+	/**
+	 * @param healthCenter the checker
+	 * @param maxConnections max connections allowed
+	 */
+	public DatabaseHealthMonitor(final DatabaseHealthCenter healthCenter, final int maxConnections) {
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException("maxDatabaseConnection must be greater than 0 ");
+		}
+		this.healthCenter = healthCenter;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Starts checking the connections every interval seconds.
+	 */
+	public synchronized void start(final int interval) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "security-proxy-database-health");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					lastStatus = healthCenter.check(maxConnections);
+				} catch (RuntimeException e) {
+					// an exception would cancel the next checks
+					LOGGER.error("Database health check failed", e);
+				}
+			}
+		}, 0, interval, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * @return the result of the last check, null if no check has completed yet
+	 */
+	public DatabaseHealthStatus getLastStatus() {
+		return lastStatus;
+	}
+}
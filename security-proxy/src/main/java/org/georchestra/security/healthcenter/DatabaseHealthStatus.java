@@ -0,0 +1,103 @@
+package org.georchestra.security.healthcenter;
+
+import java.util.Date;
+
+/**
+ * Result of a database connections check.
+ *
+ */
+public final class DatabaseHealthStatus {
+
+	private final Date checkDate;
+	private final int liveConnections;
+	private final int maxConnections;
+	private final boolean healthy;
+	private final String error;
+
+	DatabaseHealthStatus(final int liveConnections, final int maxConnections, final boolean healthy, final String error) {
+		this.checkDate = new Date();
+		this.liveConnections = liveConnections;
+		this.maxConnections = maxConnections;
+		this.healthy = healthy;
+		this.error = error;
+	}
+
+	public Date getCheckDate() {
+		return new Date(checkDate.getTime());
+	}
+
+	/**
+	 * @return the number of live connections, -1 if they could not be counted
+	 */
+	public int getLiveConnections() {
+		return liveConnections;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * @return the error raised by the check, null if the check succeeded
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public String toJSON() {
+		StringBuilder json = new StringBuilder(150);
+		json.append("{\"checkDate\":").append(checkDate.getTime())
+			.append(",\"liveConnections\":").append(liveConnections)
+			.append(",\"maxConnections\":").append(maxConnections)
+			.append(",\"healthy\":").append(healthy);
+		if (error != null) {
+			json.append(",\"error\":");
+			quote(error, json);
+		}
+		return json.append('}').toString();
+	}
+
+	/**
+	 * Appends the value as a json string, escaping the quotes, the backslashes
+	 * and the control characters.
+	 */
+	private static void quote(final String value, final StringBuilder json) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+
+	@Override
+	public String toString() {
+		return toJSON();
+	}
+}
@@ -0,0 +1,69 @@
+package org.georchestra.security.permissions;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves host names and caches the result for a limited time, including
+ * the failed resolutions, so that checking the permissions of a url does not
+ * wait for a DNS lookup each time.
+ */
+class HostResolver {
+    static final InetAddress[] UNRESOLVED = new InetAddress[0];
+
+    private static final int MAX_ENTRIES = 1000;
+
+    private static final class CachedAddresses {
+        final InetAddress[] addresses;
+        final long expiration;
+
+        CachedAddresses(InetAddress[] addresses, long expiration) {
+            this.addresses = addresses;
+            this.expiration = expiration;
+        }
+    }
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final ConcurrentMap<String, CachedAddresses> cache = new ConcurrentHashMap<String, CachedAddresses>();
+
+    /**
+     * @param ttl time in milliseconds the resolved addresses are kept
+     * @param negativeTtl time in milliseconds an unknown host is remembered
+     */
+    HostResolver(long ttl, long negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * @return the addresses of the host, {@link #UNRESOLVED} if the host is unknown
+     */
+    InetAddress[] resolve(String host) {
+        String key = host.toLowerCase(Locale.ENGLISH);
+        long now = System.currentTimeMillis();
+        CachedAddresses cached = cache.get(key);
+        if (cached != null && cached.expiration > now) {
+            return cached.addresses;
+        }
+
+        InetAddress[] addresses;
+        long expiration;
+        try {
+            addresses = InetAddress.getAllByName(host);
+            expiration = now + ttl;
+        } catch (UnknownHostException e) {
+            addresses = UNRESOLVED;
+            expiration = now + negativeTtl;
+        }
+        if (cache.size() >= MAX_ENTRIES) {
+            // the url parameter form can request any host, keep the cache bounded
+            cache.clear();
+        }
+        cache.put(key, new CachedAddresses(addresses, expiration));
+        return addresses;
+    }
+}
@@ -0,0 +1,78 @@
+package org.georchestra.security.permissions;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link UriMatcher}s of a rule list indexed by the addresses of their
+ * host, so that only the matchers of the requested host (and the matchers
+ * without host) are evaluated.
+ */
+class MatcherIndex {
+    private final Map<InetAddress, List<UriMatcher>> byAddress = new HashMap<InetAddress, List<UriMatcher>>();
+    private final List<UriMatcher> anyHost = new ArrayList<UriMatcher>();
+
+    MatcherIndex(List<UriMatcher> matchers) {
+        for (UriMatcher matcher : matchers) {
+            Set<InetAddress> addresses = matcher.getHostAddresses();
+            if (addresses == null) {
+                anyHost.add(matcher);
+            } else {
+                for (InetAddress address : addresses) {
+                    List<UriMatcher> candidates = byAddress.get(address);
+                    if (candidates == null) {
+                        candidates = new ArrayList<UriMatcher>(1);
+                        byAddress.put(address, candidates);
+                    }
+                    candidates.add(matcher);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if some matchers have a host, so the url host must be resolved
+     */
+    boolean needsAddresses() {
+        return !byAddress.isEmpty();
+    }
+
+    /**
+     * @param addresses the resolved addresses of the url host, may be empty
+     */
+    boolean matches(URL url, InetAddress[] addresses) {
+        for (UriMatcher matcher : anyHost) {
+            if (matcher.matchesPortAndPath(url)) {
+                return true;
+            }
+        }
+        if (addresses.length == 1) {
+            return matchesAny(byAddress.get(addresses[0]), url);
+        }
+        Set<UriMatcher> candidates = new LinkedHashSet<UriMatcher>();
+        for (InetAddress address : addresses) {
+            List<UriMatcher> matchers = byAddress.get(address);
+            if (matchers != null) {
+                candidates.addAll(matchers);
+            }
+        }
+        return matchesAny(candidates, url);
+    }
+
+    private boolean matchesAny(Iterable<UriMatcher> candidates, URL url) {
+        if (candidates != null) {
+            for (UriMatcher matcher : candidates) {
+                if (matcher.matchesPortAndPath(url)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -2,56 +2,93 @@ package org.georchestra.security.permissions;
 
 import com.google.common.collect.Lists;
 
+import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Jesse on 8/15/2014.
  */
 public class Permissions {
+    private static final int DEFAULT_DNS_CACHE_TTL = 60;
+    private static final int DEFAULT_DNS_NEGATIVE_CACHE_TTL = 10;
+
     private List<UriMatcher> allowed = Lists.newArrayList();
     private List<UriMatcher> denied = Lists.newArrayList();
     private boolean allowByDefault = false;
     private boolean initialized = false;
+    /**
+     * time (in seconds) the addresses of the requested hosts are cached
+     */
+    private Integer dnsCacheTtl;
+    /**
+     * time (in seconds) the unknown hosts are cached
+     */
+    private Integer dnsNegativeCacheTtl;
+
+    private transient volatile HostResolver resolver;
+    private transient volatile MatcherIndex allowedIndex;
+    private transient volatile MatcherIndex deniedIndex;
 
     public Permissions setAllowed(List<UriMatcher> allowed) {
         this.allowed = allowed;
+        this.allowedIndex = null;
         return this;
     }
 
     public Permissions setDenied(List<UriMatcher> denied) {
         this.denied = denied;
+        this.deniedIndex = null;
         return this;
     }
 
     public boolean isDenied(URL url) {
+        MatcherIndex allowedIndex = getAllowedIndex();
+        MatcherIndex deniedIndex = getDeniedIndex();
+        // the host is resolved at most once per url
+        InetAddress[] addresses = HostResolver.UNRESOLVED;
+        if (allowedIndex.needsAddresses() || deniedIndex.needsAddresses()) {
+            addresses = getResolver().resolve(url.getHost());
+        }
         if (allowByDefault) {
-            if (checkIfAllowed(url)) return false;
-            if (checkIfDenied(url)) return true;
+            if (allowedIndex.matches(url, addresses)) return false;
+            if (deniedIndex.matches(url, addresses)) return true;
         } else {
-            if (checkIfDenied(url)) return true;
-            if (checkIfAllowed(url)) return false;
+            if (deniedIndex.matches(url, addresses)) return true;
+            if (allowedIndex.matches(url, addresses)) return false;
         }
         return !allowByDefault;
     }
 
-    private boolean checkIfDenied(URL url) {
-        for (UriMatcher uriMatcher : denied) {
-            if (uriMatcher.matches(url)) {
-                return true;
-            }
+    private MatcherIndex getAllowedIndex() {
+        MatcherIndex index = allowedIndex;
+        if (index == null) {
+            index = new MatcherIndex(allowed);
+            allowedIndex = index;
         }
-        return false;
+        return index;
     }
 
-    private boolean checkIfAllowed(URL url) {
-        for (UriMatcher uriMatcher : allowed) {
-            if (uriMatcher.matches(url)) {
-                return true;
-            }
+    private MatcherIndex getDeniedIndex() {
+        MatcherIndex index = deniedIndex;
+        if (index == null) {
+            index = new MatcherIndex(denied);
+            deniedIndex = index;
         }
-        return false;
+        return index;
+    }
+
+    private HostResolver getResolver() {
+        HostResolver current = resolver;
+        if (current == null) {
+            int ttl = dnsCacheTtl == null ? DEFAULT_DNS_CACHE_TTL : dnsCacheTtl;
+            int negativeTtl = dnsNegativeCacheTtl == null ? DEFAULT_DNS_NEGATIVE_CACHE_TTL : dnsNegativeCacheTtl;
+            current = new HostResolver(TimeUnit.SECONDS.toMillis(ttl), TimeUnit.SECONDS.toMillis(negativeTtl));
+            resolver = current;
+        }
+        return current;
     }
 
     public List<UriMatcher> getAllowed() {
@@ -70,6 +107,16 @@ public class Permissions {
         this.allowByDefault = allowByDefault;
     }
 
+    public void setDnsCacheTtl(Integer dnsCacheTtl) {
+        this.dnsCacheTtl = dnsCacheTtl;
+        this.resolver = null;
+    }
+
+    public void setDnsNegativeCacheTtl(Integer dnsNegativeCacheTtl) {
+        this.dnsNegativeCacheTtl = dnsNegativeCacheTtl;
+        this.resolver = null;
+    }
+
     public synchronized void init() throws UnknownHostException {
         for (UriMatcher uriMatcher : allowed) {
             uriMatcher.init();
@@ -78,6 +125,9 @@ public class Permissions {
         for (UriMatcher uriMatcher : denied) {
             uriMatcher.init();
         }
+        // the matchers are indexed by the addresses resolved by init
+        allowedIndex = new MatcherIndex(allowed);
+        deniedIndex = new MatcherIndex(denied);
         initialized = true;
     }
 
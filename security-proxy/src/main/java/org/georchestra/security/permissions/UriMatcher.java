@@ -6,6 +6,7 @@ import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -42,6 +43,24 @@ public class UriMatcher {
         return !(pathPattern != null && !matchesPath(url));
     }
 
+    /**
+     * Same as {@link #matches(URL)} without the host check, used once the
+     * host is known to match (see {@link MatcherIndex}).
+     */
+    boolean matchesPortAndPath(URL url) {
+        if (port != -1 && !matchesPort(url)) {
+            return false;
+        }
+        return !(pathPattern != null && !matchesPath(url));
+    }
+
+    /**
+     * @return the addresses of the host, null if this matcher accepts any host
+     */
+    Set<InetAddress> getHostAddresses() {
+        return hostNames;
+    }
+
     private boolean matchesPath(URL url) {
         return this.pathPattern.matcher(url.getPath()).matches();
     }
@@ -0,0 +1,85 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpClientPoolTest {
+    private HttpServer server;
+    private HttpClientPool pool;
+    private String url;
+
+    /** the Cookie header of each request received by the server */
+    private final List<String> cookies = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                cookies.add(exchange.getRequestHeaders().getFirst("Cookie"));
+                if (exchange.getRequestURI().getPath().equals("/login")) {
+                    exchange.getResponseHeaders().add("Set-Cookie", "JSESSIONID=user1; Path=/");
+                }
+                byte[] body = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort();
+
+        pool = new HttpClientPool();
+        pool.setEvictionInterval(0);
+        pool.init(Collections.singletonMap("geoserver", url + "/"));
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+        server.stop(0);
+    }
+
+    private void get(String path, String cookie) throws IOException {
+        HttpGet request = new HttpGet(url + path);
+        if (cookie != null) {
+            request.setHeader("Cookie", cookie);
+        }
+        HttpResponse response = pool.getHttpClient().execute(request);
+        EntityUtils.consume(response.getEntity());
+        assertEquals(200, response.getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void testCookiesNotShared() throws Exception {
+        // the session of the first user
+        get("/login", null);
+        // an anonymous user
+        get("/other", null);
+        // another user, with its own session
+        get("/other", "JSESSIONID=user2");
+
+        assertEquals(3, cookies.size());
+        assertNull(cookies.get(1));
+        assertEquals("JSESSIONID=user2", cookies.get(2));
+    }
+}
@@ -5,6 +5,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.message.BasicHttpResponse;
 import org.georchestra.security.permissions.Permissions;
 import org.georchestra.security.permissions.UriMatcher;
@@ -13,13 +14,18 @@ import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 
+import javax.servlet.ServletOutputStream;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ProxyTest {
     private Proxy proxy;
@@ -27,15 +33,24 @@ public class ProxyTest {
     private boolean executed = true;
     private MockHttpServletRequest request;
     private MockHttpServletResponse httpResponse;
+    private HttpRequestBase proxyingRequest;
+    private Exception failure;
 
     @Before
     public void setUp() throws Exception {
         response = null;
         executed = false;
+        failure = null;
         proxy = new Proxy() {
             @Override
             protected HttpResponse executeHttpRequest(HttpClient httpclient, HttpRequestBase proxyingRequest) throws IOException {
                 executed = true;
+                ProxyTest.this.proxyingRequest = proxyingRequest;
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                } else if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
                 return response;
             }
         };
@@ -112,6 +127,80 @@ public class ProxyTest {
         assertFalse(executed);
     }
 
+    /**
+     * When the client disconnects, the proxied request is aborted instead of
+     * reading the rest of the response.
+     */
+    @Test
+    public void testClientDisconnectAbortsCharsetRequest() throws Exception {
+        proxy.setRequireCharsetContentTypes(Collections.singletonList("text/xml"));
+
+        final int length = 10 * 1024 * 1024;
+        final AtomicInteger read = new AtomicInteger();
+        InputStream content = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return read.incrementAndGet() <= length ? 'x' : -1;
+            }
+        };
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(content);
+        entity.setContentType("text/xml");
+        response.setEntity(entity);
+
+        httpResponse = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        throw new IOException("Connection reset by peer");
+                    }
+                };
+            }
+        };
+
+        proxy.handleUrlGETRequest(request, httpResponse, "http://localhost:8080/wms");
+
+        assertTrue(executed);
+        assertTrue(proxyingRequest.isAborted());
+        assertTrue(read.get() < length);
+    }
+
+    /**
+     * The permit of a limited target is released whatever the outcome of the request.
+     */
+    @Test
+    public void testConcurrencyPermitReleasedOnErrors() throws Exception {
+        TargetConcurrencyLimiter limiter = new TargetConcurrencyLimiter();
+        limiter.setMaxConcurrentRequests(Collections.singletonMap("extractorapp", 1));
+        limiter.init();
+        proxy.setConcurrencyLimiter(limiter);
+
+        failure = new IOException("Connection refused");
+        proxy.handleGETRequest(new MockHttpServletRequest("GET", "/extractorapp/home"), new MockHttpServletResponse());
+        assertTrue(executed);
+        assertTrue(proxyingRequest.isAborted());
+        assertEquals(Integer.valueOf(0), limiter.getActiveRequests().get("extractorapp"));
+
+        failure = new IllegalStateException("unexpected");
+        try {
+            proxy.handleGETRequest(new MockHttpServletRequest("GET", "/extractorapp/home"), new MockHttpServletResponse());
+            fail("the runtime exception is expected to be thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Integer.valueOf(0), limiter.getActiveRequests().get("extractorapp"));
+
+        // error returned by the target, not forwarded
+        failure = null;
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 404, "Not Found");
+        MockHttpServletResponse notFound = new MockHttpServletResponse();
+        proxy.handleGETRequest(new MockHttpServletRequest("GET", "/extractorapp/home"), notFound);
+        assertEquals(404, notFound.getStatus());
+        assertEquals(Integer.valueOf(0), limiter.getActiveRequests().get("extractorapp"));
+    }
+
     @Test
     public void testLoadPermissions() throws Exception {
         proxy = new Proxy();
@@ -0,0 +1,52 @@
+package org.georchestra.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TargetConcurrencyLimiterTest {
+    private TargetConcurrencyLimiter limiter;
+
+    @Before
+    public void setUp() {
+        limiter = new TargetConcurrencyLimiter();
+        limiter.setMaxConcurrentRequests(Collections.singletonMap("geoserver", 2));
+        limiter.init();
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        assertTrue(limiter.acquire("geoserver"));
+        assertTrue(limiter.acquire("geoserver"));
+        assertEquals(Integer.valueOf(2), limiter.getActiveRequests().get("geoserver"));
+
+        assertFalse(limiter.acquire("geoserver"));
+
+        limiter.release("geoserver");
+        assertEquals(Integer.valueOf(1), limiter.getActiveRequests().get("geoserver"));
+        assertTrue(limiter.acquire("geoserver"));
+    }
+
+    @Test
+    public void testUnlimitedTargets() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.acquire("geonetwork"));
+            assertTrue(limiter.acquire(null));
+        }
+        limiter.release("geonetwork");
+        limiter.release(null);
+
+        assertEquals(Collections.singletonMap("geoserver", 0), limiter.getActiveRequests());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        limiter.setMaxConcurrentRequests(Collections.singletonMap("geoserver", 0));
+        limiter.init();
+    }
+}
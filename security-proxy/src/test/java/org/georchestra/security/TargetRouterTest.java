@@ -0,0 +1,68 @@
+package org.georchestra.security;
+
+import com.google.common.collect.Maps;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TargetRouterTest {
+    private TargetRouter router;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, String> targets = Maps.newHashMap();
+        targets.put("geonetwork", "http://localhost:8080/geonetwork-private/");
+        targets.put("geoserver", "http://localhost:8080/geoserver");
+        router = new TargetRouter(targets, "http://localhost:8080/default/");
+    }
+
+    @Test
+    public void testFindTarget() throws Exception {
+        assertEquals("http://localhost:8080/geoserver/wms", router.findTarget("/geoserver/wms"));
+        assertEquals("http://localhost:8080/geoserver/", router.findTarget("/geoserver"));
+        assertEquals("http://localhost:8080/geoserver/", router.findTarget("/geoserver/"));
+        assertEquals("http://localhost:8080/geoserver/ows/", router.findTarget("/geoserver/ows//"));
+        assertEquals("http://localhost:8080/geonetwork-private/srv/eng/home", router.findTarget("/geonetwork/srv/eng/home"));
+        assertEquals("http://localhost:8080/geonetwork-private/srv/", router.findTarget("geonetwork/srv/"));
+        assertEquals("http://localhost:8080/default/unmapped/x", router.findTarget("/unmapped/x"));
+        assertEquals("http://localhost:8080/default/unmapped", router.findTarget("unmapped"));
+    }
+
+    @Test
+    public void testNoDefaultTarget() throws Exception {
+        router = new TargetRouter(null, null);
+        assertNull(router.findTarget("/unmapped/x"));
+    }
+
+    @Test
+    public void testFindMatchingTarget() throws Exception {
+        assertEquals("geoserver", router.findMatchingTarget("/geoserver/wms").name);
+        assertEquals("geoserver", router.findMatchingTarget("//geoserver").name);
+        assertEquals("http://localhost:8080/geonetwork-private/", router.findMatchingTarget("/geonetwork/").baseURIString);
+        assertNull(router.findMatchingTarget("/geoserverx/wms"));
+        assertNull(router.findMatchingTarget("/"));
+    }
+
+    @Test
+    public void testIsTargetPath() throws Exception {
+        assertTrue(router.isTargetPath("/geonetwork-private/srv"));
+        assertTrue(router.isTargetPath("/geoserver"));
+        assertFalse(router.isTargetPath("/geonetwork"));
+        assertFalse(router.isTargetPath("/"));
+    }
+
+    @Test
+    public void testStartsWithPath() throws Exception {
+        assertTrue(TargetRouter.startsWithPath("/sec/proxy/x", "/sec"));
+        assertTrue(TargetRouter.startsWithPath("//SEC/proxy", "/sec/"));
+        assertTrue(TargetRouter.startsWithPath("/anything", ""));
+        assertFalse(TargetRouter.startsWithPath("/security", "/sec"));
+        assertFalse(TargetRouter.startsWithPath("/", "/sec"));
+    }
+}
@@ -0,0 +1,92 @@
+package org.georchestra.security;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class XmlCharsetSnifferTest {
+
+    private static final String CAPABILITIES = "<?xml version=\"1.0\" encoding='ISO-8859-1'?>\n<WMS_Capabilities version=\"1.3.0\">";
+
+    private byte[] largeDocument() throws Exception {
+        StringBuilder builder = new StringBuilder(CAPABILITIES);
+        for (int i = 0; i < 5000; i++) {
+            builder.append("<Layer><Name>layer").append(i).append("</Name></Layer>");
+        }
+        builder.append("</WMS_Capabilities>");
+        return builder.toString().getBytes("ISO-8859-1");
+    }
+
+    @Test
+    public void testPlain() throws Exception {
+        byte[] document = largeDocument();
+        XmlCharsetSniffer sniffer = XmlCharsetSniffer.sniff(new ByteArrayInputStream(document), null);
+
+        assertEquals("ISO-8859-1", sniffer.getCharset());
+        assertArrayEquals(document, IOUtils.toByteArray(sniffer.getContent()));
+    }
+
+    @Test
+    public void testGzipIsForwardedUntouched() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(largeDocument());
+        out.close();
+
+        XmlCharsetSniffer sniffer = XmlCharsetSniffer.sniff(new ByteArrayInputStream(compressed.toByteArray()), "gzip");
+
+        assertEquals("ISO-8859-1", sniffer.getCharset());
+        assertArrayEquals(compressed.toByteArray(), IOUtils.toByteArray(sniffer.getContent()));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(compressed);
+        out.write(largeDocument());
+        out.close();
+
+        XmlCharsetSniffer sniffer = XmlCharsetSniffer.sniff(new ByteArrayInputStream(compressed.toByteArray()), "deflate");
+
+        assertEquals("ISO-8859-1", sniffer.getCharset());
+        assertArrayEquals(compressed.toByteArray(), IOUtils.toByteArray(sniffer.getContent()));
+    }
+
+    @Test
+    public void testShortDocument() throws Exception {
+        byte[] document = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><a/>".getBytes("UTF-8");
+        XmlCharsetSniffer sniffer = XmlCharsetSniffer.sniff(new ByteArrayInputStream(document), null);
+
+        assertEquals("UTF-8", sniffer.getCharset());
+        assertArrayEquals(document, IOUtils.toByteArray(sniffer.getContent()));
+    }
+
+    @Test
+    public void testByteOrderMark() throws Exception {
+        byte[] document = new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '<', 'a', '/', '>'};
+        assertEquals("UTF-8", XmlCharsetSniffer.sniff(new ByteArrayInputStream(document), null).getCharset());
+    }
+
+    @Test
+    public void testNoDeclaration() throws Exception {
+        byte[] document = "<?xml version='1.0'?><a encoding='nope'/>".getBytes("UTF-8");
+        assertNull(XmlCharsetSniffer.sniff(new ByteArrayInputStream(document), null).getCharset());
+    }
+
+    @Test
+    public void testCorruptedGzip() throws Exception {
+        byte[] document = "not gzipped".getBytes("UTF-8");
+        XmlCharsetSniffer sniffer = XmlCharsetSniffer.sniff(new ByteArrayInputStream(document), "gzip");
+
+        assertNull(sniffer.getCharset());
+        assertArrayEquals(document, IOUtils.toByteArray(sniffer.getContent()));
+    }
+}
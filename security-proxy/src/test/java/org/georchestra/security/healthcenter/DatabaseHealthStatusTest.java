@@ -0,0 +1,48 @@
+package org.georchestra.security.healthcenter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DatabaseHealthStatusTest {
+
+    @Test
+    public void testToJSON() {
+        DatabaseHealthStatus status = new DatabaseHealthStatus(3, 10, true, null);
+
+        assertEquals("{\"checkDate\":" + status.getCheckDate().getTime()
+                + ",\"liveConnections\":3,\"maxConnections\":10,\"healthy\":true}", status.toJSON());
+    }
+
+    @Test
+    public void testErrorEscaped() {
+        DatabaseHealthStatus status = new DatabaseHealthStatus(-1, 10, false,
+                "Connection to \"localhost:5432\" refused\n\tat C:\\pg\u0001");
+
+        String json = status.toJSON();
+
+        assertTrue(json, json.endsWith(
+                ",\"healthy\":false,\"error\":\"Connection to \\\"localhost:5432\\\" refused\\n\\tat C:\\\\pg\\u0001\"}"));
+        for (char c : json.toCharArray()) {
+            assertTrue("control character in " + json, c >= 0x20);
+        }
+    }
+
+    /**
+     * A database which cannot be queried is not reported as healthy.
+     */
+    @Test
+    public void testCheckFailureIsUnhealthy() {
+        DatabaseHealthCenter hc = DatabaseHealthCenter.getInstance("georchestra_missing_database",
+                "georchestra_missing_user", "", "testCase");
+
+        DatabaseHealthStatus status = hc.check(10);
+
+        assertFalse(status.isHealthy());
+        assertEquals(-1, status.getLiveConnections());
+        assertNotNull(status.getError());
+    }
+}
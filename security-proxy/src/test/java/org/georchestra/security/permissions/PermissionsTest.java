@@ -0,0 +1,41 @@
+package org.georchestra.security.permissions;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionsTest {
+
+    @Test
+    public void testIndexedMatchers() throws Exception {
+        Permissions permissions = new Permissions()
+                .setAllowed(Collections.singletonList(new UriMatcher().setPath("/public/.*")))
+                .setDenied(Arrays.asList(
+                        new UriMatcher().setHost("localhost").setPort(8080),
+                        new UriMatcher().setHost("127.0.0.1").setPath("/private/.*")));
+        permissions.setAllowByDefault(true);
+        permissions.init();
+
+        assertTrue(permissions.isDenied(new URL("http://127.0.0.1:8080/geoserver")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/private/data")));
+        assertFalse(permissions.isDenied(new URL("http://localhost/geoserver")));
+        assertFalse(permissions.isDenied(new URL("http://localhost:8080/public/data")));
+    }
+
+    @Test
+    public void testUnknownHost() throws Exception {
+        Permissions permissions = new Permissions()
+                .setAllowed(Collections.singletonList(new UriMatcher().setHost("localhost")));
+        permissions.init();
+
+        assertTrue(permissions.isDenied(new URL("http://unknown.host.invalid/")));
+        // the negative answer is cached
+        assertTrue(permissions.isDenied(new URL("http://unknown.host.invalid/")));
+        assertFalse(permissions.isDenied(new URL("http://localhost/")));
+    }
+}